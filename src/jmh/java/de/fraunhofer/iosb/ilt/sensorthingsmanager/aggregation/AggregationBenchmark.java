@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypeComplex;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeValue;
+import java.net.URI;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import net.time4j.tz.Timezone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for the code that runs for each Datastream or Observation when
+ * scanning a large server: name parsing, interval calculation and the
+ * checking of aggregate properties. All inputs are synthetic, no server is
+ * needed.
+ *
+ * @author scf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregationBenchmark {
+
+    private static final String[] POSTFIXES = {"", "", " [1 hour]", " [1 day]", " [15 minutes]", " [1 Hours]"};
+    private static final String[] PHENOMENA = {"Temperature", "Humidity", "Pressure", "Wind Speed", "NO2", "PM10"};
+
+    @Param({"100000"})
+    public int count;
+
+    private String[] names;
+    private String[] postfixes;
+    private ZonedDateTime[] times;
+    private TimeValue[] phenTimes;
+    private TimeInterval[] intervals;
+    private MapValue[] properties;
+    private AggregationLevel level;
+    private AggregateCombo combo;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        names = new String[count];
+        postfixes = new String[count];
+        for (int i = 0; i < count; i++) {
+            String postfix = POSTFIXES[random.nextInt(POSTFIXES.length)];
+            names[i] = "Station " + (i / PHENOMENA.length) + " " + PHENOMENA[i % PHENOMENA.length] + postfix;
+            postfixes[i] = postfix.isEmpty() ? "[1 hour]" : postfix;
+        }
+
+        level = new AggregationLevel(ChronoUnit.HOURS, 1);
+        ZoneId zone = ZoneId.of("Europe/Berlin");
+        times = new ZonedDateTime[count];
+        phenTimes = new TimeValue[count];
+        long time = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(20 * 60_000);
+            times[i] = Instant.ofEpochMilli(time).atZone(zone);
+            phenTimes[i] = TimeValue.create(Utils.fromEpochMillis(time), Utils.fromEpochMillis(time + 60_000));
+        }
+
+        SensorThingsV11Sensing sMdl = new SensorThingsV11Sensing();
+        SensorThingsV11MultiDatastream mMdl = new SensorThingsV11MultiDatastream();
+        SensorThingsService service = new SensorThingsService(List.of(sMdl, mMdl))
+                .setBaseUrl(new URI("http://localhost:8080/FROST-Server/v1.1").toURL())
+                .init();
+        MapValue thingProps = new MapValue(TypeComplex.STA_MAP);
+        thingProps.put("timeZone", "Europe/Berlin");
+        Entity thing = new Entity(sMdl.etThing)
+                .setProperty(EP_NAME, "Station 1")
+                .setProperty(EP_PROPERTIES, thingProps);
+        Entity mds = new Entity(mMdl.etMultiDatastream)
+                .setProperty(EP_NAME, "Station 1 Temperature [1 hour]");
+        combo = new AggregateCombo(service, thing, mds);
+        combo.level = level;
+        combo.baseName = "Station 1 Temperature";
+        combo.resolveZoneId(Timezone.ofSystem().getID());
+
+        intervals = new TimeInterval[count];
+        for (int i = 0; i < count; i++) {
+            intervals[i] = combo.calculateIntervalForTime(Utils.getPhenTimeStart(phenTimes[i]));
+        }
+
+        properties = new MapValue[count];
+        for (int i = 0; i < count; i++) {
+            MapValue props = new MapValue(TypeComplex.STA_MAP);
+            props.put(Utils.KEY_AGGREGATE_AMOUNT, 1);
+            props.put(Utils.KEY_AGGREGATE_UNIT, "Hours");
+            props.put(Utils.KEY_AGGREGATE_SOURCE_D, Integer.toString(i));
+            properties[i] = props;
+        }
+    }
+
+    @Benchmark
+    public void postfixPattern(Blackhole bh) {
+        for (String name : names) {
+            Matcher matcher = Utils.POSTFIX_PATTERN.matcher(name);
+            if (matcher.matches()) {
+                bh.consume(matcher.group(1).trim());
+            } else {
+                bh.consume(name);
+            }
+        }
+    }
+
+    @Benchmark
+    public void levelOf(Blackhole bh) {
+        for (String postfix : postfixes) {
+            bh.consume(AggregationLevel.of(postfix));
+        }
+    }
+
+    @Benchmark
+    public void toIntervalStart(Blackhole bh) {
+        for (ZonedDateTime time : times) {
+            bh.consume(level.toIntervalStart(time));
+        }
+    }
+
+    @Benchmark
+    public void calculateIntervalsForTime(Blackhole bh) {
+        for (TimeValue phenTime : phenTimes) {
+            bh.consume(combo.calculateIntervalsForTime(phenTime));
+        }
+    }
+
+    @Benchmark
+    public void replaceIfNotCurrent(Blackhole bh) {
+        for (TimeInterval interval : intervals) {
+            bh.consume(combo.replaceIfNotCurrent(interval));
+        }
+    }
+
+    @Benchmark
+    public void checkProperty(Blackhole bh) {
+        Integer amount = 1;
+        for (int i = 0; i < count; i++) {
+            MapValue props = properties[i];
+            boolean changed = AggregationData.checkProperty(props, Utils.KEY_AGGREGATE_AMOUNT, amount);
+            changed |= AggregationData.checkProperty(props, Utils.KEY_AGGREGATE_UNIT, "Hours");
+            changed |= AggregationData.checkProperty(props, Utils.KEY_AGGREGATE_SOURCE_D, props.get(Utils.KEY_AGGREGATE_SOURCE_D));
+            bh.consume(changed);
+        }
+    }
+}
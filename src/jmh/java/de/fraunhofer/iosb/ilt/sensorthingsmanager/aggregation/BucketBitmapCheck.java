@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Compares {@link BucketBitmap} with a {@link BitSet}, around the conversion
+ * of a container from a 4096 value array to a bitmap, for add, contains,
+ * cardinality, nextSetBit, nextClearBit and andNot. Throws an
+ * IllegalStateException on the first mismatch.
+ *
+ * @author scf
+ */
+public class BucketBitmapCheck {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int CONTAINER = 1 << 16;
+
+    private BucketBitmapCheck() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) {
+        // Every second value of a container, so the array fills up after 4096.
+        BucketBitmap bitmap = new BucketBitmap();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            add(bitmap, expected, CONTAINER + 2 * i);
+        }
+        compare("full array", bitmap, expected);
+        add(bitmap, expected, CONTAINER + 2 * ARRAY_MAX);
+        compare("converted to bitmap", bitmap, expected);
+        add(bitmap, expected, CONTAINER + 1);
+        add(bitmap, expected, CONTAINER + 1);
+        compare("bitmap, added twice", bitmap, expected);
+
+        // A full run across the border of two containers.
+        BucketBitmap run = new BucketBitmap();
+        BitSet runExpected = new BitSet();
+        for (int i = CONTAINER - ARRAY_MAX; i < CONTAINER + ARRAY_MAX + 1; i++) {
+            add(run, runExpected, i);
+        }
+        compare("run across containers", run, runExpected);
+
+        checkAndNot("bitmap - bitmap", bitmap, expected, run, runExpected);
+        checkAndNot("bitmap - array", run, runExpected, sparse(CONTAINER, 100, 7), sparseExpected(CONTAINER, 100, 7));
+        checkAndNot("array - bitmap", sparse(CONTAINER, 3000, 3), sparseExpected(CONTAINER, 3000, 3), bitmap, expected);
+        checkAndNot("missing container", bitmap, expected, sparse(5 * CONTAINER, 10, 1), sparseExpected(5 * CONTAINER, 10, 1));
+        checkAndNot("empty", new BucketBitmap(), new BitSet(), bitmap, expected);
+
+        // A bitmap of 4200 values minus 50 of them: the difference is built
+        // as an array, and converted to a bitmap when it passes 4096.
+        BucketBitmap dense = sparse(0, ARRAY_MAX + 104, 1);
+        BitSet denseExpected = sparseExpected(0, ARRAY_MAX + 104, 1);
+        checkAndNot("array to bitmap in andNot", dense, denseExpected, sparse(10, 50, 2), sparseExpected(10, 50, 2));
+        checkAndNot("exactly 4096 left", dense, denseExpected, sparse(0, 104, 1), sparseExpected(0, 104, 1));
+
+        Random random = new Random(42);
+        BucketBitmap left = new BucketBitmap();
+        BitSet leftExpected = new BitSet();
+        BucketBitmap right = new BucketBitmap();
+        BitSet rightExpected = new BitSet();
+        for (int i = 0; i < 20_000; i++) {
+            add(left, leftExpected, random.nextInt(3 * CONTAINER));
+            add(right, rightExpected, random.nextInt(3 * CONTAINER));
+        }
+        compare("random", left, leftExpected);
+        checkAndNot("random", left, leftExpected, right, rightExpected);
+        System.out.println("BucketBitmap checks OK.");
+    }
+
+    private static void add(BucketBitmap bitmap, BitSet expected, int index) {
+        bitmap.add(index);
+        expected.set(index);
+    }
+
+    private static BucketBitmap sparse(int from, int count, int step) {
+        BucketBitmap bitmap = new BucketBitmap();
+        for (int i = 0; i < count; i++) {
+            bitmap.add(from + i * step);
+        }
+        return bitmap;
+    }
+
+    private static BitSet sparseExpected(int from, int count, int step) {
+        BitSet expected = new BitSet();
+        for (int i = 0; i < count; i++) {
+            expected.set(from + i * step);
+        }
+        return expected;
+    }
+
+    private static void checkAndNot(String name, BucketBitmap left, BitSet leftExpected, BucketBitmap right, BitSet rightExpected) {
+        BitSet expected = (BitSet) leftExpected.clone();
+        expected.andNot(rightExpected);
+        compare(name + ", andNot", left.andNot(right), expected);
+        compare(name + ", left unchanged", left, leftExpected);
+        compare(name + ", right unchanged", right, rightExpected);
+    }
+
+    private static void compare(String name, BucketBitmap bitmap, BitSet expected) {
+        if (bitmap.cardinality() != expected.cardinality()) {
+            fail(name, "cardinality " + bitmap.cardinality() + " != " + expected.cardinality());
+        }
+        if (bitmap.isEmpty() != expected.isEmpty()) {
+            fail(name, "isEmpty " + bitmap.isEmpty() + " != " + expected.isEmpty());
+        }
+        int last = Math.max(expected.length(), 1) + CONTAINER;
+        for (int i = -1; i <= last; i++) {
+            boolean contained = i >= 0 && expected.get(i);
+            if (bitmap.contains(i) != contained) {
+                fail(name, "contains(" + i + ") " + bitmap.contains(i) + " != " + contained);
+            }
+            int nextSet = i < 0 ? expected.nextSetBit(0) : expected.nextSetBit(i);
+            if (bitmap.nextSetBit(i) != nextSet) {
+                fail(name, "nextSetBit(" + i + ") " + bitmap.nextSetBit(i) + " != " + nextSet);
+            }
+        }
+        // nextClearBit walks runs of set values, so only check at the start
+        // of each run, and around the container and array borders.
+        for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(expected.nextClearBit(i))) {
+            checkNextClearBit(name, bitmap, expected, i);
+        }
+        for (int border : new int[]{0, ARRAY_MAX, CONTAINER - 1, CONTAINER, CONTAINER + 2 * ARRAY_MAX, 2 * CONTAINER}) {
+            checkNextClearBit(name, bitmap, expected, border - 1);
+            checkNextClearBit(name, bitmap, expected, border);
+            checkNextClearBit(name, bitmap, expected, border + 1);
+        }
+    }
+
+    private static void checkNextClearBit(String name, BucketBitmap bitmap, BitSet expected, int index) {
+        int nextClear = expected.nextClearBit(Math.max(0, index));
+        if (bitmap.nextClearBit(index) != nextClear) {
+            fail(name, "nextClearBit(" + index + ") " + bitmap.nextClearBit(index) + " != " + nextClear);
+        }
+    }
+
+    private static void fail(String name, String message) {
+        throw new IllegalStateException(name + ": " + message);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.mock.MockStaServer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how the discovery of aggregation bases scales with the number of
+ * Datastreams, by running {@link AggregationData#getAggregationBases()}
+ * against a {@link MockStaServer} in the same JVM.
+ *
+ * Arguments are comma or space separated: numbers are Datastream counts,
+ * {@code latency=N} sets the artificial latency per request in milliseconds.
+ * Other arguments are ignored. The reported peak heap includes the data of
+ * the mock server, which is the same for all runs of the same size.
+ *
+ * @author scf
+ */
+public class DiscoveryBenchmark {
+
+    private static final int DATASTREAMS_PER_THING = 10;
+
+    private DiscoveryBenchmark() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        long latency = 2;
+        for (String arg : args) {
+            for (String item : arg.split("[, ]+")) {
+                if (item.startsWith("latency=")) {
+                    latency = Long.parseLong(item.substring(8));
+                } else if (item.matches("[0-9]+")) {
+                    sizes.add(Integer.valueOf(item));
+                }
+            }
+        }
+        if (sizes.isEmpty()) {
+            sizes = List.of(1_000, 10_000, 100_000);
+        }
+        System.out.println(String.format("%12s %10s %12s %10s %10s %14s", "Datastreams", "Latency", "Wall (ms)", "Requests", "Bases", "Peak heap (MB)"));
+        for (int size : sizes) {
+            run(size, latency);
+        }
+    }
+
+    private static void run(int datastreamCount, long latency) throws Exception {
+        try (MockStaServer server = new MockStaServer(datastreamCount, DATASTREAMS_PER_THING, latency).start()) {
+            SensorThingsService service = new SensorThingsService(List.of(new SensorThingsV11Sensing(), new SensorThingsV11MultiDatastream()))
+                    .setBaseUrl(new URI(server.getBaseUrl()).toURL())
+                    .init();
+            AggregationData data = new AggregationData(service, false, true);
+            System.gc();
+            resetPeakHeap();
+            server.resetCounters();
+            long start = System.nanoTime();
+            int bases = data.getAggregationBases().size();
+            long wallMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(String.format("%12d %10d %12d %10d %10d %14.1f",
+                    datastreamCount, latency, wallMillis, server.getRequestCount(), bases, getPeakHeap() / (1024.0 * 1024.0)));
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Encodes chunks with {@link GorillaCodec} and decodes them again, checking
+ * that every start, end, value and result count comes back bit for bit. The
+ * chunks cover equal timestamps, negative deltas, large jumps, NaN and other
+ * special values. Throws an IllegalStateException on the first mismatch. The
+ * same comparison runs on every segment the {@link ObservationCache} writes.
+ *
+ * @author scf
+ */
+public class GorillaCodecCheck {
+
+    /**
+     * The offset of the encoded words in the buffer, like the header of a
+     * cache segment.
+     */
+    private static final int OFFSET = 40;
+
+    private GorillaCodecCheck() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) {
+        check("empty", new long[0], new long[0], 1, new double[0], null);
+        check("single row", new long[]{1_700_000_000_000L}, new long[]{1_700_000_000_000L}, 1, new double[]{21.5}, null);
+
+        long[] equal = {1000, 1000, 1000, 1000, 2000, 2000};
+        check("equal timestamps", equal, equal.clone(), 1, new double[]{1, 1, 2, 2, 2, 3}, null);
+
+        long[] starts = {5000, 4000, 4000, 1000, 9000, -3000, 0, Long.MIN_VALUE / 2, Long.MAX_VALUE / 2, 10};
+        long[] ends = {5000, 4500, 3000, 1000, 9000 + 86_400_000L, -3000, -1, Long.MIN_VALUE / 2, Long.MAX_VALUE / 2 + 1, 10};
+        double[] specials = {
+            Double.NaN, -0.0,
+            0.0, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.MIN_VALUE, -Double.MAX_VALUE,
+            Double.longBitsToDouble(0x7ff8_0000_0000_0001L), Double.NaN,
+            1.0, 1.0,
+            -1.0, 1e-300,
+            Double.NaN, Double.NaN,
+            123.456, -123.456,
+            Double.MAX_VALUE, 0.1};
+        double[] counts = {1, 5, Double.NaN, 0, 1e6, 1, 1, 2, Double.NaN, 1};
+        check("negative deltas and special values", starts, ends, 2, specials, counts);
+
+        Random random = new Random(42);
+        int size = 10_000;
+        int width = 3;
+        long[] rStarts = new long[size];
+        long[] rEnds = new long[size];
+        double[] rValues = new double[size * width];
+        double[] rCounts = new double[size];
+        long time = 1_600_000_000_000L;
+        for (int row = 0; row < size; row++) {
+            switch (random.nextInt(4)) {
+                case 0 ->
+                    time += 60_000;
+                case 1 ->
+                    time -= random.nextInt(10_000);
+                case 2 ->
+                    time += random.nextLong(1L << 40);
+                default -> {
+                    // Same time as the previous row.
+                }
+            }
+            rStarts[row] = time;
+            rEnds[row] = random.nextBoolean() ? time : time + random.nextInt(3_600_000);
+            for (int col = 0; col < width; col++) {
+                rValues[row * width + col] = switch (random.nextInt(5)) {
+                    case 0 ->
+                        Double.NaN;
+                    case 1 ->
+                        row > 0 ? rValues[(row - 1) * width + col] : 0;
+                    case 2 ->
+                        Math.round(random.nextGaussian() * 100) / 10.0;
+                    default ->
+                        random.nextDouble() * 1000 - 500;
+                };
+            }
+            rCounts[row] = random.nextInt(10) == 0 ? Double.NaN : random.nextInt(100);
+        }
+        check("random", rStarts, rEnds, width, rValues, rCounts);
+        System.out.println("GorillaCodec round trips OK.");
+    }
+
+    private static void check(String name, long[] starts, long[] ends, int width, double[] values, double[] counts) {
+        final int size = starts.length;
+        ObservationStream.Chunk chunk = new ObservationStream.Chunk(size, width, starts, ends, values, counts);
+        GorillaCodec.BitWriter bits = GorillaCodec.encode(chunk);
+        int wordCount = bits.getWordCount();
+        long[] words = bits.getWords();
+        ByteBuffer buffer = ByteBuffer.allocate(OFFSET + 8 * wordCount);
+        for (int i = 0; i < wordCount; i++) {
+            buffer.putLong(OFFSET + 8 * i, words[i]);
+        }
+        ObservationStream.Chunk decoded = GorillaCodec.decode(buffer, OFFSET, size, width, counts != null);
+        String mismatch = GorillaCodec.findMismatch(chunk, decoded);
+        if (mismatch != null) {
+            throw new IllegalStateException(name + ": " + mismatch);
+        }
+        System.out.println(String.format("%-36s %6d rows, %8d bytes", name + ":", size, 8 * wordCount));
+    }
+}
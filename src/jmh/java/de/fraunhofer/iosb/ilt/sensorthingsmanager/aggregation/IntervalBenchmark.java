@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeInterval;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.time4j.Moment;
+import net.time4j.ZonalDateTime;
+import net.time4j.tz.TZID;
+import net.time4j.tz.Timezone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the epoch-millisecond interval calculation of
+ * {@link IntervalCalculator} with the ZonedDateTime and Moment based
+ * calculation it replaces. The setup checks that both calculate the same
+ * intervals, for all times and for the daylight saving time transitions of
+ * 2020 and 2021, and fails if they do not.
+ *
+ * @author scf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntervalBenchmark {
+
+    private static final int COUNT = 100_000;
+    /**
+     * The daylight saving time transitions of Europe/Berlin in 2020 and 2021.
+     */
+    private static final String[] DST_TRANSITIONS = {
+        "2020-03-29T01:00:00Z", "2020-10-25T01:00:00Z", "2021-03-28T01:00:00Z", "2021-10-31T01:00:00Z"};
+
+    @Param({"Europe/Berlin", "UTC"})
+    public String zoneName;
+
+    @Param({"HOURS", "DAYS"})
+    public String unitName;
+
+    private AggregationLevel level;
+    private ZoneId zone;
+    private TZID tzid;
+    private IntervalCalculator calculator;
+    private long[] times;
+    private Moment[] moments;
+
+    @Setup
+    public void setup() {
+        level = new AggregationLevel(ChronoUnit.valueOf(unitName), 1);
+        zone = ZoneId.of(zoneName);
+        tzid = Timezone.of(zoneName).getID();
+        calculator = new IntervalCalculator(level, zone);
+        times = new long[COUNT];
+        moments = new Moment[COUNT];
+        Random random = new Random(42);
+        long time = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+        for (int i = 0; i < COUNT; i++) {
+            // Two years of data, on average one value every ten minutes.
+            time += random.nextInt(20 * 60_000);
+            times[i] = time;
+            moments[i] = Utils.fromEpochMillis(time);
+        }
+        checkSameIntervals();
+    }
+
+    private void checkSameIntervals() {
+        IntervalCalculator.Cursor cursor = calculator.cursor(times[0], times[0]);
+        for (long time : times) {
+            checkSameIntervals(cursor, time, time);
+            checkSameIntervals(cursor, time, time + 86_400_000L);
+        }
+        for (String transition : DST_TRANSITIONS) {
+            long around = Instant.parse(transition).toEpochMilli();
+            for (long time = around - 3 * 3_600_000L; time <= around + 3 * 3_600_000L; time += 15 * 60_000L) {
+                checkSameIntervals(cursor, time, time);
+                checkSameIntervals(cursor, time, time + 3 * 3_600_000L);
+            }
+        }
+    }
+
+    private void checkSameIntervals(IntervalCalculator.Cursor cursor, long from, long to) {
+        List<TimeInterval> expected = legacyIntervals(Utils.fromEpochMillis(from), Utils.fromEpochMillis(to));
+        if (calculator.intervalStart(from) != Utils.toEpochMillis(expected.get(0).getStart())) {
+            throw new IllegalStateException("Different interval start for " + Instant.ofEpochMilli(from) + " in " + zoneName);
+        }
+        cursor.reset(from, to);
+        for (TimeInterval interval : expected) {
+            if (!cursor.next()
+                    || cursor.getStart() != Utils.toEpochMillis(interval.getStart())
+                    || cursor.getEnd() != Utils.toEpochMillis(interval.getEnd())) {
+                throw new IllegalStateException("Different intervals for " + Instant.ofEpochMilli(from) + "/" + Instant.ofEpochMilli(to) + " in " + zoneName + ", expected " + expected);
+            }
+        }
+        if (cursor.next()) {
+            throw new IllegalStateException("Extra intervals for " + Instant.ofEpochMilli(from) + "/" + Instant.ofEpochMilli(to) + " in " + zoneName + ", expected " + expected);
+        }
+    }
+
+    /**
+     * The calculation as it was done before the millisecond fast path.
+     */
+    private List<TimeInterval> legacyIntervals(Moment phenTimeStart, Moment phenTimeEnd) {
+        List<TimeInterval> retval = new ArrayList<>();
+        ZonalDateTime atZone = phenTimeStart.inZonalView(tzid);
+        Moment intStart = ZonalDateTime.from(level.toIntervalStart(atZone.toTemporalAccessor())).toMoment();
+        Moment intEnd = Moment.from(intStart.toTemporalAccessor().plus(level.amount, level.unit));
+        retval.add(TimeInterval.create(intStart, intEnd));
+        while (intEnd.isBefore(phenTimeEnd)) {
+            intStart = intEnd;
+            intEnd = Moment.from(intStart.toTemporalAccessor().plus(level.amount, level.unit));
+            retval.add(TimeInterval.create(intStart, intEnd));
+        }
+        return retval;
+    }
+
+    @Benchmark
+    public void legacyIntervalsForTime(Blackhole bh) {
+        for (Moment moment : moments) {
+            bh.consume(legacyIntervals(moment, moment));
+        }
+    }
+
+    @Benchmark
+    public void toIntervalStart(Blackhole bh) {
+        for (long time : times) {
+            bh.consume(level.toIntervalStart(Instant.ofEpochMilli(time).atZone(zone)));
+        }
+    }
+
+    @Benchmark
+    public void fastIntervalStart(Blackhole bh) {
+        for (long time : times) {
+            bh.consume(calculator.intervalStart(time));
+        }
+    }
+
+    @Benchmark
+    public void fastIntervalsForTime(Blackhole bh) {
+        IntervalCalculator.Cursor cursor = calculator.cursor(times[0], times[0]);
+        for (long time : times) {
+            cursor.reset(time, time);
+            while (cursor.next()) {
+                bh.consume(cursor.getStart());
+                bh.consume(cursor.getEnd());
+            }
+        }
+    }
+
+    @Benchmark
+    public void legacyIntervalsForDay(Blackhole bh) {
+        for (int i = 0; i < COUNT; i += 100) {
+            Moment start = moments[i];
+            bh.consume(legacyIntervals(start, Utils.fromEpochMillis(times[i] + 86_400_000L)));
+        }
+    }
+
+    @Benchmark
+    public void fastIntervalsForDay(Blackhole bh) {
+        IntervalCalculator.Cursor cursor = calculator.cursor(times[0], times[0]);
+        for (int i = 0; i < COUNT; i += 100) {
+            cursor.reset(times[i], times[i] + 86_400_000L);
+            while (cursor.next()) {
+                bh.consume(cursor.getStart());
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.mock.MockStaServer;
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Runs the {@link LiveAggregator} against an embedded MQTT broker and a
+ * {@link MockStaServer}. Observations are published for all raw sources,
+ * one per minute over several hours, and the number of intervals written and
+ * recalculated is reported.
+ *
+ * The optional arguments are the number of Datastreams (default 100) and the
+ * number of hours to publish (default 4).
+ *
+ * @author scf
+ */
+public class LiveAggregatorHarness {
+
+    private LiveAggregatorHarness() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) throws Exception {
+        int datastreamCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int hours = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Properties brokerProps = new Properties();
+        brokerProps.setProperty("host", "127.0.0.1");
+        brokerProps.setProperty("port", Integer.toString(port));
+        brokerProps.setProperty("allow_anonymous", "true");
+        brokerProps.setProperty("persistence_enabled", "false");
+        Server broker = new Server();
+        broker.startServer(new MemoryConfig(brokerProps));
+        String brokerUrl = "tcp://127.0.0.1:" + port;
+
+        try (MockStaServer sta = new MockStaServer(datastreamCount, 10, 0).start()) {
+            SensorThingsService service = new SensorThingsService(List.of(new SensorThingsV11Sensing(), new SensorThingsV11MultiDatastream()))
+                    .setBaseUrl(new URI(sta.getBaseUrl()).toURL())
+                    .init();
+            AggregationData data = new AggregationData(service, false, true);
+            List<String> rawTopics = new ArrayList<>();
+            for (String topic : data.getComboBySource().keySet()) {
+                if (topic.contains("/Datastreams(")) {
+                    rawTopics.add(topic);
+                }
+            }
+            LiveAggregator live = new LiveAggregator(service, data).setGraceMillis(1000);
+            live.start(brokerUrl);
+            sta.resetCounters();
+
+            MqttClient publisher = new MqttClient(brokerUrl, "LiveAggregatorHarness", new MemoryPersistence());
+            publisher.connect();
+            Instant start = Instant.now().truncatedTo(ChronoUnit.HOURS).minus(hours + 1L, ChronoUnit.HOURS).plus(17, ChronoUnit.MINUTES);
+            int published = 0;
+            long startNanos = System.nanoTime();
+            for (int minute = 0; minute < hours * 60; minute++) {
+                String time = start.plus(minute, ChronoUnit.MINUTES).toString();
+                for (String topic : rawTopics) {
+                    String payload = "{\"phenomenonTime\":\"" + time + "\",\"result\":" + (minute % 60) + "}";
+                    MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+                    message.setQos(0);
+                    publisher.publish(topic, message);
+                    published++;
+                }
+            }
+            publisher.disconnect();
+            publisher.close();
+            // Let the timer flush the last intervals.
+            Thread.sleep(3000);
+            long wallMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            live.stop();
+
+            System.out.println("Topics:                 " + rawTopics.size());
+            System.out.println("Published:              " + published);
+            System.out.println("Received:               " + live.getMessagesReceived());
+            System.out.println("Intervals written:      " + live.getIntervalsFlushed());
+            System.out.println("Intervals recalculated: " + live.getIntervalsRecalculated());
+            System.out.println("STA requests:           " + sta.getRequestCount());
+            System.out.println("STA writes:             " + sta.getWriteCount());
+            System.out.println("Wall time (ms):         " + wallMillis);
+        } finally {
+            broker.stopServer();
+        }
+    }
+}
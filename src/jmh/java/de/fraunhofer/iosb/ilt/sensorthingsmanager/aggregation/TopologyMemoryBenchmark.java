@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_DESCRIPTION;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_UNITOFMEASUREMENT;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostclient.model.PkValue;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypeComplex;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.UnitOfMeasurement;
+import java.net.URI;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import net.time4j.tz.Timezone;
+
+/**
+ * Compares the retained heap of the aggregation topology when holding the
+ * full entities loaded during discovery, with the stub-based bases created
+ * by {@link TopologyStubs}, that the manager keeps after discovery.
+ *
+ * The optional argument is the number of combos, 100000 by default. Each
+ * base has an hourly and a daily combo, and each Thing has ten bases.
+ *
+ * @author scf
+ */
+public class TopologyMemoryBenchmark {
+
+    private static final int BASES_PER_THING = 10;
+
+    private TopologyMemoryBenchmark() {
+        // Utility class.
+    }
+
+    public static void main(String[] args) throws Exception {
+        int comboCount = 100_000;
+        for (String arg : args) {
+            if (arg.matches("[0-9]+")) {
+                comboCount = Integer.parseInt(arg);
+            }
+        }
+        SensorThingsV11Sensing sMdl = new SensorThingsV11Sensing();
+        SensorThingsV11MultiDatastream mMdl = new SensorThingsV11MultiDatastream();
+        SensorThingsService service = new SensorThingsService(List.of(sMdl, mMdl))
+                .setBaseUrl(new URI("http://localhost:8080/FROST-Server/v1.1").toURL())
+                .init();
+
+        long before = usedHeap();
+        List<AggregationBase> full = createFullBases(service, sMdl, mMdl, comboCount / 2);
+        long withFull = usedHeap();
+        final int baseCount = full.size();
+        List<AggregationBase> stubs = TopologyStubs.stubBases(service, full, Timezone.ofSystem().getID());
+        full = null;
+        long withStubs = usedHeap();
+
+        System.out.println("Combos:        " + comboCount);
+        System.out.println("Bases:         " + baseCount);
+        System.out.println(String.format("Full entities: %8.1f MB", mb(withFull - before)));
+        System.out.println(String.format("Stub bases:    %8.1f MB", mb(withStubs - before)));
+        if (stubs.size() != baseCount) {
+            throw new IllegalStateException("Lost bases while stubbing.");
+        }
+    }
+
+    private static List<AggregationBase> createFullBases(SensorThingsService service, SensorThingsV11Sensing sMdl, SensorThingsV11MultiDatastream mMdl, int baseCount) {
+        AggregationLevel hour = new AggregationLevel(ChronoUnit.HOURS, 1);
+        AggregationLevel day = new AggregationLevel(ChronoUnit.DAYS, 1);
+        List<AggregationBase> bases = new ArrayList<>(baseCount);
+        Entity thing = null;
+        long mdsId = 0;
+        for (int i = 0; i < baseCount; i++) {
+            if (i % BASES_PER_THING == 0) {
+                MapValue thingProps = new MapValue(TypeComplex.STA_MAP);
+                thingProps.put("timeZone", "Europe/Berlin");
+                thingProps.put("owner", "Station operator " + (i / BASES_PER_THING));
+                thingProps.put("region", "Region " + (i % 17));
+                thing = entity(service, sMdl.etThing, i / BASES_PER_THING + 1)
+                        .setProperty(EP_NAME, "Station " + (i / BASES_PER_THING))
+                        .setProperty(EP_DESCRIPTION, "Measuring station number " + (i / BASES_PER_THING))
+                        .setProperty(EP_PROPERTIES, thingProps);
+            }
+            String baseName = thing.getProperty(EP_NAME) + " Sensor " + (i % BASES_PER_THING);
+            MapValue dsProps = new MapValue(TypeComplex.STA_MAP);
+            dsProps.put("medium", "air");
+            dsProps.put("installed", "2020-01-01");
+            Entity baseDs = entity(service, sMdl.etDatastream, i + 1)
+                    .setProperty(EP_NAME, baseName)
+                    .setProperty(EP_DESCRIPTION, "The raw measurements of " + baseName)
+                    .setProperty(EP_PROPERTIES, dsProps)
+                    .setProperty(EP_UNITOFMEASUREMENT, new UnitOfMeasurement("degree Celsius", "°C", "http://unitsofmeasure.org/ucum.html#para-30"));
+            AggregationBase base = new AggregationBase(baseName);
+            base.setBaseDatastream(baseDs);
+
+            AggregateCombo hourly = combo(service, mMdl, thing, ++mdsId, baseName, hour, "/Datastreams(" + (i + 1) + ")", Utils.KEY_AGGREGATE_SOURCE_D, Long.toString(i + 1L));
+            hourly.sourceDs = baseDs;
+            base.addCombo(hourly);
+            AggregateCombo daily = combo(service, mMdl, thing, ++mdsId, baseName, day, "/MultiDatastreams(" + (mdsId - 1) + ")", Utils.KEY_AGGREGATE_SOURCE_MD, Long.toString(mdsId - 1));
+            daily.sourceMds = hourly.targetMds;
+            daily.sourceIsAggregate = true;
+            base.addCombo(daily);
+            bases.add(base);
+        }
+        return bases;
+    }
+
+    private static AggregateCombo combo(SensorThingsService service, SensorThingsV11MultiDatastream mMdl, Entity thing, long id, String baseName, AggregationLevel level, String aggregateFor, String sourceKey, String sourceId) {
+        MapValue props = new MapValue(TypeComplex.STA_MAP);
+        props.put(Utils.KEY_AGGREGATE_FOR, aggregateFor);
+        props.put(Utils.KEY_AGGREGATE_AMOUNT, level.amount);
+        props.put(Utils.KEY_AGGREGATE_UNIT, level.unit.toString());
+        props.put(sourceKey, sourceId);
+        Entity mds = entity(service, mMdl.etMultiDatastream, id)
+                .setProperty(EP_NAME, baseName + " " + level.toPostFix())
+                .setProperty(EP_DESCRIPTION, baseName + " aggregated per " + level.amount + " " + level.unit)
+                .setProperty(EP_PROPERTIES, props);
+        AggregateCombo combo = new AggregateCombo(service, thing, mds);
+        combo.baseName = baseName;
+        combo.level = level;
+        combo.resolveZoneId(Timezone.ofSystem().getID());
+        return combo;
+    }
+
+    private static Entity entity(SensorThingsService service, EntityType type, long id) {
+        Entity entity = new Entity(type);
+        entity.setPrimaryKeyValues(PkValue.of(id));
+        entity.setService(service);
+        return entity;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double mb(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+}
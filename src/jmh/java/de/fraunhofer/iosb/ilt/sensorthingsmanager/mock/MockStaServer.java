@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.mock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal, in-JVM SensorThings API v1.1 server with the MultiDatastream
+ * extension, serving generated Things, Datastreams and MultiDatastreams.
+ *
+ * It supports what the aggregation code uses: $top, $skip with nextLinks,
+ * $count, $select, $expand (one level, with $top, $skip and $select) and
+ * $filter with OR-ed terms of the forms {@code name eq 'x'},
+ * {@code id eq 1}, {@code id gt 1} and {@code startswith(name,'x')}.
+ * Results are always ordered by id. Writes are accepted and counted, but not
+ * applied. Observations of any entity are always an empty set.
+ *
+ * Half of the generated Datastreams get an hourly and a daily aggregate
+ * MultiDatastream, with properties pointing to their source, as created by
+ * the aggregation manager.
+ *
+ * @author scf
+ */
+public class MockStaServer implements AutoCloseable {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MockStaServer.class);
+
+    private static final String BASE_PATH = "/FROST-Server/v1.1";
+    private static final int MAX_TOP = 10_000;
+    private static final Pattern PATH_PATTERN = Pattern.compile("/([A-Za-z]+)(?:\\(([0-9]+)\\))?(?:/([A-Za-z]+))?");
+    private static final Pattern TERM_ID_GT = Pattern.compile("id gt ([0-9]+)");
+    private static final Pattern TERM_ID_EQ = Pattern.compile("id eq '?([0-9]+)'?");
+    private static final Pattern TERM_NAME_EQ = Pattern.compile("name eq '((?:[^']|'')*)'");
+    private static final Pattern TERM_STARTSWITH = Pattern.compile("startswith\\(name,'((?:[^']|'')*)'\\)");
+
+    private static final class MockEntity {
+
+        final long id;
+        final String set;
+        final Map<String, Object> fields = new LinkedHashMap<>();
+        MockEntity thing;
+        final List<MockEntity> datastreams = new ArrayList<>();
+        final List<MockEntity> multiDatastreams = new ArrayList<>();
+
+        MockEntity(String set, long id) {
+            this.set = set;
+            this.id = id;
+        }
+
+        String name() {
+            return (String) fields.get("name");
+        }
+    }
+
+    private final Map<String, List<MockEntity>> entitySets = new HashMap<>();
+    private final Map<String, Map<Long, MockEntity>> entitiesById = new HashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final long latencyMillis;
+    private HttpServer server;
+
+    /**
+     * Creates a new mock server, with generated data.
+     *
+     * @param datastreamCount The number of Datastreams to generate.
+     * @param datastreamsPerThing The number of Datastreams per Thing.
+     * @param latencyMillis The artificial latency added to each request.
+     */
+    public MockStaServer(int datastreamCount, int datastreamsPerThing, long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        generate(datastreamCount, datastreamsPerThing);
+    }
+
+    private void generate(int datastreamCount, int datastreamsPerThing) {
+        List<MockEntity> things = new ArrayList<>();
+        List<MockEntity> datastreams = new ArrayList<>();
+        List<MockEntity> multiDatastreams = new ArrayList<>();
+        MockEntity thing = null;
+        for (int i = 0; i < datastreamCount; i++) {
+            if (i % datastreamsPerThing == 0) {
+                thing = new MockEntity("Things", things.size() + 1L);
+                thing.fields.put("name", "Station " + thing.id);
+                thing.fields.put("description", "A generated Thing");
+                thing.fields.put("properties", Map.of("timeZone", "Europe/Berlin"));
+                things.add(thing);
+            }
+            MockEntity ds = new MockEntity("Datastreams", i + 1L);
+            ds.thing = thing;
+            ds.fields.put("name", thing.name() + " Sensor " + (i % datastreamsPerThing));
+            ds.fields.put("description", "A generated Datastream");
+            ds.fields.put("properties", Collections.emptyMap());
+            ds.fields.put("unitOfMeasurement", unit());
+            ds.fields.put("observationType", "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement");
+            thing.datastreams.add(ds);
+            datastreams.add(ds);
+            if (i % 2 == 0) {
+                MockEntity hourly = createAggregate(multiDatastreams, thing, ds.name(), "[1 hour]", 1, "Hours", "Datastream", ds.id);
+                createAggregate(multiDatastreams, thing, ds.name(), "[1 day]", 1, "Days", "MultiDatastream", hourly.id);
+            }
+        }
+        register("Things", things);
+        register("Datastreams", datastreams);
+        register("MultiDatastreams", multiDatastreams);
+        LOGGER.info("Generated {} Things, {} Datastreams and {} MultiDatastreams.", things.size(), datastreams.size(), multiDatastreams.size());
+    }
+
+    private static MockEntity createAggregate(List<MockEntity> target, MockEntity thing, String baseName, String postfix, int amount, String unit, String sourceType, long sourceId) {
+        MockEntity mds = new MockEntity("MultiDatastreams", target.size() + 1L);
+        mds.thing = thing;
+        mds.fields.put("name", baseName + " " + postfix);
+        mds.fields.put("description", "A generated aggregate");
+        Map<String, Object> props = new LinkedHashMap<>();
+        props.put("aggregateAmount", amount);
+        props.put("aggregateUnit", unit);
+        props.put("aggregateSource." + sourceType + "@iot.id", sourceId);
+        props.put("aggregateFor", "/" + sourceType + "s(" + sourceId + ")");
+        mds.fields.put("properties", props);
+        mds.fields.put("unitOfMeasurements", Arrays.asList(unit(), unit(), unit(), unit()));
+        mds.fields.put("multiObservationDataTypes", Collections.nCopies(4, "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement"));
+        thing.multiDatastreams.add(mds);
+        target.add(mds);
+        return mds;
+    }
+
+    private static Map<String, Object> unit() {
+        Map<String, Object> unit = new LinkedHashMap<>();
+        unit.put("name", "degree Celsius");
+        unit.put("symbol", "°C");
+        unit.put("definition", "http://unitsofmeasure.org/ucum.html#para-30");
+        return unit;
+    }
+
+    private void register(String set, List<MockEntity> entities) {
+        entitySets.put(set, entities);
+        Map<Long, MockEntity> byId = new HashMap<>();
+        for (MockEntity entity : entities) {
+            byId.put(entity.id, entity);
+        }
+        entitiesById.put(set, byId);
+    }
+
+    /**
+     * Starts the server on a free port on the loopback interface.
+     *
+     * @return this.
+     * @throws IOException If the server can not be started.
+     */
+    public MockStaServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext(BASE_PATH, this::handle);
+        server.start();
+        LOGGER.info("Mock server running at {}", getBaseUrl());
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + BASE_PATH;
+    }
+
+    /**
+     * @return The number of requests handled so far.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return The number of write requests (POST, PATCH, PUT, DELETE) so far.
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public void resetCounters() {
+        requestCount.set(0);
+        writeCount.set(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+        }
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            String method = exchange.getRequestMethod();
+            if (!"GET".equals(method)) {
+                writeCount.incrementAndGet();
+                int status = "POST".equals(method) ? 201 : 200;
+                if (status == 201) {
+                    exchange.getResponseHeaders().add("Location", getBaseUrl() + exchange.getRequestURI().getPath().substring(BASE_PATH.length()) + "(" + (1_000_000 + writeCount.get()) + ")");
+                }
+                send(exchange, status, "");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (path.isEmpty() || "/".equals(path)) {
+                send(exchange, 200, landingPage());
+                return;
+            }
+            send(exchange, 200, handleGet(path, params));
+        } catch (IllegalArgumentException ex) {
+            LOGGER.warn("Bad request {}: {}", exchange.getRequestURI(), ex.getMessage());
+            send(exchange, 400, "{\"code\":400,\"message\":\"" + escape(ex.getMessage()) + "\"}");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "");
+        }
+    }
+
+    private String handleGet(String path, Map<String, String> params) {
+        Matcher matcher = PATH_PATTERN.matcher(path);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unsupported path " + path);
+        }
+        String set = matcher.group(1);
+        String id = matcher.group(2);
+        String nav = matcher.group(3);
+        if (!entitySets.containsKey(set)) {
+            throw new IllegalArgumentException("Unknown entity set " + set);
+        }
+        if (id == null) {
+            return collection(set, path, entitySets.get(set), params);
+        }
+        MockEntity entity = entitiesById.get(set).get(Long.valueOf(id));
+        if (entity == null) {
+            throw new IllegalArgumentException("No such entity " + path);
+        }
+        if (nav == null) {
+            StringBuilder json = new StringBuilder();
+            writeEntity(json, entity, params);
+            return json.toString();
+        }
+        if ("Observations".equals(nav)) {
+            // Observations are not generated, writes are only counted.
+            return "{\"@iot.count\":0,\"value\":[]}";
+        }
+        return collection(nav, path, navigate(entity, nav), params);
+    }
+
+    private static List<MockEntity> navigate(MockEntity entity, String nav) {
+        switch (nav) {
+            case "Datastreams":
+                return entity.datastreams;
+            case "MultiDatastreams":
+                return entity.multiDatastreams;
+            default:
+                throw new IllegalArgumentException("Unsupported navigation " + nav);
+        }
+    }
+
+    private String collection(String set, String path, List<MockEntity> source, Map<String, String> params) {
+        Predicate<MockEntity> filter = parseFilter(params.get("$filter"));
+        int top = Math.min(MAX_TOP, Integer.parseInt(params.getOrDefault("$top", "100")));
+        int skip = Integer.parseInt(params.getOrDefault("$skip", "0"));
+        boolean count = "true".equals(params.get("$count"));
+        List<MockEntity> matching = source;
+        if (filter != null) {
+            matching = new ArrayList<>();
+            for (MockEntity entity : source) {
+                if (filter.test(entity)) {
+                    matching.add(entity);
+                }
+            }
+        }
+        StringBuilder json = new StringBuilder("{");
+        if (count) {
+            json.append("\"@iot.count\":").append(matching.size()).append(',');
+        }
+        int end = Math.min(matching.size(), skip + top);
+        if (end < matching.size()) {
+            Map<String, String> next = new LinkedHashMap<>(params);
+            next.put("$skip", Integer.toString(end));
+            next.remove("$count");
+            json.append("\"@iot.nextLink\":\"").append(escape(getBaseUrl() + path + "?" + toQuery(next))).append("\",");
+        }
+        json.append("\"value\":[");
+        for (int i = skip; i < end; i++) {
+            if (i > skip) {
+                json.append(',');
+            }
+            writeEntity(json, matching.get(i), params);
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private void writeEntity(StringBuilder json, MockEntity entity, Map<String, String> params) {
+        Set<String> select = parseList(params.get("$select"), ",");
+        json.append("{\"@iot.selfLink\":\"").append(getBaseUrl()).append('/').append(entity.set).append('(').append(entity.id).append(")\"");
+        if (select.isEmpty() || select.contains("id")) {
+            json.append(",\"@iot.id\":").append(entity.id);
+        }
+        for (Map.Entry<String, Object> field : entity.fields.entrySet()) {
+            if (select.isEmpty() || select.contains(field.getKey())) {
+                json.append(",\"").append(field.getKey()).append("\":");
+                writeValue(json, field.getValue());
+            }
+        }
+        String expand = params.get("$expand");
+        if (expand == null || expand.isEmpty()) {
+            return;
+        }
+        for (String item : splitTopLevel(expand, ',')) {
+            int paren = item.indexOf('(');
+            String nav = paren < 0 ? item.trim() : item.substring(0, paren).trim();
+            Map<String, String> subParams = new HashMap<>();
+            if (paren > 0) {
+                for (String option : splitTopLevel(item.substring(paren + 1, item.lastIndexOf(')')), ';')) {
+                    int eq = option.indexOf('=');
+                    subParams.put(option.substring(0, eq).trim(), option.substring(eq + 1).trim());
+                }
+            }
+            if ("Thing".equals(nav)) {
+                if (entity.thing != null) {
+                    json.append(",\"Thing\":");
+                    writeEntity(json, entity.thing, subParams);
+                }
+                continue;
+            }
+            List<MockEntity> related = navigate(entity, nav);
+            int top = Math.min(MAX_TOP, Integer.parseInt(subParams.getOrDefault("$top", "100")));
+            int end = Math.min(related.size(), top);
+            json.append(",\"").append(nav).append("\":[");
+            for (int i = 0; i < end; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                writeEntity(json, related.get(i), subParams);
+            }
+            json.append(']');
+            if (end < related.size()) {
+                Map<String, String> next = new LinkedHashMap<>(subParams);
+                next.put("$skip", Integer.toString(end));
+                json.append(",\"").append(nav).append("@iot.nextLink\":\"")
+                        .append(escape(getBaseUrl() + "/" + entity.set + "(" + entity.id + ")/" + nav + "?" + toQuery(next)))
+                        .append('"');
+            }
+        }
+        json.append('}');
+    }
+
+    private static Predicate<MockEntity> parseFilter(String filter) {
+        if (filter == null || filter.isBlank()) {
+            return null;
+        }
+        List<Predicate<MockEntity>> terms = new ArrayList<>();
+        for (String term : splitOr(filter)) {
+            terms.add(parseTerm(term.trim()));
+        }
+        return entity -> {
+            for (Predicate<MockEntity> term : terms) {
+                if (term.test(entity)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static Predicate<MockEntity> parseTerm(String term) {
+        Matcher matcher = TERM_ID_GT.matcher(term);
+        if (matcher.matches()) {
+            long value = Long.parseLong(matcher.group(1));
+            return entity -> entity.id > value;
+        }
+        matcher = TERM_ID_EQ.matcher(term);
+        if (matcher.matches()) {
+            long value = Long.parseLong(matcher.group(1));
+            return entity -> entity.id == value;
+        }
+        matcher = TERM_NAME_EQ.matcher(term);
+        if (matcher.matches()) {
+            String value = matcher.group(1).replace("''", "'");
+            return entity -> value.equals(entity.name());
+        }
+        matcher = TERM_STARTSWITH.matcher(term);
+        if (matcher.matches()) {
+            String value = matcher.group(1).replace("''", "'");
+            return entity -> entity.name() != null && entity.name().startsWith(value);
+        }
+        throw new IllegalArgumentException("Unsupported filter term: " + term);
+    }
+
+    /**
+     * Splits the filter on " or ", ignoring occurrences inside quotes.
+     */
+    private static List<String> splitOr(String filter) {
+        List<String> parts = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < filter.length(); i++) {
+            char c = filter.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && filter.startsWith(" or ", i)) {
+                parts.add(filter.substring(start, i));
+                start = i + 4;
+                i += 3;
+            }
+        }
+        parts.add(filter.substring(start));
+        return parts;
+    }
+
+    private static List<String> splitTopLevel(String value, char separator) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == separator && depth == 0) {
+                parts.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(value.substring(start));
+        return parts;
+    }
+
+    private static Set<String> parseList(String value, String separator) {
+        Set<String> result = new LinkedHashSet<>();
+        if (value == null) {
+            return result;
+        }
+        for (String item : value.split(separator)) {
+            if (!item.isBlank()) {
+                result.add(item.trim());
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            params.put(
+                    URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static String toQuery(Map<String, String> params) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(entry.getKey()).append('=')
+                    .append(URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return query.toString();
+    }
+
+    private String landingPage() {
+        StringBuilder json = new StringBuilder("{\"serverSettings\":{\"conformance\":[");
+        json.append("\"http://www.opengis.net/spec/iot_sensing/1.1/req/datamodel\",");
+        json.append("\"http://www.opengis.net/spec/iot_sensing/1.1/req/request-data\",");
+        json.append("\"http://www.opengis.net/spec/iot_sensing/1.1/req/create-update-delete\",");
+        json.append("\"http://www.opengis.net/spec/iot_sensing/1.1/req/multi-datastream\"");
+        json.append("]},\"value\":[");
+        boolean first = true;
+        for (String set : List.of("Things", "Datastreams", "MultiDatastreams")) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"name\":\"").append(set).append("\",\"url\":\"").append(getBaseUrl()).append('/').append(set).append("\"}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static void writeValue(StringBuilder json, Object value) {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else if (value instanceof Map<?, ?> map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append('"').append(escape(entry.getKey().toString())).append("\":");
+                writeValue(json, entry.getValue());
+            }
+            json.append('}');
+        } else if (value instanceof List<?> list) {
+            json.append('[');
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                writeValue(json, list.get(i));
+            }
+            json.append(']');
+        } else {
+            json.append('"').append(escape(value.toString())).append('"');
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
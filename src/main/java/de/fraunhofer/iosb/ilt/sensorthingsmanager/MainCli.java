@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.AggregateCombo;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.AggregationBase;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.AggregationData;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.AggregationLevel;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.AggregationSpec;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.ApplyEngine;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.BackfillScheduler;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.CoverageAnalyser;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.LagMonitor;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.ObservationCache;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.ReferenceRepairQueue;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.SensorThingsUtils;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.SpecReconciler;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.TopologySnapshot;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.Utils;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.Server;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ServerListEntry;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import net.time4j.Moment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.node.ArrayNode;
+import tools.jackson.databind.node.ObjectNode;
+
+/**
+ * Runs the aggregation functions of the manager without a GUI, for instance
+ * from cron. The JavaFX toolkit is never started. Servers are taken from the
+ * servers.json file of the GUI, or given by url. The result of each command
+ * is written as a JSON report.
+ *
+ * @author scf
+ */
+public class MainCli {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MainCli.class);
+
+    private static final String USAGE = """
+            Usage: MainCli [options] <command>
+
+            Commands:
+              discover     Load all aggregation bases and list them, with the references that need repairs.
+              repair       Discover, and repair incorrect references.
+              levels       Discover, and add or remove aggregate levels, see --add and --remove.
+              recalculate  Discover, and re-calculate the aggregates from --from to --to.
+              gaps         Discover, and find missing aggregates from --from to --to. Fills them with --fill.
+              lag          Discover, and list the aggregates that are the most behind their sources.
+              reconcile    Discover, and create or delete levels to match the spec given with --spec.
+
+            Options:
+              --servers <file>   The server list to use, default servers.json.
+              --server <name>    The name of the server in the server list.
+              --url <url>        The url of the server, instead of --server.
+              --bases <regex>    Only work on bases with a name matching the regular expression.
+              --snapshot         Use the local topology snapshot for discovery.
+              --add <levels>     The levels to add, comma separated, like "1 hours,1 days".
+              --remove <levels>  The levels to remove, comma separated.
+              --from <time>      The start of the period, ISO 8601.
+              --to <time>        The end of the period, ISO 8601, default the start of today.
+              --server-side      Let the server re-calculate, instead of calculating locally.
+              --no-rollup        Calculate all levels from the raw data.
+              --cache            Cache raw Observations locally.
+              --fill             Re-calculate the gaps that are found.
+              --top <count>      The number of entries to list for lag, default 100.
+              --spec <file>      The aggregation spec for reconcile.
+              --dry-run          Only report the changes reconcile would make.
+              --report <file>    The file to write the report to, default standard out.
+
+            The exit code is 0 on success, 1 if anything failed, and 2 for invalid arguments.
+            """;
+
+    private static final Set<String> COMMANDS = Set.of("discover", "repair", "levels", "recalculate", "gaps", "lag", "reconcile");
+
+    private final Map<String, String> options = new HashMap<>();
+    private String command;
+    private SensorThingsService service;
+    private String serverUrl;
+    private final ObjectMapper mapper = ObjectMapperFactory.get();
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        MainCli cli = new MainCli();
+        int exitCode;
+        try {
+            cli.parseArgs(args);
+            exitCode = cli.run();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            exitCode = 2;
+        } catch (ConfigurationException | IOException | URISyntaxException | ServiceFailureException ex) {
+            LOGGER.error("Failed to run {}.", cli.command, ex);
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (command != null) {
+                    throw new IllegalArgumentException("Only one command can be given, found " + command + " and " + arg);
+                }
+                command = arg;
+                continue;
+            }
+            String name = arg.substring(2);
+            switch (name) {
+                case "snapshot", "server-side", "no-rollup", "cache", "fill", "dry-run" ->
+                    options.put(name, "true");
+                case "servers", "server", "url", "bases", "add", "remove", "from", "to", "top", "spec", "report" -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("Missing value for " + arg);
+                    }
+                    options.put(name, args[++i]);
+                }
+                default ->
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (command == null) {
+            throw new IllegalArgumentException("No command given.");
+        }
+        if (!COMMANDS.contains(command)) {
+            throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    private boolean hasOption(String name) {
+        return options.containsKey(name);
+    }
+
+    private int run() throws ConfigurationException, IOException, URISyntaxException, ServiceFailureException {
+        connect();
+        ObjectNode report = mapper.createObjectNode();
+        report.put("command", command);
+        report.put("server", serverUrl);
+        report.put("started", Instant.now().toString());
+
+        AggregationData data = discover();
+        List<AggregationBase> bases = selectBases(data);
+        report.put("bases", bases.size());
+
+        int exitCode = switch (command) {
+            case "discover" ->
+                runDiscover(data, bases, report);
+            case "repair" ->
+                runRepair(data, report);
+            case "levels" ->
+                runLevels(bases, report);
+            case "recalculate" ->
+                runRecalculate(bases, report);
+            case "gaps" ->
+                runGaps(bases, report);
+            case "lag" ->
+                runLag(bases, report);
+            case "reconcile" ->
+                runReconcile(bases, report);
+            default ->
+                throw new IllegalArgumentException("Unknown command " + command);
+        };
+        report.put("finished", Instant.now().toString());
+        writeReport(report);
+        return exitCode;
+    }
+
+    private void connect() throws ConfigurationException, IOException, URISyntaxException {
+        Server server;
+        if (hasOption("url")) {
+            server = new Server().setUrl(options.get("url"));
+        } else if (hasOption("server")) {
+            server = findServer(options.get("server"));
+        } else {
+            throw new IllegalArgumentException("Either --server or --url must be given.");
+        }
+        serverUrl = server.getUrl();
+        service = new SensorThingsService(server.getDataModels())
+                .setBaseUrl(new URI(serverUrl).toURL())
+                .setAuthMethod(server.getAuthMethod())
+                .init();
+        LOGGER.info("Connected to {}", serverUrl);
+    }
+
+    private Server findServer(String name) throws ConfigurationException, IOException {
+        File serversFile = new File(options.getOrDefault("servers", "servers.json"));
+        List<ServerListEntry> servers;
+        try (Reader reader = new FileReader(serversFile, StandardCharsets.UTF_8)) {
+            servers = new Gson().fromJson(reader, new TypeToken<List<ServerListEntry>>() {
+            }.getType());
+        }
+        for (ServerListEntry entry : servers) {
+            if (name.equals(entry.getName())) {
+                Server server = new Server();
+                server.configure(entry.getJsonElement(), null, null, null);
+                return server;
+            }
+        }
+        throw new IllegalArgumentException("No server named '" + name + "' in " + serversFile);
+    }
+
+    private AggregationData discover() {
+        AggregationData data = new AggregationData(service, false, true);
+        if (hasOption("snapshot")) {
+            data.setSnapshotFile(TopologySnapshot.fileFor(new File(TopologySnapshot.DEFAULT_DIRECTORY), serverUrl), serverUrl);
+        }
+        data.getAggregationBases();
+        return data;
+    }
+
+    private List<AggregationBase> selectBases(AggregationData data) {
+        List<AggregationBase> bases = new ArrayList<>();
+        Pattern filter = hasOption("bases") ? Pattern.compile(options.get("bases")) : null;
+        for (AggregationBase base : data.getAggregationBases()) {
+            if (filter == null || filter.matcher(base.getBaseName()).matches()) {
+                bases.add(base);
+            }
+        }
+        return bases;
+    }
+
+    private int runDiscover(AggregationData data, List<AggregationBase> bases, ObjectNode report) {
+        ArrayNode basesNode = report.putArray("aggregations");
+        for (AggregationBase base : bases) {
+            ObjectNode baseNode = basesNode.addObject();
+            baseNode.put("name", base.getBaseName());
+            ArrayNode levels = baseNode.putArray("levels");
+            for (AggregateCombo combo : base.getCombos()) {
+                levels.add(combo.level.toString());
+            }
+        }
+        addRepairs(data.getRepairQueue(), report.putArray("repairs"));
+        return 0;
+    }
+
+    private void addRepairs(ReferenceRepairQueue queue, ArrayNode target) {
+        for (ReferenceRepairQueue.Repair repair : queue.getRepairs()) {
+            target.add(repair.toString());
+        }
+    }
+
+    private int runRepair(AggregationData data, ObjectNode report) {
+        int queued = data.getRepairQueue().size();
+        int failed = data.applyRepairs();
+        report.put("repairsQueued", queued);
+        report.put("repairsFailed", failed);
+        addRepairs(data.getRepairQueue(), report.putArray("remaining"));
+        return failed == 0 ? 0 : 1;
+    }
+
+    private int runReconcile(List<AggregationBase> bases, ObjectNode report) throws IOException, ServiceFailureException {
+        if (!hasOption("spec")) {
+            throw new IllegalArgumentException("The reconcile command needs --spec.");
+        }
+        AggregationSpec spec = AggregationSpec.load(new File(options.get("spec")));
+        SpecReconciler reconciler = new SpecReconciler(service, new SensorThingsUtils(), spec);
+        List<ApplyEngine.Change> changes = reconciler.plan(bases);
+        ArrayNode changesNode = report.putArray("changes");
+        for (ApplyEngine.Change change : changes) {
+            changesNode.add(change.toString());
+        }
+        if (hasOption("dry-run")) {
+            return 0;
+        }
+        List<ApplyEngine.Failure> failures = reconciler.apply(changes);
+        ArrayNode failuresNode = report.putArray("failures");
+        for (ApplyEngine.Failure failure : failures) {
+            failuresNode.add(failure.toString());
+        }
+        if (reconciler.getEngine() != null) {
+            report.put("status", reconciler.getEngine().getStatus());
+        }
+        return failures.isEmpty() ? 0 : 1;
+    }
+
+    private int runLevels(List<AggregationBase> bases, ObjectNode report) {
+        List<AggregationLevel> add = parseLevels(options.get("add"));
+        List<AggregationLevel> remove = parseLevels(options.get("remove"));
+        if (add.isEmpty() && remove.isEmpty()) {
+            throw new IllegalArgumentException("The levels command needs --add or --remove.");
+        }
+        for (AggregationBase base : bases) {
+            for (AggregationLevel level : add) {
+                base.toggleLevel(level, true);
+            }
+            for (AggregationLevel level : remove) {
+                base.toggleLevel(level, false);
+            }
+        }
+        List<ApplyEngine.Change> changes = ApplyEngine.findChanges(bases);
+        ApplyEngine engine = new ApplyEngine(service, new SensorThingsUtils());
+        engine.setProgressListener((progress, message) -> LOGGER.info(message));
+        List<ApplyEngine.Failure> failures = engine.run(changes);
+        ArrayNode changesNode = report.putArray("changes");
+        for (ApplyEngine.Change change : changes) {
+            changesNode.add(change.toString());
+        }
+        ArrayNode failuresNode = report.putArray("failures");
+        for (ApplyEngine.Failure failure : failures) {
+            failuresNode.add(failure.toString());
+        }
+        report.put("status", engine.getStatus());
+        return failures.isEmpty() ? 0 : 1;
+    }
+
+    private static List<AggregationLevel> parseLevels(String value) {
+        List<AggregationLevel> levels = new ArrayList<>();
+        if (value == null) {
+            return levels;
+        }
+        for (String part : value.split(",")) {
+            AggregationLevel level = AggregationLevel.of(part);
+            if (level == null) {
+                throw new IllegalArgumentException("Not a valid level: " + part);
+            }
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    private Moment getTime(String name, Moment dflt) {
+        String value = options.get(name);
+        if (value == null) {
+            if (dflt == null) {
+                throw new IllegalArgumentException("The " + command + " command needs --" + name);
+            }
+            return dflt;
+        }
+        try {
+            return Utils.fromEpochMillis(Instant.parse(value).toEpochMilli());
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("Not a valid time for --" + name + ": " + value);
+        }
+    }
+
+    private Moment startOfToday() {
+        return Utils.fromEpochMillis(Instant.now().truncatedTo(ChronoUnit.DAYS).toEpochMilli());
+    }
+
+    private ObservationCache getCache() {
+        if (!hasOption("cache")) {
+            return null;
+        }
+        return new ObservationCache(ObservationCache.directoryFor(new File(ObservationCache.DEFAULT_DIRECTORY), serverUrl));
+    }
+
+    private BackfillScheduler createScheduler() {
+        boolean local = !hasOption("server-side");
+        BackfillScheduler scheduler = new BackfillScheduler(service, local);
+        if (local) {
+            scheduler.getCalculator().setRollUp(!hasOption("no-rollup"));
+            scheduler.getCalculator().setCache(getCache());
+        }
+        scheduler.setProgressListener((progress, message) -> LOGGER.info(message));
+        return scheduler;
+    }
+
+    private int runRecalculate(List<AggregationBase> bases, ObjectNode report) {
+        Moment start = getTime("from", null);
+        Moment end = getTime("to", startOfToday());
+        report.put("from", start.toString());
+        report.put("to", end.toString());
+        BackfillScheduler scheduler = createScheduler();
+        List<BackfillScheduler.Failure> failures = scheduler.run(bases, start, end);
+        report.put("status", scheduler.getStatus());
+        addFailures(report, failures);
+        return failures.isEmpty() ? 0 : 1;
+    }
+
+    private static void addFailures(ObjectNode report, List<BackfillScheduler.Failure> failures) {
+        ArrayNode failuresNode = report.putArray("failures");
+        for (BackfillScheduler.Failure failure : failures) {
+            failuresNode.add(failure.toString());
+        }
+    }
+
+    private int runGaps(List<AggregationBase> bases, ObjectNode report) {
+        Moment start = getTime("from", null);
+        Moment end = getTime("to", startOfToday());
+        report.put("from", start.toString());
+        report.put("to", end.toString());
+        CoverageAnalyser analyser = new CoverageAnalyser();
+        analyser.setCache(getCache());
+        List<CoverageAnalyser.Coverage> coverages = analyser.analyse(bases, start, end);
+        int incomplete = CoverageAnalyser.countIncomplete(coverages);
+        report.put("incomplete", incomplete);
+        List<CoverageAnalyser.Gap> gaps = CoverageAnalyser.findGaps(coverages);
+        ArrayNode gapsNode = report.putArray("gaps");
+        for (CoverageAnalyser.Gap gap : gaps) {
+            ObjectNode gapNode = gapsNode.addObject();
+            gapNode.put("base", gap.getBase().getBaseName());
+            gapNode.put("level", gap.getCombo().level.toString());
+            gapNode.put("start", gap.getStart().toString());
+            gapNode.put("end", gap.getEnd().toString());
+            gapNode.put("intervals", gap.getBucketCount());
+        }
+        if (hasOption("fill") && !gaps.isEmpty()) {
+            BackfillScheduler scheduler = new BackfillScheduler(service, true);
+            scheduler.getCalculator().setCache(analyser.getCache());
+            scheduler.setProgressListener((progress, message) -> LOGGER.info(message));
+            List<BackfillScheduler.Failure> failures = scheduler.runGaps(gaps);
+            report.put("status", scheduler.getStatus());
+            addFailures(report, failures);
+            if (!failures.isEmpty()) {
+                return 1;
+            }
+        }
+        return incomplete == 0 ? 0 : 1;
+    }
+
+    private int runLag(List<AggregationBase> bases, ObjectNode report) throws ServiceFailureException {
+        int top = Integer.parseInt(options.getOrDefault("top", "100"));
+        LagMonitor monitor = new LagMonitor(service, bases);
+        monitor.refresh();
+        report.put("requests", monitor.getLastRequestCount());
+        ArrayNode lagNode = report.putArray("overdue");
+        for (LagMonitor.Entry entry : monitor.getWorst(top)) {
+            ObjectNode entryNode = lagNode.addObject();
+            entryNode.put("base", entry.getCombo().getBaseName());
+            entryNode.put("level", entry.getCombo().level.toString());
+            if (entry.getSourceLast() != null) {
+                entryNode.put("sourceLast", entry.getSourceLast().toString());
+            }
+            if (entry.getTargetLast() != null) {
+                entryNode.put("targetLast", entry.getTargetLast().toString());
+            }
+            entryNode.put("lagMillis", entry.getLagMillis());
+            entryNode.put("overdueMillis", entry.getOverdueMillis());
+        }
+        return 0;
+    }
+
+    private void writeReport(ObjectNode report) {
+        String reportFile = options.get("report");
+        if (reportFile == null) {
+            System.out.println(mapper.writeValueAsString(report));
+        } else {
+            mapper.writeValue(new File(reportFile), report);
+            LOGGER.info("Report written to {}", reportFile);
+        }
+    }
+}
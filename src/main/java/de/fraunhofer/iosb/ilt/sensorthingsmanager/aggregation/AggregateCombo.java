@@ -24,7 +24,6 @@ import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
 import de.fraunhofer.iosb.ilt.frostclient.dao.Dao;
 import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
-import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
 import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostclient.model.PkValue;
 import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntitySet;
@@ -32,12 +31,13 @@ import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
 import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeInterval;
 import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeValue;
 import java.time.DateTimeException;
-import java.time.Instant;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import net.time4j.Moment;
-import net.time4j.ZonalDateTime;
 import net.time4j.tz.TZID;
 import net.time4j.tz.Timezone;
 import org.apache.commons.lang3.builder.CompareToBuilder;
@@ -69,6 +69,7 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
     public String baseName;
     private TZID zoneId;
     private TimeInterval currentInterval;
+    private volatile IntervalCalculator intervalCalculator;
 
     public AggregateCombo(SensorThingsService service, Entity targetThing, Entity target) {
         this.service = service;
@@ -149,23 +150,6 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
         }
     }
 
-    public List<Entity> getObservationsForSource(Instant start, Instant end) {
-        List<Entity> result = new ArrayList<>();
-        if (hasSource()) {
-            try {
-                StringBuilder filter = new StringBuilder();
-                filter.append("overlaps(phenomenonTime,").append(start.toString()).append("/").append(end.toString()).append(")");
-                EntitySet entityList = getObsDaoForSource().query().filter(filter.toString()).orderBy("phenomenonTime asc").top(1000).list();
-                for (Entity entity : entityList) {
-                    result.add(entity);
-                }
-            } catch (ServiceFailureException ex) {
-                LOGGER.error("Failed to fetch observations.", ex);
-            }
-        }
-        return result;
-    }
-
     public void resolveZoneId(TZID dflt) {
         if (zoneId == null) {
             MapValue properties = targetThing.getProperty(EP_PROPERTIES);
@@ -189,30 +173,85 @@ public class AggregateCombo implements Comparable<AggregateCombo> {
 
     public String getSourceObsMqttPath() {
         if (sourceDs != null) {
-            return "v1.0/Datastreams(" + formatKeyValuesForUrl(sourceDs) + ")/Observations?$select=id,phenomenonTime";
+            return "v1.0/Datastreams(" + formatKeyValuesForUrl(sourceDs) + ")/Observations?$select=id,phenomenonTime,result";
         }
         if (sourceMds != null) {
-            return "v1.0/MultiDatastreams(" + formatKeyValuesForUrl(sourceMds) + ")/Observations?$select=id,phenomenonTime";
+            return "v1.0/MultiDatastreams(" + formatKeyValuesForUrl(sourceMds) + ")/Observations?$select=id,phenomenonTime,result,parameters";
         }
         return "";
     }
 
     public List<TimeInterval> calculateIntervalsForTime(TimeValue phenTime) {
         List<TimeInterval> retval = new ArrayList<>();
-        Moment phenTimeStart = Utils.getPhenTimeStart(phenTime);
-        Moment phenTimeEnd = Utils.getPhenTimeEnd(phenTime);
-        ZonalDateTime atZone = phenTimeStart.inZonalView(getZoneId());
-        Moment intStart = ZonalDateTime.from(level.toIntervalStart(atZone.toTemporalAccessor())).toMoment();
-        Moment intEnd = Moment.from(intStart.toTemporalAccessor().plus(level.amount, level.unit));
-        retval.add(TimeInterval.create(intStart, intEnd));
-        while (intEnd.isBefore(phenTimeEnd)) {
-            intStart = intEnd;
-            intEnd = Moment.from(intStart.toTemporalAccessor().plus(level.amount, level.unit));
-            retval.add(TimeInterval.create(intStart, intEnd));
+        for (TimeInterval interval : intervalsForTime(phenTime)) {
+            retval.add(interval);
         }
         return retval;
     }
 
+    /**
+     * Lazily iterates over the intervals of this combo that overlap the given
+     * time.
+     *
+     * @param phenTime The time to find the intervals for.
+     * @return An Iterable over the intervals.
+     */
+    public Iterable<TimeInterval> intervalsForTime(TimeValue phenTime) {
+        final long start = Utils.toEpochMillis(Utils.getPhenTimeStart(phenTime));
+        final long end = Utils.toEpochMillis(Utils.getPhenTimeEnd(phenTime));
+        return () -> new Iterator<TimeInterval>() {
+            private final IntervalCalculator.Cursor cursor = getIntervalCalculator().cursor(start, end);
+            private boolean hasNext = cursor.next();
+
+            @Override
+            public boolean hasNext() {
+                return hasNext;
+            }
+
+            @Override
+            public TimeInterval next() {
+                if (!hasNext) {
+                    throw new NoSuchElementException();
+                }
+                TimeInterval interval = TimeInterval.create(
+                        Utils.fromEpochMillis(cursor.getStart()),
+                        Utils.fromEpochMillis(cursor.getEnd()));
+                hasNext = cursor.next();
+                return interval;
+            }
+        };
+    }
+
+    /**
+     * Calculates the interval of this combo that contains the given time.
+     *
+     * @param time The time to find the interval for.
+     * @return The interval containing the given time.
+     */
+    public TimeInterval calculateIntervalForTime(Moment time) {
+        IntervalCalculator calculator = getIntervalCalculator();
+        long start = calculator.intervalStart(Utils.toEpochMillis(time));
+        return TimeInterval.create(
+                Utils.fromEpochMillis(start),
+                Utils.fromEpochMillis(calculator.intervalEnd(start)));
+    }
+
+    /**
+     * Get the calculator for the intervals of this combo, in the zone of this
+     * combo.
+     *
+     * @return the calculator for the intervals of this combo.
+     */
+    public IntervalCalculator getIntervalCalculator() {
+        IntervalCalculator calculator = intervalCalculator;
+        if (calculator == null) {
+            ZoneId zone = Moment.UNIX_EPOCH.inZonalView(getZoneId()).toTemporalAccessor().getZone();
+            calculator = new IntervalCalculator(level, zone);
+            intervalCalculator = calculator;
+        }
+        return calculator;
+    }
+
     /**
      * Checks if the given interval is the same as the current interval. If they
      * are not the same, the current interval is updated.
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+/**
+ * Running statistics for one aggregation interval, calculated in a single
+ * pass using Welford's algorithm. Instances are meant to be re-used using
+ * {@link #reset()}.
+ *
+ * @author scf
+ */
+public class AggregateStats {
+
+    private long count;
+    private double mean;
+    private double m2;
+    private double min;
+    private double max;
+
+    public AggregateStats() {
+        reset();
+    }
+
+    public final void reset() {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Adds a single value.
+     *
+     * @param value The value to add.
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Merges the partial statistics of another set of values into this one,
+     * using the parallel variant of Welford's algorithm.
+     *
+     * @param otherCount The number of values in the other set.
+     * @param otherMean The mean of the other set.
+     * @param otherM2 The sum of squared differences from the mean of the other
+     * set.
+     * @param otherMin The minimum of the other set.
+     * @param otherMax The maximum of the other set.
+     */
+    public void merge(long otherCount, double otherMean, double otherM2, double otherMin, double otherMax) {
+        if (otherCount <= 0) {
+            return;
+        }
+        long newCount = count + otherCount;
+        double delta = otherMean - mean;
+        mean += delta * otherCount / newCount;
+        m2 += otherM2 + delta * delta * count * otherCount / newCount;
+        count = newCount;
+        if (otherMin < min) {
+            min = otherMin;
+        }
+        if (otherMax > max) {
+            max = otherMax;
+        }
+    }
+
+    public void merge(AggregateStats other) {
+        merge(other.count, other.mean, other.m2, other.min, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getM2() {
+        return m2;
+    }
+
+    /**
+     * @return The sample standard deviation, or 0 if there are less than two
+     * values.
+     */
+    public double getStdDev() {
+        if (count < 2) {
+            return 0;
+        }
+        return Math.sqrt(m2 / (count - 1));
+    }
+
+    /**
+     * Calculates the sum of squared differences from the mean, from a sample
+     * standard deviation. This is the inverse of {@link #getStdDev()}.
+     *
+     * @param stdDev The sample standard deviation.
+     * @param count The number of values.
+     * @return The sum of squared differences from the mean.
+     */
+    public static double m2FromStdDev(double stdDev, long count) {
+        if (count < 2) {
+            return 0;
+        }
+        return stdDev * stdDev * (count - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count + " mean=" + mean + " min=" + min + " max=" + max + " dev=" + getStdDev();
+    }
+
+}
@@ -17,6 +17,10 @@
  */
 package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
 
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
 import java.util.HashMap;
 import java.util.Map;
@@ -37,8 +41,9 @@ public class AggregationBase {
     private static final Logger LOGGER = LoggerFactory.getLogger(AggregationBase.class);
 
     private final String baseName;
-    private Entity baseDatastream;
-    private Entity baseMultiDatastream;
+    private volatile Entity baseDatastream;
+    private volatile Entity baseMultiDatastream;
+    private volatile boolean baseDatastreamLoaded;
 
     private final Set<AggregateCombo> combos = new TreeSet<>();
     private final Map<AggregationLevel, AggregateCombo> combosByLevel = new HashMap<>();
@@ -67,7 +72,14 @@ public class AggregationBase {
         return fxProperties;
     }
 
-    protected void toggleLevel(final AggregationLevel level, boolean toValue) {
+    /**
+     * Marks the given level as wanted or not wanted for this base. The
+     * changes are applied using {@link ApplyEngine}.
+     *
+     * @param level The level to change.
+     * @param toValue true if the level should exist.
+     */
+    public void toggleLevel(final AggregationLevel level, boolean toValue) {
         if (toValue) {
             LOGGER.info("Adding level {} to base {}.", level, baseName);
             wantedLevels.put(level, true);
@@ -109,6 +121,34 @@ public class AggregationBase {
 
     public void setBaseDatastream(Entity baseDatastream) {
         this.baseDatastream = baseDatastream;
+        this.baseDatastreamLoaded = false;
+    }
+
+    /**
+     * Get the base Datastream with all its properties, its ObservedProperty,
+     * and the ids of its Thing and Sensor. The base Datastream found during
+     * discovery, or restored from a snapshot, does not have these, so it is
+     * loaded from the service the first time, in one request.
+     *
+     * @param service The service to load the Datastream from.
+     * @return The full base Datastream, or null if there is none.
+     * @throws ServiceFailureException If loading the Datastream fails.
+     */
+    public Entity loadBaseDatastream(SensorThingsService service) throws ServiceFailureException {
+        Entity stub = baseDatastream;
+        if (stub == null || baseDatastreamLoaded) {
+            return stub;
+        }
+        Entity full = service.query(stub.getType())
+                .filter("id eq " + formatKeyValuesForUrl(stub))
+                .expand("ObservedProperty,Thing($select=id),Sensor($select=id)")
+                .first();
+        if (full == null) {
+            throw new IllegalStateException("Base Datastream " + formatKeyValuesForUrl(stub) + " of " + baseName + " no longer exists.");
+        }
+        baseDatastream = full;
+        baseDatastreamLoaded = true;
+        return full;
     }
 
     public Entity getBaseMultiDatastream() {
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_PARAMETERS;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_PHENOMENONTIME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_RESULT;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeValue;
+import de.fraunhofer.iosb.ilt.frostclient.utils.CollectionsHelper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import net.time4j.Moment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calculates aggregates in the manager, instead of on the server. The raw
+ * Observations of the base are read in a single, time-ordered pass, and the
+ * mean, minimum, maximum and standard deviation of each interval are written to
+ * the target MultiDatastream, in the order of the ObservedProperties created by
+ * {@link SensorThingsUtils#findOrCreateAggregateOps}.
+ *
+ * Observations are counted in the interval their phenomenonTime starts in.
+ * In roll-up mode, coarse levels are merged from the aggregates of a finer
+ * level instead, see {@link #setRollUp(boolean)}.
+ *
+ * @author scf
+ */
+public class AggregationCalculator {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AggregationCalculator.class);
+
+    /**
+     * The name of the parameter holding the number of source values.
+     */
+    public static final String KEY_RESULT_COUNT = "resultCount";
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final SensorThingsService service;
+    private final SensorThingsV11Sensing sMdl;
+    private final SensorThingsV11MultiDatastream mMdl;
+
+    private boolean rollUp;
+    private ObservationCache cache;
+
+    private final AtomicLong observationsRead = new AtomicLong();
+    private final AtomicLong intervalsWritten = new AtomicLong();
+    private final AtomicLong intervalsDeleted = new AtomicLong();
+
+    public AggregationCalculator(SensorThingsService service) {
+        this.service = service;
+        sMdl = service.getModel(SensorThingsV11Sensing.class);
+        mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
+    }
+
+    /**
+     * Calculates all aggregate levels of the given base, for the given period.
+     *
+     * @param base The base to calculate the aggregates for.
+     * @param start The start of the period.
+     * @param end The end of the period.
+     * @throws ServiceFailureException If the communication with the server
+     * fails.
+     */
+    public void calculate(AggregationBase base, Moment start, Moment end) throws ServiceFailureException {
+        for (AggregateCombo combo : new TreeSet<>(base.getCombos())) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            calculate(base, combo, start, end);
+        }
+    }
+
+    /**
+     * Calculates the aggregates of a single combo, for all intervals that
+     * overlap the given period. In roll-up mode, combos that have a finer
+     * aggregate of the same base as source are calculated from the aggregate
+     * rows of that source, instead of from the raw Observations.
+     *
+     * @param base The base that holds the raw data.
+     * @param combo The combo to calculate the aggregates for.
+     * @param start The start of the period.
+     * @param end The end of the period.
+     * @return The number of intervals written.
+     * @throws ServiceFailureException If the communication with the server
+     * fails.
+     */
+    public int calculate(AggregationBase base, AggregateCombo combo, Moment start, Moment end) throws ServiceFailureException {
+        Moment alignedStart = combo.calculateIntervalForTime(start).getStart();
+        TimeInterval last = combo.calculateIntervalForTime(end);
+        Moment alignedEnd = last.getStart().equals(end) ? end : last.getEnd();
+        String period = "overlaps(phenomenonTime," + alignedStart.toTemporalAccessor() + "/" + alignedEnd.toTemporalAccessor() + ")";
+
+        if (rollUp && combo.sourceIsAggregate && combo.sourceMds != null) {
+            int written = calculate(combo, combo.sourceMds, true, true, period, alignedStart, alignedEnd);
+            if (written >= 0) {
+                return written;
+            }
+            LOGGER.warn("Intervals of {} do not fit in the intervals of {}, calculating from raw data.", combo.sourceMds.getPrimaryKeyValues(), combo);
+        }
+
+        Entity source = base.getBaseDatastream();
+        if (source == null) {
+            source = base.getBaseMultiDatastream();
+        }
+        if (source == null) {
+            LOGGER.error("No base Datastream for {}, can not calculate {}.", base.getBaseName(), combo.level);
+            return 0;
+        }
+        final boolean perValue = source.getType().equals(mMdl.etMultiDatastream);
+        return calculate(combo, source, perValue, false, period, alignedStart, alignedEnd);
+    }
+
+    /**
+     * Reads the Observations of the source in the given period, in a single
+     * time-ordered pass, and writes the aggregates of the combo.
+     *
+     * @param combo The combo to calculate the aggregates for.
+     * @param source The Datastream or MultiDatastream to read from.
+     * @param perValue If true, the entries of a list result are aggregated
+     * separately.
+     * @param fromAggregates If true, the source holds aggregate rows of
+     * [mean, min, max, dev] per value, that are merged.
+     * @param period The filter selecting the period.
+     * @param start The start of the period.
+     * @param end The end of the period.
+     * @return The number of intervals written, or -1 if an aggregate row of
+     * the source does not fit in a single interval of the combo.
+     */
+    private int calculate(AggregateCombo combo, Entity source, boolean perValue, boolean fromAggregates, String period, Moment start, Moment end) throws ServiceFailureException {
+        Map<Moment, Entity> existing = findExisting(combo, period);
+
+        List<AggregateStats> stats = new ArrayList<>();
+        stats.add(new AggregateStats());
+        final IntervalCalculator intervals = combo.getIntervalCalculator();
+        TimeInterval current = null;
+        long currentStart = 0;
+        long currentEnd = 0;
+        int written = 0;
+        long read = 0;
+        try (ChunkSource stream = openSource(source, fromAggregates, period, start, end)) {
+            ObservationStream.Chunk chunk;
+            while (!Thread.currentThread().isInterrupted() && (chunk = stream.nextChunk()) != null) {
+                for (int row = 0; row < chunk.size(); row++) {
+                    read++;
+                    long phenTimeStart = chunk.getStart(row);
+                    if (current == null || phenTimeStart < currentStart || phenTimeStart >= currentEnd) {
+                        if (current != null && write(combo, current, stats, existing)) {
+                            written++;
+                        }
+                        currentStart = intervals.intervalStart(phenTimeStart);
+                        currentEnd = intervals.intervalEnd(currentStart);
+                        current = TimeInterval.create(Utils.fromEpochMillis(currentStart), Utils.fromEpochMillis(currentEnd));
+                        for (AggregateStats stat : stats) {
+                            stat.reset();
+                        }
+                    }
+                    if (fromAggregates) {
+                        if (chunk.getEnd(row) > currentEnd) {
+                            observationsRead.addAndGet(read);
+                            intervalsWritten.addAndGet(written);
+                            return -1;
+                        }
+                        addAggregate(chunk, row, stats);
+                    } else {
+                        addResult(chunk, row, stats, perValue);
+                    }
+                }
+            }
+        }
+        observationsRead.addAndGet(read);
+        if (Thread.currentThread().isInterrupted()) {
+            // The last interval is incomplete, writing it would overwrite a correct aggregate.
+            intervalsWritten.addAndGet(written);
+            LOGGER.info("Interrupted after {} intervals for {}.", written, combo);
+            return written;
+        }
+        if (current != null && write(combo, current, stats, existing)) {
+            written++;
+        }
+        intervalsWritten.addAndGet(written);
+        deleteStale(existing);
+        LOGGER.info("Calculated {} intervals from {} {} for {}.", written, read, fromAggregates ? "aggregates" : "observations", combo);
+        return written;
+    }
+
+    /**
+     * Raw Observations are read from the cache, if there is one, aggregates
+     * always from the server, since they are written while calculating.
+     */
+    private ChunkSource openSource(Entity source, boolean fromAggregates, String period, Moment start, Moment end) {
+        if (cache != null && !fromAggregates) {
+            return cache.stream(source, Utils.toEpochMillis(start), Utils.toEpochMillis(end));
+        }
+        return new ObservationStream(source, period, fromAggregates, PAGE_SIZE);
+    }
+
+    private Map<Moment, Entity> findExisting(AggregateCombo combo, String period) throws ServiceFailureException {
+        Map<Moment, Entity> existing = new HashMap<>();
+        NavigationPropertyEntitySet npObs = combo.targetMds.getType().getNavigationPropertySet("Observations");
+        EntitySet list = combo.targetMds.query(npObs)
+                .select("id", "phenomenonTime")
+                .filter(period)
+                .orderBy("phenomenonTime asc")
+                .top(PAGE_SIZE)
+                .list();
+        for (Entity obs : list) {
+            Entity old = existing.put(Utils.getPhenTimeStart(obs), obs);
+            if (old != null) {
+                LOGGER.warn("Duplicate aggregate for {} in {}, deleting {}.", Utils.getPhenTimeStart(obs), combo, old.getPrimaryKeyValues());
+                service.delete(old);
+            }
+        }
+        return existing;
+    }
+
+    private void deleteStale(Map<Moment, Entity> existing) throws ServiceFailureException {
+        for (Entity stale : existing.values()) {
+            LOGGER.debug("Deleting aggregate {} without source data.", stale.getPrimaryKeyValues());
+            service.delete(stale);
+            intervalsDeleted.incrementAndGet();
+        }
+        existing.clear();
+    }
+
+    static void addResult(Object result, List<AggregateStats> stats, boolean perValue) {
+        if (result instanceof List<?> list) {
+            if (perValue) {
+                while (stats.size() < list.size()) {
+                    stats.add(new AggregateStats());
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    addValue(list.get(i), stats.get(i));
+                }
+            } else {
+                AggregateStats stat = stats.get(0);
+                for (Object item : list) {
+                    addValue(item, stat);
+                }
+            }
+        } else {
+            addValue(result, stats.get(0));
+        }
+    }
+
+    /**
+     * Merges an aggregate row, as written by
+     * {@link #write(AggregateCombo, TimeInterval, List, Map)}, into the stats.
+     * Rows without a result count are counted as a single value.
+     */
+    static void addAggregate(Object result, Object resultCount, List<AggregateStats> stats) {
+        if (!(result instanceof List<?> list)) {
+            return;
+        }
+        long count = 1;
+        if (resultCount instanceof Number number) {
+            count = number.longValue();
+        }
+        int groups = list.size() / 4;
+        while (stats.size() < groups) {
+            stats.add(new AggregateStats());
+        }
+        for (int i = 0; i < groups; i++) {
+            if (!(list.get(4 * i) instanceof Number mean)
+                    || !(list.get(4 * i + 1) instanceof Number min)
+                    || !(list.get(4 * i + 2) instanceof Number max)) {
+                continue;
+            }
+            double dev = list.get(4 * i + 3) instanceof Number number ? number.doubleValue() : 0;
+            stats.get(i).merge(count, mean.doubleValue(), AggregateStats.m2FromStdDev(dev, count), min.doubleValue(), max.doubleValue());
+        }
+    }
+
+    private static void addResult(ObservationStream.Chunk chunk, int row, List<AggregateStats> stats, boolean perValue) {
+        final int width = chunk.width();
+        if (perValue) {
+            while (stats.size() < width) {
+                stats.add(new AggregateStats());
+            }
+            for (int i = 0; i < width; i++) {
+                stats.get(i).add(chunk.getValue(row, i));
+            }
+        } else {
+            AggregateStats stat = stats.get(0);
+            for (int i = 0; i < width; i++) {
+                stat.add(chunk.getValue(row, i));
+            }
+        }
+    }
+
+    private static void addAggregate(ObservationStream.Chunk chunk, int row, List<AggregateStats> stats) {
+        long count = chunk.getResultCount(row);
+        int groups = chunk.width() / 4;
+        while (stats.size() < groups) {
+            stats.add(new AggregateStats());
+        }
+        for (int i = 0; i < groups; i++) {
+            double mean = chunk.getValue(row, 4 * i);
+            double min = chunk.getValue(row, 4 * i + 1);
+            double max = chunk.getValue(row, 4 * i + 2);
+            if (Double.isNaN(mean) || Double.isNaN(min) || Double.isNaN(max)) {
+                continue;
+            }
+            double dev = chunk.getValue(row, 4 * i + 3);
+            stats.get(i).merge(count, mean, AggregateStats.m2FromStdDev(Double.isNaN(dev) ? 0 : dev, count), min, max);
+        }
+    }
+
+    private static void addValue(Object value, AggregateStats stats) {
+        if (value instanceof Number number) {
+            stats.add(number.doubleValue());
+        }
+    }
+
+    private boolean write(AggregateCombo combo, TimeInterval interval, List<AggregateStats> stats, Map<Moment, Entity> existing) throws ServiceFailureException {
+        long count = 0;
+        List<Double> result = new ArrayList<>(stats.size() * 4);
+        for (AggregateStats stat : stats) {
+            count = Math.max(count, stat.getCount());
+            if (stat.isEmpty()) {
+                result.add(null);
+                result.add(null);
+                result.add(null);
+                result.add(null);
+            } else {
+                result.add(stat.getMean());
+                result.add(stat.getMin());
+                result.add(stat.getMax());
+                result.add(stat.getStdDev());
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        MapValue parameters = CollectionsHelper.propertiesBuilder()
+                .addItem(KEY_RESULT_COUNT, count)
+                .build();
+        Entity old = existing.remove(interval.getStart());
+        if (old == null) {
+            Entity obs = new Entity(sMdl.etObservation)
+                    .setProperty(EP_PHENOMENONTIME, TimeValue.create(interval.getStart(), interval.getEnd()))
+                    .setProperty(EP_RESULT, result)
+                    .setProperty(EP_PARAMETERS, parameters)
+                    .setProperty(mMdl.npObservationMultidatastream, combo.targetMds);
+            service.create(obs);
+        } else {
+            Entity obs = old.withOnlyPk()
+                    .setProperty(EP_PHENOMENONTIME, TimeValue.create(interval.getStart(), interval.getEnd()))
+                    .setProperty(EP_RESULT, result)
+                    .setProperty(EP_PARAMETERS, parameters);
+            service.update(obs);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the given statistics as the aggregate of a single interval. An
+     * existing aggregate for the same interval is replaced.
+     *
+     * @param combo The combo to write the aggregate for.
+     * @param interval The interval of the aggregate.
+     * @param stats The statistics, one for each value of the source.
+     * @return true if an aggregate was written, false if the stats are empty.
+     * @throws ServiceFailureException If the communication with the server
+     * fails.
+     */
+    public boolean writeInterval(AggregateCombo combo, TimeInterval interval, List<AggregateStats> stats) throws ServiceFailureException {
+        String period = "overlaps(phenomenonTime," + interval.getStart().toTemporalAccessor() + "/" + interval.getEnd().toTemporalAccessor() + ")";
+        Map<Moment, Entity> existing = findExisting(combo, period);
+        boolean written = write(combo, interval, stats, existing);
+        if (written) {
+            intervalsWritten.incrementAndGet();
+        }
+        return written;
+    }
+
+    public ObservationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache The cache to read raw Observations from, or null to always
+     * read them from the server.
+     */
+    public void setCache(ObservationCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return true if coarse levels are rolled up from finer aggregates.
+     */
+    public boolean isRollUp() {
+        return rollUp;
+    }
+
+    /**
+     * When roll-up is enabled, combos that have a finer aggregate as source
+     * are calculated by merging the aggregate rows of that source, instead of
+     * re-reading all raw Observations. Since {@link #calculate(AggregationBase, Moment, Moment)}
+     * handles the levels from fine to coarse, the finer aggregates are
+     * up-to-date when they are used.
+     *
+     * @param rollUp true to roll up coarse levels from finer aggregates.
+     * @return this.
+     */
+    public AggregationCalculator setRollUp(boolean rollUp) {
+        this.rollUp = rollUp;
+        return this;
+    }
+
+    /**
+     * @return The number of source Observations, raw or aggregate, read so
+     * far.
+     */
+    public long getObservationsRead() {
+        return observationsRead.get();
+    }
+
+    /**
+     * @return The number of aggregate Observations created or updated so far.
+     */
+    public long getIntervalsWritten() {
+        return intervalsWritten.get();
+    }
+
+    /**
+     * @return The number of aggregate Observations deleted so far, because
+     * there was no source data for their interval.
+     */
+    public long getIntervalsDeleted() {
+        return intervalsDeleted.get();
+    }
+
+}
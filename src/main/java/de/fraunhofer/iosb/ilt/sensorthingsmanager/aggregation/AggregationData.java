@@ -27,19 +27,29 @@ import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
 import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
 import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
 import de.fraunhofer.iosb.ilt.frostclient.model.PkValue;
 import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypeComplex;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
 import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
 import de.fraunhofer.iosb.ilt.frostclient.query.Query;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.BoundedVirtualExecutor;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import net.time4j.tz.TZID;
 import org.slf4j.Logger;
@@ -56,6 +66,12 @@ public class AggregationData {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(AggregationData.class);
 
+    /**
+     * The default maximum number of requests that are sent to the server in
+     * parallel while gathering data.
+     */
+    public static final int DEFAULT_MAX_PARALLEL_REQUESTS = 8;
+
     public static interface ProgressListener {
 
         public void setProgress(double progress);
@@ -74,6 +90,16 @@ public class AggregationData {
     private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
     private final SensorThingsV11Sensing sMdl;
     private final SensorThingsV11MultiDatastream mMdl;
+    private int maxParallelRequests = DEFAULT_MAX_PARALLEL_REQUESTS;
+    private volatile double dsScanProgress = 0;
+    private volatile double thingScanProgress = 0;
+    private File snapshotFile;
+    private String serverUrl;
+    private final AtomicLong maxDatastreamId = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong maxMultiDatastreamId = new AtomicLong(Long.MIN_VALUE);
+    private volatile boolean nonNumericIds = false;
+    private SourcePlanner planner = new SourcePlanner();
+    private final ReferenceRepairQueue repairQueue = new ReferenceRepairQueue();
 
     public AggregationData(SensorThingsService service, boolean fixReferences, boolean addEmptyBases) {
         this.service = service;
@@ -87,7 +113,7 @@ public class AggregationData {
         this(service, fixReferences, true);
     }
 
-    private AggregationBase getAggregationBase(String baseName) {
+    private synchronized AggregationBase getAggregationBase(String baseName) {
         AggregationBase aggBase = aggregationBasesByName.computeIfAbsent(
                 baseName,
                 name -> {
@@ -109,20 +135,29 @@ public class AggregationData {
             }
             EntitySet dsList = query.list();
             long count = dsList.getCount();
-            double pPart = (progressTarget - progressBase) / count;
             int nr = 0;
             for (Entity datastream : dsList) {
-                String name = datastream.getProperty(EP_NAME);
-                String base = baseNameFromName(name);
-                AggregationBase aggregationBase = getAggregationBase(base);
-                aggregationBase.setBaseDatastream(datastream);
+                addBaseDatastream(datastream);
                 nr++;
-                setProgress(progressBase + nr * pPart);
+                if (count > 0) {
+                    dsScanProgress = 1.0 * nr / count;
+                    updateScanProgress();
+                }
             }
             LOGGER.info("Loaded {} Datastreams", nr);
         } catch (ServiceFailureException exc) {
             LOGGER.error("Service error loading Datastreams: ", exc);
         }
+        dsScanProgress = 1;
+    }
+
+    private AggregationBase addBaseDatastream(Entity datastream) {
+        trackId(maxDatastreamId, datastream);
+        String name = datastream.getProperty(EP_NAME);
+        String base = baseNameFromName(name);
+        AggregationBase aggregationBase = getAggregationBase(base);
+        aggregationBase.setBaseDatastream(datastream);
+        return aggregationBase;
     }
 
     private void findTargetMultiDatastreams() {
@@ -137,136 +172,127 @@ public class AggregationData {
             }
             EntitySet thingList = query.list();
             long count = thingList.getCount();
-            double pPart = (progressTarget - progressBase) / count;
             int nr = 0;
             for (Entity thing : thingList) {
                 EntitySet dsList = thing.getProperty(mMdl.npThingMultidatastreams);
                 for (Entity mds : dsList) {
-                    String name = mds.getProperty(EP_NAME);
-                    Matcher matcher = Utils.POSTFIX_PATTERN.matcher(name);
-                    if (!matcher.matches()) {
-                        LOGGER.debug("MultiDatastream {} is not an aggregate.");
-                        continue;
-                    }
-                    AggregateCombo combo = new AggregateCombo(service, thing, mds);
-                    combo.baseName = matcher.group(1).trim();
-                    String postfix = matcher.group(2);
-                    combo.level = AggregationLevel.of(postfix);
-                    if (combo.level == null) {
-                        LOGGER.debug("Not a postfix: {}.", postfix);
-                        continue;
-                    }
-                    combo.resolveZoneId(zoneId);
-                    LOGGER.debug("Found: {} from {}, timeZone {}", combo.level, combo.targetMds.getProperty(EP_NAME), combo.getZoneId());
-                    AggregationBase aggBase = getAggregationBase(combo.baseName);
-                    aggBase.addCombo(combo);
+                    addTargetMultiDatastream(thing, mds);
                 }
                 nr++;
-                setProgress(progressBase + nr * pPart);
+                if (count > 0) {
+                    thingScanProgress = 1.0 * nr / count;
+                    updateScanProgress();
+                }
             }
         } catch (ServiceFailureException exc) {
             LOGGER.error("Service error: ", exc);
         }
+        thingScanProgress = 1;
+    }
+
+    private AggregationBase addTargetMultiDatastream(Entity thing, Entity mds) {
+        trackId(maxMultiDatastreamId, mds);
+        String name = mds.getProperty(EP_NAME);
+        Matcher matcher = Utils.POSTFIX_PATTERN.matcher(name);
+        if (!matcher.matches()) {
+            LOGGER.debug("MultiDatastream {} is not an aggregate.", name);
+            return null;
+        }
+        AggregateCombo combo = new AggregateCombo(service, thing, mds);
+        combo.baseName = matcher.group(1).trim();
+        String postfix = matcher.group(2);
+        combo.level = AggregationLevel.of(postfix);
+        if (combo.level == null) {
+            LOGGER.debug("Not a postfix: {}.", postfix);
+            return null;
+        }
+        combo.resolveZoneId(zoneId);
+        LOGGER.debug("Found: {} from {}, timeZone {}", combo.level, combo.targetMds.getProperty(EP_NAME), combo.getZoneId());
+        AggregationBase aggBase = getAggregationBase(combo.baseName);
+        aggBase.addCombo(combo);
+        return aggBase;
+    }
+
+    private void trackId(AtomicLong maxId, Entity entity) {
+        Object id = entity.getPrimaryKeyValues().get(0);
+        if (id instanceof Number number) {
+            maxId.accumulateAndGet(number.longValue(), Math::max);
+        } else {
+            nonNumericIds = true;
+        }
+    }
+
+    /**
+     * Reports the combined progress of the Datastream and Thing scans, that
+     * run at the same time.
+     */
+    private void updateScanProgress() {
+        double fraction = thingScanProgress;
+        if (addEmptyBases) {
+            fraction = (dsScanProgress + thingScanProgress) / 2;
+        }
+        setProgress(progressBase + fraction * (progressTarget - progressBase));
     }
 
-    private void findSourceDatastreams(AggregateCombo target) {
+    private void findSourceDatastreams(AggregateCombo target, SourceResolver resolver) {
         try {
             AggregationBase base = aggregationBasesByName.get(target.baseName);
             if (base != null && base.getBaseDatastream() != null) {
                 target.sourceDs = base.getBaseDatastream();
                 target.sourceIsAggregate = false;
-                checkReferenceFromDs(target.sourceDs, target.targetMds, target.level);
+                checkReferenceFromDs(target.sourceDs, target.targetMds, target.level, repairQueue);
                 return;
             }
             {
                 MapValue properties = target.targetMds.getProperty(EP_PROPERTIES);
                 PkValue sourceDsId = PkValue.of(properties.get(KEY_AGGREGATE_SOURCE_D));
-                PkValue sourceMdsId = PkValue.of(properties.get(KEY_AGGREGATE_SOURCE_MD));
                 if (sourceDsId != null) {
-                    Entity sourceDs = null;
-                    try {
-                        sourceDs = service.dao(sMdl.etDatastream).find(sourceDsId);
-                    } catch (ServiceFailureException ex) {
+                    Entity sourceDs = resolver.getDatastream(sourceDsId);
+                    if (sourceDs == null) {
                         LOGGER.info("Invalid reference to Datastreams {} from {}", sourceDsId, target.targetMds);
-                    }
-                    if (sourceDs != null) {
+                    } else {
                         target.sourceDs = sourceDs;
                         target.baseName = target.sourceDs.getProperty(EP_NAME);
                         String expectedName = target.baseName + " " + target.level.toPostFix();
                         if (!expectedName.equals(target.targetMds.getProperty(EP_NAME))) {
-                            LOGGER.info("Updating name of MultiDatastreams({}) to {}", formatKeyValuesForUrl(target.targetMds), expectedName);
-                            target.targetMds.setProperty(EP_NAME, expectedName);
-                            try {
-                                service.update(target.targetMds);
-                            } catch (ServiceFailureException ex) {
-                                LOGGER.error("Failed to update {}", target.targetMds, ex);
-                            }
+                            LOGGER.info("Name of MultiDatastreams({}) should be {}", formatKeyValuesForUrl(target.targetMds), expectedName);
+                            repairQueue.addName(target.targetMds, expectedName);
                             target.sourceIsAggregate = false;
                         }
                         return;
                     }
                 }
             }
-            String nameQuoted = "'" + target.baseName.replaceAll("'", "''") + "'";
             {
-                List<Entity> list = null;
-                try {
-                    list = service.query(mMdl.etMultiDatastream)
-                            .filter("name eq " + nameQuoted)
-                            .top(1000)
-                            .orderBy("id asc")
-                            .list()
-                            .toList();
-                } catch (ServiceFailureException ex) {
-                    LOGGER.error("Failed to fetch MultiDatastreams", ex);
+                List<Entity> list = resolver.getMultiDatastreamsByName(target.baseName);
+                if (list.size() > 1) {
+                    LOGGER.warn("Multiple ({}) sources found for '{}'.", list.size(), target.baseName);
                 }
-                if (list != null) {
-                    if (list.size() > 1) {
-                        LOGGER.warn("Multiple ({}) sources found for '{}'.", list.size(), target.baseName);
-                    }
-                    if (!list.isEmpty()) {
-                        target.sourceMds = list.get(0);
-                        target.sourceIsAggregate = false;
-                        checkReferenceFromDs(target.sourceMds, target.targetMds, target.level);
-                        return;
-                    }
+                if (!list.isEmpty()) {
+                    target.sourceMds = list.get(0);
+                    target.sourceIsAggregate = false;
+                    checkReferenceFromDs(target.sourceMds, target.targetMds, target.level, repairQueue);
+                    return;
                 }
             }
             {
-                List<Entity> list = null;
-                try {
-                    list = service.query(sMdl.etDatastream)
-                            .filter("name eq " + nameQuoted)
-                            .top(1000)
-                            .orderBy("id asc")
-                            .list()
-                            .toList();
-                    if (list.isEmpty()) {
-                        list = service.query(sMdl.etDatastream)
-                                .filter("startswith(name," + nameQuoted + ")")
-                                .top(1000)
-                                .orderBy("id asc")
-                                .list()
-                                .toList();
-                    }
-                } catch (ServiceFailureException ex) {
-                    LOGGER.error("Failed to fetch Datastreams", ex);
+                List<Entity> list = resolver.getDatastreamsByName(target.baseName);
+                if (list.isEmpty()) {
+                    list = resolver.getDatastreamsByPrefix(target.baseName);
                 }
-                if (list != null) {
-                    if (list.size() > 1) {
-                        LOGGER.warn("Multiple ({}) sources found for '{}'.", list.size(), target.baseName);
-                    }
-                    for (Entity sourceDs : list) {
-                        String postfix = sourceDs.getProperty(EP_NAME).substring(target.baseName.length());
-                        if (!AggregationLevel.isPostfix(postfix)) {
-                            continue;
-                        }
-                        target.sourceDs = sourceDs;
-                        target.sourceIsAggregate = false;
-                        target.sourceIsCollection = true;
-                        checkReferenceFromDs(target.sourceDs, target.targetMds, target.level);
-                        return;
+                if (list.size() > 1) {
+                    LOGGER.warn("Multiple ({}) sources found for '{}'.", list.size(), target.baseName);
+                }
+                for (Entity sourceDs : list) {
+                    String postfix = sourceDs.getProperty(EP_NAME).substring(target.baseName.length());
+                    if (!AggregationLevel.isPostfix(postfix)) {
+                        continue;
                     }
+                    target.sourceDs = sourceDs;
+                    target.sourceIsAggregate = false;
+                    target.sourceIsCollection = true;
+                    checkReferenceFromDs(target.sourceDs, target.targetMds, target.level, repairQueue);
+                    return;
                 }
             }
             LOGGER.warn("No source found for '{}', {}.", target.baseName, target.targetMds);
@@ -276,51 +302,199 @@ public class AggregationData {
         }
     }
 
-    private void findSourceDatastreams(AggregationBase base) {
-        Set<AggregateCombo> comboSet = base.getCombos();
-        AggregateCombo[] targets = comboSet.toArray(AggregateCombo[]::new);
-        int i = 0;
-        for (AggregateCombo target : targets) {
-            int idx = i;
-            boolean found = false;
-            while (!found && idx > 0) {
-                // check the other combos
-                idx--;
-                AggregateCombo test = targets[idx];
-                long smaller = test.level.duration.getSeconds();
-                long larger = target.level.duration.getSeconds();
-                if (larger % smaller == 0) {
-                    LOGGER.debug("{}: {} ~ {} ({})", target.baseName, target.level, test.level, (larger / smaller));
-                    target.sourceMds = test.targetMds;
-                    target.sourceIsAggregate = true;
-                    found = true;
-                    checkReferenceFromMds(target.sourceMds, target.targetMds, target.level);
-                }
-            }
-            if (!found) {
+    /**
+     * Finds the sources of all combos of the given base, that have another
+     * combo of the same base as source, using the {@link SourcePlanner}.
+     * Combos that need a source that has to be looked up on the server are
+     * returned.
+     *
+     * @param base The base to find the sources for.
+     * @return The combos that still need a source.
+     */
+    private List<AggregateCombo> findSourceDatastreams(AggregationBase base) {
+        List<AggregateCombo> unresolved = new ArrayList<>();
+        for (SourcePlanner.PlanEntry entry : planner.plan(base)) {
+            AggregateCombo target = entry.getTarget();
+            AggregateCombo source = entry.getPlannedSource();
+            if (source == null) {
                 // No other combo is valid.
-                findSourceDatastreams(target);
-                if (target.sourceDs != null) {
-                    base.setBaseDatastream(target.sourceDs);
-                    base.setBaseMultiDatastream(null);
-                } else if (base.getBaseDatastream() == null) {
-                    base.setBaseMultiDatastream(target.sourceMds);
-                }
+                unresolved.add(target);
+                continue;
             }
-            i++;
+            LOGGER.debug("{}: {} ~ {}", target.baseName, target.level, source.level);
+            target.sourceMds = source.targetMds;
+            target.sourceIsAggregate = true;
+            checkReferenceFromMds(target.sourceMds, target.targetMds, target.level, repairQueue);
             LOGGER.debug("Found source for: {}.", target);
         }
+        return unresolved;
     }
 
-    private void findSourceDatastreams(List<AggregationBase> bases) {
-        long count = bases.size();
-        double pPart = (progressTarget - progressBase) / count;
-        int nr = 0;
+    /**
+     * Applies the changed entries of a source plan: sets the planned sources
+     * on the combos, and updates the source references on the server. The
+     * updates are sent directly, also when references are not fixed during
+     * discovery.
+     *
+     * @param plan The plan to apply.
+     * @return The number of combos that got a new source.
+     */
+    public int applySourcePlan(List<SourcePlanner.PlanEntry> plan) {
+        ReferenceRepairQueue planRepairs = new ReferenceRepairQueue();
+        int changed = 0;
+        for (SourcePlanner.PlanEntry entry : plan) {
+            if (!entry.isChange()) {
+                continue;
+            }
+            AggregateCombo target = entry.getTarget();
+            AggregateCombo source = entry.getPlannedSource();
+            MapValue properties = target.targetMds.getProperty(EP_PROPERTIES);
+            if (source == null) {
+                target.sourceDs = entry.getBase().getBaseDatastream();
+                target.sourceMds = null;
+                target.sourceIsAggregate = false;
+                clearProperty(target.targetMds, properties, KEY_AGGREGATE_SOURCE_MD, planRepairs);
+                checkReferenceFromDs(target.sourceDs, target.targetMds, target.level, planRepairs);
+            } else {
+                target.sourceDs = null;
+                target.sourceMds = source.targetMds;
+                target.sourceIsAggregate = true;
+                clearProperty(target.targetMds, properties, KEY_AGGREGATE_SOURCE_D, planRepairs);
+                checkReferenceFromMds(target.sourceMds, target.targetMds, target.level, planRepairs);
+            }
+            LOGGER.info("Changed source of {} to {}.", target, entry.getPlannedSourceName());
+            changed++;
+        }
+        planRepairs.apply(service, maxParallelRequests);
+        if (changed > 0 && snapshotFile != null) {
+            saveSnapshot();
+        }
+        return changed;
+    }
+
+    private static void clearProperty(Entity aggregateMds, MapValue properties, String key, ReferenceRepairQueue queue) {
+        if (properties != null && properties.get(key) != null) {
+            queue.addProperty(aggregateMds, key, null);
+        }
+    }
+
+    /**
+     * The queue holding the reference repairs found during the last discovery.
+     * If references are fixed, the queue is applied before discovery ends.
+     * Otherwise it can be inspected and applied using {@link #applyRepairs()}.
+     *
+     * @return The queue of reference repairs.
+     */
+    public ReferenceRepairQueue getRepairQueue() {
+        return repairQueue;
+    }
+
+    /**
+     * Applies the queued reference repairs, and updates the snapshot if any
+     * were applied.
+     *
+     * @return The number of repairs that failed.
+     */
+    public int applyRepairs() {
+        int queued = repairQueue.size();
+        int failed = repairQueue.apply(service, maxParallelRequests);
+        if (failed < queued && snapshotFile != null) {
+            saveSnapshot();
+        }
+        return failed;
+    }
+
+    public SourcePlanner getPlanner() {
+        return planner;
+    }
+
+    /**
+     * Sets the planner used to pick the sources of combos. Sharing a planner
+     * between reloads keeps the observation rates it knows about.
+     *
+     * @param planner The planner to use.
+     */
+    public void setPlanner(SourcePlanner planner) {
+        this.planner = planner;
+    }
+
+    private void setSourceDatastreams(AggregationBase base, List<AggregateCombo> targets, SourceResolver resolver) {
+        for (AggregateCombo target : targets) {
+            findSourceDatastreams(target, resolver);
+            if (target.sourceDs != null) {
+                base.setBaseDatastream(target.sourceDs);
+                base.setBaseMultiDatastream(null);
+            } else if (base.getBaseDatastream() == null) {
+                base.setBaseMultiDatastream(target.sourceMds);
+            }
+            LOGGER.debug("Found source for: {}.", target);
+        }
+    }
+
+    private void findSourceDatastreams(List<AggregationBase> bases, ExecutorService executor) {
+        final long count = bases.size();
+        final double pStart = progressBase;
+        final double pPart = (progressTarget - progressBase) / (2 * count);
+        final AtomicInteger nr = new AtomicInteger();
+        final Map<AggregationBase, List<AggregateCombo>> unresolved = new ConcurrentHashMap<>();
+        List<Future<?>> tasks = new ArrayList<>(bases.size());
         for (AggregationBase base : bases) {
-            findSourceDatastreams(base);
-            nr++;
-            setProgress(progressBase + nr * pPart);
+            tasks.add(executor.submit(() -> {
+                List<AggregateCombo> targets = findSourceDatastreams(base);
+                if (!targets.isEmpty()) {
+                    unresolved.put(base, targets);
+                }
+                setProgress(pStart + nr.incrementAndGet() * pPart);
+            }));
         }
+        waitFor(tasks);
+
+        // Look up the remaining sources in bulk, for all bases at once.
+        final List<AggregateCombo> toResolve = new ArrayList<>();
+        final List<AggregationBase> toUpdate = new ArrayList<>();
+        for (AggregationBase base : bases) {
+            List<AggregateCombo> targets = unresolved.get(base);
+            if (targets == null) {
+                continue;
+            }
+            toUpdate.add(base);
+            if (base.getBaseDatastream() == null) {
+                toResolve.addAll(targets);
+            }
+        }
+        final SourceResolver resolver = new SourceResolver(service);
+        resolver.resolve(toResolve, executor);
+        LOGGER.info("Resolved sources for {} bases using {} requests.", toUpdate.size(), resolver.getRequestCount());
+
+        tasks.clear();
+        nr.set(0);
+        final double pResolved = pStart + (progressTarget - progressBase) / 2;
+        final double pPartUpdate = (progressTarget - progressBase) / (2 * Math.max(1, toUpdate.size()));
+        for (AggregationBase base : toUpdate) {
+            tasks.add(executor.submit(() -> {
+                setSourceDatastreams(base, unresolved.get(base), resolver);
+                setProgress(pResolved + nr.incrementAndGet() * pPartUpdate);
+            }));
+        }
+        waitFor(tasks);
+    }
+
+    private static void waitFor(List<Future<?>> tasks) {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while gathering data.");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                LOGGER.error("Failed to gather data.", ex.getCause());
+            }
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        return new BoundedVirtualExecutor("AggregationData", maxParallelRequests);
     }
 
     private String baseNameFromName(String name) {
@@ -332,21 +506,27 @@ public class AggregationData {
     }
 
     private void gatherData() {
-        setProgress(0, 0.1);
-        if (addEmptyBases) {
-            findAllBases();
-            LOGGER.info("Found {} base names", aggregationBases.size());
+        setProgress(0, 0.3);
+        clearData();
+        ExecutorService executor = createExecutor();
+        try {
+            if (snapshotFile != null && loadFromSnapshot(executor)) {
+                setProgress(0.9, 1);
+            } else {
+                clearData();
+                setProgress(0, 0.3);
+                gatherFromServer(executor);
+            }
+        } finally {
+            executor.shutdownNow();
         }
-        moveProgress(0.3);
-
-        // Find target multidatastreams
-        findTargetMultiDatastreams();
-        LOGGER.info("Found {} comboSets", aggregationBasesByName.size());
-        moveProgress(0.9);
-
-        // Find source datastreams matching the targets
-        findSourceDatastreams(aggregationBases);
-        moveProgress(1);
+        if (fixReferences) {
+            repairQueue.apply(service, maxParallelRequests);
+        } else if (!repairQueue.isEmpty()) {
+            LOGGER.info("Found {} MultiDatastreams with incorrect references, not fixing.", repairQueue.size());
+        }
+        compactEntities();
+        planner.retainRates(aggregationBasesByName.keySet());
 
         combosBySource = new HashMap<>();
         long count = aggregationBasesByName.size();
@@ -370,6 +550,187 @@ public class AggregationData {
         }
         setProgress(1);
         LOGGER.info("Found {} unique source datastreams", combosBySource.size());
+        if (snapshotFile != null) {
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * Replaces the entities loaded during discovery with shared stubs, so the
+     * full entities, with all their properties, can be garbage collected.
+     */
+    private void compactEntities() {
+        final List<AggregationBase> stubbed = TopologyStubs.stubBases(service, aggregationBases, zoneId);
+        aggregationBases.clear();
+        aggregationBasesByName.clear();
+        for (AggregationBase base : stubbed) {
+            aggregationBases.add(base);
+            aggregationBasesByName.put(base.getBaseName(), base);
+            for (AggregateCombo combo : base.getCombos()) {
+                repairQueue.replaceTarget(combo.targetMds);
+            }
+        }
+        LOGGER.info("Replaced the entities of {} bases with stubs.", stubbed.size());
+    }
+
+    private void clearData() {
+        dsScanProgress = 0;
+        thingScanProgress = 0;
+        aggregationBases.clear();
+        aggregationBasesByName.clear();
+        maxDatastreamId.set(Long.MIN_VALUE);
+        maxMultiDatastreamId.set(Long.MIN_VALUE);
+        nonNumericIds = false;
+        repairQueue.clear();
+    }
+
+    private void gatherFromServer(ExecutorService executor) {
+        // Find base datastreams and target multidatastreams at the same time.
+        List<Future<?>> scans = new ArrayList<>();
+        if (addEmptyBases) {
+            scans.add(executor.submit(this::findAllBases));
+        }
+        scans.add(executor.submit(this::findTargetMultiDatastreams));
+        waitFor(scans);
+        // The scans run in parallel, so the order in which bases are found is random.
+        aggregationBases.sort(Comparator.comparing(AggregationBase::getBaseName));
+        LOGGER.info("Found {} comboSets", aggregationBasesByName.size());
+        moveProgress(0.9);
+
+        // Find source datastreams matching the targets
+        findSourceDatastreams(aggregationBases, executor);
+        moveProgress(1);
+    }
+
+    /**
+     * Loads the bases from the snapshot file, and updates them with the
+     * Datastreams and MultiDatastreams that were added since the snapshot was
+     * made. If entities were removed since the snapshot was made, the
+     * snapshot can not be used.
+     *
+     * @param executor The executor to use for parallel requests.
+     * @return true if the snapshot could be used, false if the data has to be
+     * loaded from the server.
+     */
+    private boolean loadFromSnapshot(ExecutorService executor) {
+        TopologySnapshot snapshot = TopologySnapshot.load(snapshotFile);
+        if (snapshot == null) {
+            return false;
+        }
+        if (serverUrl != null && !serverUrl.equals(snapshot.serverUrl)) {
+            LOGGER.info("Snapshot {} is for a different server.", snapshotFile);
+            return false;
+        }
+        if (snapshot.maxDatastreamId == null || snapshot.maxMultiDatastreamId == null) {
+            LOGGER.info("Snapshot can not be updated incrementally, the server does not use numeric ids.");
+            return false;
+        }
+        for (AggregationBase base : snapshot.restoreBases(service)) {
+            for (AggregateCombo combo : base.getCombos()) {
+                combo.resolveZoneId(zoneId);
+            }
+            aggregationBases.add(base);
+            aggregationBasesByName.put(base.getBaseName(), base);
+        }
+        maxDatastreamId.set(snapshot.maxDatastreamId);
+        maxMultiDatastreamId.set(snapshot.maxMultiDatastreamId);
+        LOGGER.info("Loaded {} bases from snapshot {}.", aggregationBases.size(), snapshotFile);
+        setProgress(0.1, 0.9);
+
+        try {
+            final Set<AggregationBase> changed = ConcurrentHashMap.newKeySet();
+            final AtomicLong newDatastreams = new AtomicLong();
+            final AtomicLong newMultiDatastreams = new AtomicLong();
+            List<Future<?>> scans = new ArrayList<>();
+            if (addEmptyBases) {
+                final Query dsQuery = service.query(sMdl.etDatastream)
+                        .select("id", "name", "description", "properties", "unitOfMeasurement")
+                        .filter("id gt " + snapshot.maxDatastreamId)
+                        .top(1000)
+                        .orderBy("id asc");
+                scans.add(executor.submit(() -> {
+                    for (Entity datastream : dsQuery.list()) {
+                        newDatastreams.incrementAndGet();
+                        changed.add(addBaseDatastream(datastream));
+                    }
+                    return null;
+                }));
+            }
+            final Query mdsQuery = service.query(mMdl.etMultiDatastream)
+                    .select("id", "name", "properties")
+                    .filter("id gt " + snapshot.maxMultiDatastreamId)
+                    .expand("Thing($select=id,name,properties)")
+                    .top(1000)
+                    .orderBy("id asc");
+            scans.add(executor.submit(() -> {
+                for (Entity mds : mdsQuery.list()) {
+                    newMultiDatastreams.incrementAndGet();
+                    AggregationBase base = addTargetMultiDatastream(mds.getProperty(mMdl.npMultidatastreamThing), mds);
+                    if (base != null) {
+                        changed.add(base);
+                    }
+                }
+                return null;
+            }));
+            Future<Long> dsCount = executor.submit(() -> countEntities(sMdl.etDatastream));
+            Future<Long> mdsCount = executor.submit(() -> countEntities(mMdl.etMultiDatastream));
+            for (Future<?> scan : scans) {
+                scan.get();
+            }
+            if (addEmptyBases && dsCount.get() != snapshot.datastreamCount + newDatastreams.get()) {
+                LOGGER.info("Datastreams were removed since the snapshot was made.");
+                return false;
+            }
+            if (mdsCount.get() != snapshot.multiDatastreamCount + newMultiDatastreams.get()) {
+                LOGGER.info("MultiDatastreams were removed since the snapshot was made.");
+                return false;
+            }
+            LOGGER.info("Found {} new Datastreams and {} new MultiDatastreams, affecting {} bases.", newDatastreams.get(), newMultiDatastreams.get(), changed.size());
+            if (!changed.isEmpty()) {
+                aggregationBases.sort(Comparator.comparing(AggregationBase::getBaseName));
+                List<AggregationBase> toUpdate = new ArrayList<>(changed);
+                for (AggregationBase base : toUpdate) {
+                    for (AggregateCombo combo : base.getCombos()) {
+                        combo.sourceDs = null;
+                        combo.sourceMds = null;
+                        combo.sourceIsAggregate = false;
+                        combo.sourceIsCollection = false;
+                    }
+                }
+                findSourceDatastreams(toUpdate, executor);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while updating snapshot.");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOGGER.error("Failed to update snapshot.", ex.getCause());
+        }
+        return false;
+    }
+
+    private long countEntities(EntityType type) throws ServiceFailureException {
+        return service.query(type).count(true).top(0).list().getCount();
+    }
+
+    private void saveSnapshot() {
+        if (nonNumericIds) {
+            LOGGER.info("Not saving snapshot, the server does not use numeric ids.");
+            return;
+        }
+        try {
+            TopologySnapshot snapshot = new TopologySnapshot();
+            snapshot.serverUrl = serverUrl;
+            snapshot.created = System.currentTimeMillis();
+            snapshot.maxDatastreamId = Math.max(0, maxDatastreamId.get());
+            snapshot.maxMultiDatastreamId = Math.max(0, maxMultiDatastreamId.get());
+            snapshot.datastreamCount = countEntities(sMdl.etDatastream);
+            snapshot.multiDatastreamCount = countEntities(mMdl.etMultiDatastream);
+            snapshot.addBases(aggregationBases);
+            snapshot.save(snapshotFile);
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to count entities for snapshot.", ex);
+        }
     }
 
     public List<AggregationBase> getAggregationBases() {
@@ -397,7 +758,7 @@ public class AggregationData {
         return combosBySource;
     }
 
-    private void checkReferenceFromDs(Entity sourceDs, Entity aggregateMds, AggregationLevel level) {
+    private void checkReferenceFromDs(Entity sourceDs, Entity aggregateMds, AggregationLevel level, ReferenceRepairQueue queue) {
         String expectedAggFor;
         String aggKey = null;
         Object aggId = null;
@@ -413,10 +774,10 @@ public class AggregationData {
         } else {
             expectedAggFor = sourceDs.getSelfLink();
         }
-        checkReference(aggregateMds, expectedAggFor, level, aggKey, aggId);
+        checkReference(aggregateMds, expectedAggFor, level, aggKey, aggId, queue);
     }
 
-    private void checkReferenceFromMds(Entity sourceMds, Entity aggregateMds, AggregationLevel level) {
+    private void checkReferenceFromMds(Entity sourceMds, Entity aggregateMds, AggregationLevel level, ReferenceRepairQueue queue) {
         String expectedAggFor;
         String aggKey = null;
         Object aggId = null;
@@ -427,10 +788,16 @@ public class AggregationData {
         } else {
             expectedAggFor = sourceMds.getSelfLink();
         }
-        checkReference(aggregateMds, expectedAggFor, level, aggKey, aggId);
+        checkReference(aggregateMds, expectedAggFor, level, aggKey, aggId, queue);
     }
 
-    private boolean checkProperty(MapValue properties, String property, Object value) {
+    /**
+     * Checks if the property has the given value, and logs the fix if it does
+     * not. The properties are not changed.
+     *
+     * @return true if the property needs to be fixed.
+     */
+    static boolean checkProperty(MapValue properties, String property, Object value) {
         Object checkValue = value;
         boolean changed = false;
         Object oldValue = properties.get(property);
@@ -447,43 +814,35 @@ public class AggregationData {
             } else {
                 LOGGER.info("Fixing property {}. Is ({}) {}, should be ({}) {}.", property, oldValue.getClass(), oldValue, checkValue.getClass(), checkValue);
             }
-            properties.put(property, value);
             changed = true;
         }
         return changed;
     }
 
-    private void checkReference(Entity aggregateMds, String expectedAggFor, AggregationLevel level, String aggSourceKey, Object aggSourceId) {
+    /**
+     * Checks the aggregate properties of the given MultiDatastream. The fixes
+     * are added to the given queue, the MultiDatastream is only changed when
+     * the queue is applied.
+     */
+    private void checkReference(Entity aggregateMds, String expectedAggFor, AggregationLevel level, String aggSourceKey, Object aggSourceId, ReferenceRepairQueue queue) {
         MapValue properties = aggregateMds.getProperty(EP_PROPERTIES);
         if (properties == null) {
             properties = new MapValue(TypeComplex.STA_MAP);
-            aggregateMds.setProperty(EP_PROPERTIES, properties);
         }
-        boolean changed = false;
-        changed = changed | checkProperty(properties, Utils.KEY_AGGREGATE_AMOUNT, level.amount);
-        changed = changed | checkProperty(properties, Utils.KEY_AGGREGATE_UNIT, level.unit.toString());
-        if (aggSourceKey != null) {
-            changed = changed | checkProperty(properties, aggSourceKey, aggSourceId);
+        if (checkProperty(properties, Utils.KEY_AGGREGATE_AMOUNT, level.amount)) {
+            queue.addProperty(aggregateMds, Utils.KEY_AGGREGATE_AMOUNT, level.amount);
+        }
+        if (checkProperty(properties, Utils.KEY_AGGREGATE_UNIT, level.unit.toString())) {
+            queue.addProperty(aggregateMds, Utils.KEY_AGGREGATE_UNIT, level.unit.toString());
+        }
+        if (aggSourceKey != null && checkProperty(properties, aggSourceKey, aggSourceId)) {
+            queue.addProperty(aggregateMds, aggSourceKey, aggSourceId);
         }
 
         String aggFor = Objects.toString(properties.get(Utils.KEY_AGGREGATE_FOR));
         if (!expectedAggFor.equals(aggFor)) {
-            if (fixReferences) {
-                LOGGER.info("Setting source reference for {} to {}.", aggregateMds.getProperty(EP_NAME), expectedAggFor);
-                properties.put(Utils.KEY_AGGREGATE_FOR, expectedAggFor);
-                changed = true;
-            } else {
-                LOGGER.info("Source reference for {} not correct. Should be {}.", aggregateMds.getProperty(EP_NAME), expectedAggFor);
-            }
-        }
-        if (changed && fixReferences) {
-            try {
-                Entity copyMds = aggregateMds.withOnlyPk();
-                copyMds.setProperty(EP_PROPERTIES, aggregateMds.getProperty(EP_PROPERTIES));
-                service.update(copyMds);
-            } catch (ServiceFailureException ex) {
-                LOGGER.error("Failed to update reference.", ex);
-            }
+            LOGGER.info("Source reference for {} not correct. Should be {}.", aggregateMds.getProperty(EP_NAME), expectedAggFor);
+            queue.addProperty(aggregateMds, Utils.KEY_AGGREGATE_FOR, expectedAggFor);
         }
     }
 
@@ -491,6 +850,39 @@ public class AggregationData {
         this.zoneId = zoneId;
     }
 
+    /**
+     * Sets the file to store a snapshot of the aggregation topology in. If the
+     * file exists, the data is loaded from the snapshot and only entities that
+     * are newer than the snapshot are loaded from the server.
+     *
+     * @param snapshotFile The file to use for the snapshot, or null to always
+     * load all data from the server.
+     * @param serverUrl The url of the server, used to check that the snapshot
+     * belongs to the server.
+     */
+    public void setSnapshotFile(File snapshotFile, String serverUrl) {
+        this.snapshotFile = snapshotFile;
+        this.serverUrl = serverUrl;
+    }
+
+    public int getMaxParallelRequests() {
+        return maxParallelRequests;
+    }
+
+    /**
+     * Sets the maximum number of requests that are sent to the server in
+     * parallel while gathering data.
+     *
+     * @param maxParallelRequests The maximum number of parallel requests, at
+     * least 1.
+     */
+    public void setMaxParallelRequests(int maxParallelRequests) {
+        if (maxParallelRequests < 1) {
+            throw new IllegalArgumentException("maxParallelRequests must be at least 1. Given: " + maxParallelRequests);
+        }
+        this.maxParallelRequests = maxParallelRequests;
+    }
+
     public void moveProgress(double target) {
         progressBase = progressTarget;
         progressTarget = target;
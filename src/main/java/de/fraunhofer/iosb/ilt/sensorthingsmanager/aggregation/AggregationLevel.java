@@ -22,6 +22,7 @@ import de.fraunhofer.iosb.ilt.configurable.annotations.ConfigurableField;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorEnum;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorInt;
 import java.time.Duration;
+import java.time.LocalDateTime;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalAdjusters;
@@ -129,28 +130,56 @@ public class AggregationLevel extends AbstractConfigurable<Void, Void> implement
     }
 
     public ZonedDateTime toIntervalStart(ZonedDateTime time) {
-        ZonedDateTime start;
+        ZonedDateTime start = toAnchor(time);
+        long haveMillis = Duration.between(start, time).toMillis();
+        long maxMillis = duration.toMillis();
+        long periods = haveMillis / maxMillis;
+        start = start.plus(duration.multipliedBy(periods));
+        return start;
+    }
+
+    /**
+     * Truncates the given time to the start of the period in which the
+     * intervals of this level are counted: the minute for seconds, the hour
+     * for minutes, the day for hours and the year for everything else.
+     *
+     * @param time The time to truncate.
+     * @return The start of the period the given time is in.
+     */
+    ZonedDateTime toAnchor(ZonedDateTime time) {
+        return ZonedDateTime.ofLocal(toAnchor(time.toLocalDateTime()), time.getZone(), time.getOffset());
+    }
+
+    /**
+     * Truncates the given local time to the start of the period in which the
+     * intervals of this level are counted.
+     *
+     * @param time The time to truncate.
+     * @return The start of the period the given time is in.
+     */
+    LocalDateTime toAnchor(LocalDateTime time) {
         switch (ChronoUnit.valueOf(unit.toString().toUpperCase())) {
             case SECONDS:
-                start = time.truncatedTo(ChronoUnit.MINUTES);
-                break;
+                return time.truncatedTo(ChronoUnit.MINUTES);
             case MINUTES:
-                start = time.truncatedTo(ChronoUnit.HOURS);
-                break;
+                return time.truncatedTo(ChronoUnit.HOURS);
             case HOURS:
-                start = time.truncatedTo(ChronoUnit.DAYS);
-                break;
+                return time.truncatedTo(ChronoUnit.DAYS);
             case DAYS:
-                start = time.with(TemporalAdjusters.firstDayOfYear()).truncatedTo(ChronoUnit.DAYS);
-                break;
+                return time.with(TemporalAdjusters.firstDayOfYear()).truncatedTo(ChronoUnit.DAYS);
             default:
-                start = time.with(TemporalAdjusters.firstDayOfYear()).truncatedTo(ChronoUnit.DAYS);
+                return time.with(TemporalAdjusters.firstDayOfYear()).truncatedTo(ChronoUnit.DAYS);
         }
-        long haveMillis = Duration.between(start, time).toMillis();
-        long maxMillis = duration.toMillis();
-        long periods = haveMillis / maxMillis;
-        start = start.plus(duration.multipliedBy(periods));
-        return start;
+    }
+
+    /**
+     * Checks if the intervals of this level have a fixed length, so they can
+     * be calculated using plain millisecond arithmetic.
+     *
+     * @return true if the unit is DAYS or smaller.
+     */
+    public boolean hasFixedLength() {
+        return unit instanceof ChronoUnit cu && cu.compareTo(ChronoUnit.DAYS) <= 0;
     }
 
     @Override
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * A declarative description of the wanted aggregation levels. Each rule
+ * selects bases by a regular expression on the base name, by the definition
+ * of the ObservedProperty of the base Datastream, or both, and lists the
+ * levels those bases should have. A base matched by several rules gets the
+ * levels of all of them. Bases that match no rule are left alone.
+ *
+ * Stored as JSON, for example:
+ * <pre>
+ * {
+ *   "deleteUnlisted": true,
+ *   "rules": [
+ *     {"baseName": "Temperature .*", "levels": ["1 hours", "1 days"]},
+ *     {"observedProperty": "http://example.org/Rainfall", "levels": ["1 days"]}
+ *   ]
+ * }
+ * </pre>
+ *
+ * @author scf
+ */
+public class AggregationSpec {
+
+    public static class Rule {
+
+        /**
+         * A regular expression that must match the whole base name.
+         */
+        public String baseName;
+        /**
+         * The definition of the ObservedProperty of the base Datastream.
+         */
+        public String observedProperty;
+        /**
+         * The wanted levels, like "1 hours".
+         */
+        public List<String> levels = new ArrayList<>();
+
+        private transient Pattern pattern;
+        private transient List<AggregationLevel> parsedLevels;
+
+        private void init() {
+            if (baseName == null && observedProperty == null) {
+                throw new IllegalArgumentException("A rule needs a baseName, an observedProperty, or both.");
+            }
+            if (baseName != null) {
+                pattern = Pattern.compile(baseName);
+            }
+            parsedLevels = new ArrayList<>();
+            for (String level : levels) {
+                AggregationLevel parsed = AggregationLevel.of(level);
+                if (parsed == null) {
+                    throw new IllegalArgumentException("Not a valid level: " + level);
+                }
+                parsedLevels.add(parsed);
+            }
+        }
+
+        public boolean matches(String name, String definition) {
+            if (pattern != null && !pattern.matcher(name).matches()) {
+                return false;
+            }
+            return observedProperty == null || observedProperty.equals(definition);
+        }
+
+        public List<AggregationLevel> getParsedLevels() {
+            return parsedLevels;
+        }
+    }
+
+    /**
+     * If true, levels that exist for a matched base, but are not listed for
+     * it, are deleted.
+     */
+    public boolean deleteUnlisted;
+    public List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Loads and checks a spec.
+     *
+     * @param file The file to load from.
+     * @return The loaded spec.
+     * @throws IOException If the file can not be read.
+     * @throws IllegalArgumentException If a rule is not valid.
+     */
+    public static AggregationSpec load(File file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), Utils.UTF8)) {
+            AggregationSpec spec = new Gson().fromJson(reader, AggregationSpec.class);
+            if (spec == null) {
+                throw new IllegalArgumentException("Empty spec file: " + file);
+            }
+            spec.init();
+            return spec;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), Utils.UTF8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(this, writer);
+        }
+    }
+
+    /**
+     * Parses the levels and patterns of all rules.
+     *
+     * @return this.
+     */
+    public AggregationSpec init() {
+        for (Rule rule : rules) {
+            rule.init();
+        }
+        return this;
+    }
+
+    /**
+     * @return true if any rule matches on the ObservedProperty.
+     */
+    public boolean needsObservedProperties() {
+        return rules.stream().anyMatch(r -> r.observedProperty != null);
+    }
+
+    /**
+     * Finds the levels the given base should have.
+     *
+     * @param baseName The name of the base.
+     * @param definition The definition of the ObservedProperty of the base,
+     * may be null.
+     * @return The wanted levels, or null if no rule matches.
+     */
+    public Set<AggregationLevel> getWantedLevels(String baseName, String definition) {
+        Set<AggregationLevel> wanted = null;
+        for (Rule rule : rules) {
+            if (rule.matches(baseName, definition)) {
+                if (wanted == null) {
+                    wanted = new TreeSet<>();
+                }
+                wanted.addAll(rule.getParsedLevels());
+            }
+        }
+        return wanted;
+    }
+
+    /**
+     * Creates a spec with one rule for each of the given bases, holding the
+     * levels the base has, changed by the levels toggled in the GUI.
+     *
+     * @param bases The bases to create the spec for.
+     * @return The new spec.
+     */
+    public static AggregationSpec fromBases(Collection<AggregationBase> bases) {
+        AggregationSpec spec = new AggregationSpec();
+        List<AggregationBase> sorted = new ArrayList<>(bases);
+        sorted.sort(Comparator.comparing(AggregationBase::getBaseName));
+        for (AggregationBase base : sorted) {
+            Set<AggregationLevel> levels = new TreeSet<>(base.getCombosByLevel().keySet());
+            for (Map.Entry<AggregationLevel, Boolean> entry : base.getWantedLevels().entrySet()) {
+                if (entry.getValue()) {
+                    levels.add(entry.getKey());
+                } else {
+                    levels.remove(entry.getKey());
+                }
+            }
+            if (levels.isEmpty()) {
+                continue;
+            }
+            Rule rule = new Rule();
+            rule.baseName = Pattern.quote(base.getBaseName());
+            for (AggregationLevel level : levels) {
+                rule.levels.add(level.toString());
+            }
+            spec.rules.add(rule);
+        }
+        return spec.init();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_DESCRIPTION;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_UNITOFMEASUREMENT;
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.frostclient.utils.CollectionsHelper;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ParallelRunner;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates and deletes aggregate MultiDatastreams for the levels that were
+ * enabled or disabled in the aggregation table. The changes of one base are
+ * applied in order, while the changes of different bases run in parallel,
+ * with a bounded number of bases in flight.
+ *
+ * The aggregate ObservedProperties of each ObservedProperty are looked up, or
+ * created, only once per run, even when many bases use the same
+ * ObservedProperty at the same time. Before creating, the names of all
+ * ObservedProperties and MultiDatastreams are loaded in bulk, so existing
+ * entities are found without a request each. A failing change is recorded,
+ * and does not stop the other changes.
+ *
+ * @author scf
+ */
+public class ApplyEngine {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApplyEngine.class);
+
+    /**
+     * The default maximum number of bases that are worked on at the same
+     * time.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    /**
+     * A single create or delete.
+     */
+    public static class Change {
+
+        private final AggregationBase base;
+        private final AggregationLevel level;
+        private final boolean create;
+
+        public Change(AggregationBase base, AggregationLevel level, boolean create) {
+            this.base = base;
+            this.level = level;
+            this.create = create;
+        }
+
+        public AggregationBase getBase() {
+            return base;
+        }
+
+        public AggregationLevel getLevel() {
+            return level;
+        }
+
+        /**
+         * @return true for a create, false for a delete.
+         */
+        public boolean isCreate() {
+            return create;
+        }
+
+        @Override
+        public String toString() {
+            return (create ? "Create " : "DELETE ") + level + " for " + base.getBaseName();
+        }
+    }
+
+    /**
+     * A change that failed.
+     */
+    public static class Failure {
+
+        private final Change change;
+        private final Exception exception;
+
+        public Failure(Change change, Exception exception) {
+            this.change = change;
+            this.exception = exception;
+        }
+
+        public Change getChange() {
+            return change;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return change + ": " + exception.getMessage();
+        }
+    }
+
+    private final SensorThingsService service;
+    private final SensorThingsV11Sensing sMdl;
+    private final SensorThingsUtils utils;
+    private final ParallelRunner runner = new ParallelRunner("Apply", "changes", DEFAULT_MAX_IN_FLIGHT);
+
+    private final Map<String, FutureTask<List<Entity>>> aggregateOps = new ConcurrentHashMap<>();
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+    public ApplyEngine(SensorThingsService service, SensorThingsUtils utils) {
+        this.service = service;
+        this.utils = utils;
+        sMdl = service.getModel(SensorThingsV11Sensing.class);
+    }
+
+    public int getMaxInFlight() {
+        return runner.getMaxParallel();
+    }
+
+    /**
+     * @param maxInFlight The maximum number of bases worked on at the same
+     * time.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        runner.setMaxParallel(maxInFlight);
+    }
+
+    public void setProgressListener(ParallelRunner.ProgressListener progressListener) {
+        runner.setProgressListener(progressListener);
+    }
+
+    /**
+     * Finds the changes needed to make the present levels of the bases match
+     * their wanted levels.
+     *
+     * @param bases The bases to check.
+     * @return The changes, grouped by base.
+     */
+    public static List<Change> findChanges(Collection<AggregationBase> bases) {
+        List<Change> changes = new ArrayList<>();
+        for (AggregationBase base : bases) {
+            Map<AggregationLevel, AggregateCombo> presentLevels = base.getCombosByLevel();
+            for (Map.Entry<AggregationLevel, Boolean> wantedEntry : base.getWantedLevels().entrySet()) {
+                AggregationLevel level = wantedEntry.getKey();
+                boolean wanted = wantedEntry.getValue();
+                if (wanted && !presentLevels.containsKey(level)) {
+                    changes.add(new Change(base, level, true));
+                } else if (!wanted && presentLevels.containsKey(level)) {
+                    changes.add(new Change(base, level, false));
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Applies the given changes. Blocks until all changes are done, or the
+     * run is cancelled.
+     *
+     * @param changes The changes to apply.
+     * @return The changes that failed.
+     */
+    public List<Failure> run(List<Change> changes) {
+        failures.clear();
+        runner.start(changes.size());
+        Map<AggregationBase, List<Change>> changesByBase = new LinkedHashMap<>();
+        for (Change change : changes) {
+            changesByBase.computeIfAbsent(change.base, b -> new ArrayList<>()).add(change);
+        }
+        LOGGER.info("Applying {} changes to {} bases.", changes.size(), changesByBase.size());
+        if (changes.stream().anyMatch(Change::isCreate)) {
+            try {
+                utils.loadNameIndexes(service, true);
+            } catch (ServiceFailureException ex) {
+                LOGGER.warn("Failed to load name indexes, looking up names one by one: {}", ex.getMessage());
+            }
+        }
+        List<Runnable> work = new ArrayList<>();
+        for (List<Change> baseChanges : changesByBase.values()) {
+            work.add(() -> runBase(baseChanges));
+        }
+        runner.runAll(work);
+        LOGGER.info("Applying changes {}: {}", runner.isCancelled() ? "cancelled" : "done", getStatus());
+        return getFailures();
+    }
+
+    private void runBase(List<Change> baseChanges) {
+        for (Change change : baseChanges) {
+            if (runner.isCancelled() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                if (change.create) {
+                    createAggregate(change.base, change.level);
+                } else {
+                    deleteAggregate(change.base, change.level);
+                }
+                runner.taskDone(1);
+            } catch (ServiceFailureException | RuntimeException ex) {
+                LOGGER.error("Failed: {}", change, ex);
+                failures.add(new Failure(change, ex));
+                runner.taskFailed(1);
+            }
+        }
+    }
+
+    private void createAggregate(AggregationBase base, AggregationLevel level) throws ServiceFailureException {
+        LOGGER.info("Creating {} for {}.", level, base.getBaseName());
+        Entity baseDs = base.loadBaseDatastream(service);
+        if (baseDs == null) {
+            throw new IllegalStateException("No base Datastream for " + base.getBaseName());
+        }
+        Entity op = baseDs.getProperty(sMdl.npDatastreamObservedproperty);
+        UnitOfMeasurement uom = baseDs.getProperty(EP_UNITOFMEASUREMENT);
+
+        List<Entity> ops = new ArrayList<>();
+        ops.add(op);
+        ops.addAll(getAggregateOps(op));
+        List<UnitOfMeasurement> uoms = new ArrayList<>();
+        for (Entity op1 : ops) {
+            uoms.add(uom);
+        }
+
+        MapValue aggProps = CollectionsHelper.propertiesBuilder()
+                .addItem(Utils.KEY_AGGREGATE_SOURCE_D, formatKeyValuesForUrl(baseDs))
+                .addItem(Utils.KEY_AGGREGATE_FOR, "/Datastreams(" + formatKeyValuesForUrl(baseDs) + ")")
+                .addItem(Utils.KEY_AGGREGATE_AMOUNT, level.amount)
+                .addItem(Utils.KEY_AGGREGATE_UNIT, level.unit.toString())
+                .build();
+        String mdsName = base.getBaseName() + " " + level.toPostFix();
+        String mdsDesc = baseDs.getProperty(EP_DESCRIPTION) + " aggregated per " + level.amount + " " + level.unit;
+        utils.findOrCreateMultiDatastream(
+                service, mdsName, mdsDesc, uoms,
+                baseDs.getProperty(sMdl.npDatastreamThing), ops,
+                baseDs.getProperty(sMdl.npDatastreamSensor), aggProps);
+    }
+
+    /**
+     * Gets the Min, Max and Dev ObservedProperties for the given
+     * ObservedProperty. Concurrent callers for the same ObservedProperty
+     * wait for the first one, callers for other ObservedProperties do not.
+     */
+    private List<Entity> getAggregateOps(Entity op) throws ServiceFailureException {
+        String key = formatKeyValuesForUrl(op);
+        FutureTask<List<Entity>> newTask = new FutureTask<>(() -> {
+            utils.findOrCreateAggregateOps(service, op);
+            return new ArrayList<>(utils.getAggregateOps(op));
+        });
+        FutureTask<List<Entity>> task = aggregateOps.putIfAbsent(key, newTask);
+        if (task == null) {
+            task = newTask;
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for ObservedProperties.", ex);
+        } catch (ExecutionException ex) {
+            aggregateOps.remove(key, task);
+            if (ex.getCause() instanceof ServiceFailureException sfe) {
+                throw sfe;
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    private void deleteAggregate(AggregationBase base, AggregationLevel level) throws ServiceFailureException {
+        AggregateCombo combo = base.getCombosByLevel().get(level);
+        if (combo == null) {
+            throw new IllegalStateException("Can not delete " + level + " for " + base.getBaseName() + ", no such combo.");
+        }
+        LOGGER.info("Deleting {} for {}", level, base.getBaseName());
+        service.delete(combo.targetMds);
+    }
+
+    /**
+     * Stops the running apply. Changes that are being applied are
+     * interrupted, bases that have not started are skipped.
+     */
+    public void cancel() {
+        runner.cancel();
+    }
+
+    public boolean isCancelled() {
+        return runner.isCancelled();
+    }
+
+    /**
+     * @return The changes that failed so far.
+     */
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    /**
+     * @return A human readable description of the progress, failures and
+     * throughput.
+     */
+    public String getStatus() {
+        return runner.getStatus();
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_PHENOMENONTIME;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeValue;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ParallelRunner;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.time4j.Moment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-calculates the aggregates of many bases over a long period. The period is
+ * split into chunks that are aligned to the intervals of the largest
+ * aggregation level of each base. The chunks of one base are processed in
+ * order, while several bases are processed in parallel.
+ *
+ * @author scf
+ */
+public class BackfillScheduler {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackfillScheduler.class);
+
+    /**
+     * The default maximum number of bases that are processed in parallel.
+     */
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+
+    /**
+     * The default minimum duration of one chunk.
+     */
+    public static final Duration DEFAULT_CHUNK_DURATION = Duration.ofDays(7);
+
+    /**
+     * A chunk or gap that failed to re-calculate.
+     */
+    public static class Failure {
+
+        private final AggregationBase base;
+        private final String what;
+        private final Exception exception;
+
+        public Failure(AggregationBase base, String what, Exception exception) {
+            this.base = base;
+            this.what = what;
+            this.exception = exception;
+        }
+
+        public AggregationBase getBase() {
+            return base;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return base.getBaseName() + " " + what + ": " + exception.getMessage();
+        }
+    }
+
+    private final SensorThingsService service;
+    private final SensorThingsV11Sensing sMdl;
+    private final AggregationCalculator calculator;
+    private final boolean calculateLocally;
+    private Duration chunkDuration = DEFAULT_CHUNK_DURATION;
+    private final ParallelRunner runner = new ParallelRunner("Backfill", "intervals", DEFAULT_MAX_PARALLEL);
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param service The service to work on.
+     * @param calculateLocally If true, the aggregates are calculated using an
+     * {@link AggregationCalculator}, if false the server is triggered to
+     * re-calculate each chunk by creating and deleting a dummy Observation.
+     */
+    public BackfillScheduler(SensorThingsService service, boolean calculateLocally) {
+        this.service = service;
+        this.calculateLocally = calculateLocally;
+        sMdl = service.getModel(SensorThingsV11Sensing.class);
+        calculator = calculateLocally ? new AggregationCalculator(service) : null;
+    }
+
+    public int getMaxParallel() {
+        return runner.getMaxParallel();
+    }
+
+    /**
+     * @param maxParallel The maximum number of bases processed in parallel.
+     */
+    public void setMaxParallel(int maxParallel) {
+        runner.setMaxParallel(maxParallel);
+    }
+
+    public Duration getChunkDuration() {
+        return chunkDuration;
+    }
+
+    /**
+     * @param chunkDuration The minimum duration of one chunk. Chunks are never
+     * shorter than one interval of the largest aggregation level of a base.
+     */
+    public void setChunkDuration(Duration chunkDuration) {
+        this.chunkDuration = chunkDuration;
+    }
+
+    public void setProgressListener(ParallelRunner.ProgressListener progressListener) {
+        runner.setProgressListener(progressListener);
+    }
+
+    /**
+     * @return The calculator used, or null if the server does the calculation.
+     */
+    public AggregationCalculator getCalculator() {
+        return calculator;
+    }
+
+    public boolean isCancelled() {
+        return runner.isCancelled();
+    }
+
+    /**
+     * Stops the running backfill. Chunks that are being processed are
+     * interrupted, chunks that have not started are skipped.
+     */
+    public void cancel() {
+        runner.cancel();
+    }
+
+    /**
+     * Re-calculates the given bases over the given period. Blocks until all
+     * chunks are done, or the run is cancelled.
+     *
+     * @param bases The bases to re-calculate.
+     * @param start The start of the period.
+     * @param end The end of the period.
+     * @return The chunks that failed.
+     */
+    public List<Failure> run(Collection<AggregationBase> bases, Moment start, Moment end) {
+        failures.clear();
+        long intervalsTotal = 0;
+        Map<AggregationBase, List<TimeInterval>> chunksByBase = new LinkedHashMap<>();
+        for (AggregationBase base : bases) {
+            List<TimeInterval> chunks = createChunks(base, start, end);
+            if (chunks.isEmpty()) {
+                continue;
+            }
+            chunksByBase.put(base, chunks);
+            for (TimeInterval chunk : chunks) {
+                intervalsTotal += countIntervals(base, chunk);
+            }
+        }
+        LOGGER.info("Backfilling {} bases, about {} intervals.", chunksByBase.size(), intervalsTotal);
+        List<Runnable> work = new ArrayList<>();
+        for (Map.Entry<AggregationBase, List<TimeInterval>> entry : chunksByBase.entrySet()) {
+            work.add(() -> runBase(entry.getKey(), entry.getValue()));
+        }
+        runner.start(intervalsTotal);
+        runner.runAll(work);
+        LOGGER.info("Backfill {}: {}", runner.isCancelled() ? "cancelled" : "done", getStatus());
+        return getFailures();
+    }
+
+    /**
+     * Re-calculates the given gaps, for instance found by a
+     * {@link CoverageAnalyser}. The gaps of one base are processed in order,
+     * while several bases are processed in parallel. Blocks until all gaps are
+     * done, or the run is cancelled.
+     *
+     * @param gaps The gaps to re-calculate.
+     * @return The gaps that failed.
+     */
+    public List<Failure> runGaps(List<CoverageAnalyser.Gap> gaps) {
+        failures.clear();
+        long intervalsTotal = 0;
+        Map<AggregationBase, List<CoverageAnalyser.Gap>> gapsByBase = new LinkedHashMap<>();
+        for (CoverageAnalyser.Gap gap : gaps) {
+            gapsByBase.computeIfAbsent(gap.getBase(), b -> new ArrayList<>()).add(gap);
+            intervalsTotal += gap.getBucketCount();
+        }
+        LOGGER.info("Filling {} gaps in {} bases, {} intervals.", gaps.size(), gapsByBase.size(), intervalsTotal);
+        List<Runnable> work = new ArrayList<>();
+        for (List<CoverageAnalyser.Gap> baseGaps : gapsByBase.values()) {
+            work.add(() -> runGapsOfBase(baseGaps));
+        }
+        runner.start(intervalsTotal);
+        runner.runAll(work);
+        LOGGER.info("Filling gaps {}: {}", runner.isCancelled() ? "cancelled" : "done", getStatus());
+        return getFailures();
+    }
+
+    private void runGapsOfBase(List<CoverageAnalyser.Gap> gaps) {
+        for (CoverageAnalyser.Gap gap : gaps) {
+            if (runner.isCancelled() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                if (calculateLocally) {
+                    calculator.calculate(gap.getBase(), gap.getCombo(), gap.getStart(), gap.getEnd());
+                } else {
+                    triggerServer(gap.getBase(), gap.getStart(), gap.getEnd());
+                }
+                runner.taskDone(gap.getBucketCount());
+            } catch (ServiceFailureException | RuntimeException ex) {
+                LOGGER.error("Failed to fill gap {}.", gap, ex);
+                failures.add(new Failure(gap.getBase(), "gap " + gap.getCombo().level + " " + gap.getStart() + "/" + gap.getEnd(), ex));
+                runner.taskFailed(gap.getBucketCount());
+            }
+        }
+    }
+
+    private void runBase(AggregationBase base, List<TimeInterval> chunks) {
+        for (TimeInterval chunk : chunks) {
+            if (runner.isCancelled() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                if (calculateLocally) {
+                    calculator.calculate(base, chunk.getStart(), chunk.getEnd());
+                } else {
+                    triggerServer(base, chunk.getStart(), chunk.getEnd());
+                }
+                runner.taskDone(countIntervals(base, chunk));
+            } catch (ServiceFailureException | RuntimeException ex) {
+                LOGGER.error("Failed to re-calculate {} for {}.", chunk, base.getBaseName(), ex);
+                failures.add(new Failure(base, "chunk " + chunk, ex));
+                runner.taskFailed(countIntervals(base, chunk));
+            }
+        }
+    }
+
+    private void triggerServer(AggregationBase base, Moment start, Moment end) throws ServiceFailureException {
+        Entity baseDs = base.getBaseDatastream();
+        if (baseDs == null) {
+            LOGGER.error("No base Datastream for {}", base.getBaseName());
+            return;
+        }
+        Entity dummyObs = sMdl.newObservation("Dummy", baseDs);
+        dummyObs.setProperty(EP_PHENOMENONTIME, TimeValue.create(start, end));
+        service.create(dummyObs);
+        service.delete(dummyObs);
+    }
+
+    /**
+     * Splits the given period into chunks, aligned to the intervals of the
+     * largest aggregation level of the given base.
+     */
+    private List<TimeInterval> createChunks(AggregationBase base, Moment start, Moment end) {
+        List<TimeInterval> chunks = new ArrayList<>();
+        AggregateCombo largest = null;
+        for (AggregateCombo combo : base.getCombos()) {
+            if (largest == null || combo.level.compareTo(largest.level) > 0) {
+                largest = combo;
+            }
+        }
+        if (largest == null) {
+            LOGGER.info("No aggregate levels for {}, nothing to do.", base.getBaseName());
+            return chunks;
+        }
+        long perChunk = Math.max(1, chunkDuration.toMillis() / largest.level.duration.toMillis());
+        Moment chunkStart = largest.calculateIntervalForTime(start).getStart();
+        while (chunkStart.isBefore(end)) {
+            Moment chunkEnd = chunkStart;
+            for (long i = 0; i < perChunk && chunkEnd.isBefore(end); i++) {
+                chunkEnd = largest.calculateIntervalForTime(chunkEnd).getEnd();
+            }
+            chunks.add(TimeInterval.create(chunkStart, chunkEnd.isAfter(end) ? end : chunkEnd));
+            chunkStart = chunkEnd;
+        }
+        return chunks;
+    }
+
+    private static long countIntervals(AggregationBase base, TimeInterval chunk) {
+        long millis = chunk.getEnd().toTemporalAccessor().toEpochMilli() - chunk.getStart().toTemporalAccessor().toEpochMilli();
+        long count = 0;
+        for (AggregateCombo combo : base.getCombos()) {
+            long levelMillis = combo.level.duration.toMillis();
+            count += (millis + levelMillis - 1) / levelMillis;
+        }
+        return count;
+    }
+
+    /**
+     * @return A human readable description of the progress, throughput and
+     * remaining time.
+     */
+    public String getStatus() {
+        return runner.getStatus();
+    }
+
+    /**
+     * @return The chunks or gaps that failed so far.
+     */
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative int bucket indices, in the style of a
+ * Roaring bitmap. The indices are split by their upper 16 bits into
+ * containers. Sparse containers hold a sorted array of the lower 16 bits,
+ * dense containers a bitmap of 65536 bits.
+ *
+ * Not thread safe.
+ *
+ * @author scf
+ */
+public class BucketBitmap {
+
+    /**
+     * The maximum number of values in an array container. Above this, a
+     * bitmap container is smaller.
+     */
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private int[] keys = new int[4];
+    private Object[] containers = new Object[4];
+    private int[] cardinalities = new int[4];
+    private int size;
+
+    /**
+     * Adds the given index.
+     *
+     * @param index The index to add, must not be negative.
+     */
+    public void add(int index) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Index must not be negative. Given: " + index);
+        }
+        final int key = index >>> 16;
+        final char low = (char) (index & 0xFFFF);
+        int pos = Arrays.binarySearch(keys, 0, size, key);
+        if (pos < 0) {
+            pos = -pos - 1;
+            insertContainer(pos, key);
+        }
+        Object container = containers[pos];
+        if (container instanceof long[] words) {
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) == 0) {
+                words[low >>> 6] |= mask;
+                cardinalities[pos]++;
+            }
+            return;
+        }
+        char[] values = (char[]) container;
+        int card = cardinalities[pos];
+        int at = Arrays.binarySearch(values, 0, card, low);
+        if (at >= 0) {
+            return;
+        }
+        at = -at - 1;
+        if (card == ARRAY_MAX) {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < card; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            words[low >>> 6] |= 1L << low;
+            containers[pos] = words;
+            cardinalities[pos]++;
+            return;
+        }
+        if (card == values.length) {
+            values = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length * 2));
+            containers[pos] = values;
+        }
+        System.arraycopy(values, at, values, at + 1, card - at);
+        values[at] = low;
+        cardinalities[pos]++;
+    }
+
+    /**
+     * Adds all indices from fromIndex (inclusive) to toIndex (exclusive).
+     *
+     * @param fromIndex The first index to add.
+     * @param toIndex The index after the last index to add.
+     */
+    public void addRange(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            add(i);
+        }
+    }
+
+    private void insertContainer(int pos, int key) {
+        if (size == keys.length) {
+            int newLength = keys.length * 2;
+            keys = Arrays.copyOf(keys, newLength);
+            containers = Arrays.copyOf(containers, newLength);
+            cardinalities = Arrays.copyOf(cardinalities, newLength);
+        }
+        System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+        System.arraycopy(containers, pos, containers, pos + 1, size - pos);
+        System.arraycopy(cardinalities, pos, cardinalities, pos + 1, size - pos);
+        keys[pos] = key;
+        containers[pos] = new char[4];
+        cardinalities[pos] = 0;
+        size++;
+    }
+
+    /**
+     * @param index The index to check.
+     * @return true if the given index is in the set.
+     */
+    public boolean contains(int index) {
+        if (index < 0) {
+            return false;
+        }
+        int pos = Arrays.binarySearch(keys, 0, size, index >>> 16);
+        if (pos < 0) {
+            return false;
+        }
+        return containerContains(pos, (char) (index & 0xFFFF));
+    }
+
+    private boolean containerContains(int pos, char low) {
+        Object container = containers[pos];
+        if (container instanceof long[] words) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, 0, cardinalities[pos], low) >= 0;
+    }
+
+    /**
+     * @return The number of indices in the set.
+     */
+    public long cardinality() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += cardinalities[i];
+        }
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Creates a new bitmap with the indices that are in this bitmap, but not
+     * in the other.
+     *
+     * @param other The bitmap with the indices to remove.
+     * @return A new bitmap.
+     */
+    public BucketBitmap andNot(BucketBitmap other) {
+        BucketBitmap result = new BucketBitmap();
+        for (int i = 0; i < size; i++) {
+            int otherPos = Arrays.binarySearch(other.keys, 0, other.size, keys[i]);
+            Object container = containers[i];
+            if (otherPos < 0) {
+                result.appendContainer(keys[i], copy(container), cardinalities[i]);
+                continue;
+            }
+            if (container instanceof long[] words && other.containers[otherPos] instanceof long[] otherWords) {
+                long[] diff = new long[BITMAP_WORDS];
+                int card = 0;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    diff[w] = words[w] & ~otherWords[w];
+                    card += Long.bitCount(diff[w]);
+                }
+                if (card > 0) {
+                    result.appendContainer(keys[i], diff, card);
+                }
+                continue;
+            }
+            char[] diff = new char[Math.min(cardinalities[i], ARRAY_MAX)];
+            int card = 0;
+            long[] diffWords = null;
+            for (int value = nextSetBit(i, 0); value >= 0; value = nextSetBit(i, value + 1)) {
+                if (other.containerContains(otherPos, (char) value)) {
+                    continue;
+                }
+                if (diffWords == null && card == ARRAY_MAX) {
+                    diffWords = new long[BITMAP_WORDS];
+                    for (int d = 0; d < card; d++) {
+                        diffWords[diff[d] >>> 6] |= 1L << diff[d];
+                    }
+                }
+                if (diffWords == null) {
+                    diff[card] = (char) value;
+                } else {
+                    diffWords[value >>> 6] |= 1L << value;
+                }
+                card++;
+            }
+            if (card > 0) {
+                result.appendContainer(keys[i], diffWords == null ? diff : diffWords, card);
+            }
+        }
+        return result;
+    }
+
+    private static Object copy(Object container) {
+        if (container instanceof long[] words) {
+            return words.clone();
+        }
+        return ((char[]) container).clone();
+    }
+
+    private void appendContainer(int key, Object container, int cardinality) {
+        insertContainer(size, key);
+        containers[size - 1] = container;
+        cardinalities[size - 1] = cardinality;
+    }
+
+    /**
+     * Finds the lowest value in the given container that is at least
+     * fromLow.
+     *
+     * @return The value, or -1 if there is none.
+     */
+    private int nextSetBit(int pos, int fromLow) {
+        if (fromLow > 0xFFFF) {
+            return -1;
+        }
+        Object container = containers[pos];
+        if (container instanceof long[] words) {
+            int w = fromLow >>> 6;
+            long word = words[w] & (-1L << fromLow);
+            while (true) {
+                if (word != 0) {
+                    return (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = words[w];
+            }
+        }
+        char[] values = (char[]) container;
+        int at = Arrays.binarySearch(values, 0, cardinalities[pos], (char) fromLow);
+        if (at < 0) {
+            at = -at - 1;
+        }
+        return at < cardinalities[pos] ? values[at] : -1;
+    }
+
+    /**
+     * Finds the lowest index in the set that is at least the given index.
+     *
+     * @param fromIndex The index to start searching at.
+     * @return The index, or -1 if there is none.
+     */
+    public int nextSetBit(int fromIndex) {
+        int from = Math.max(0, fromIndex);
+        int key = from >>> 16;
+        int pos = Arrays.binarySearch(keys, 0, size, key);
+        int low = from & 0xFFFF;
+        if (pos < 0) {
+            pos = -pos - 1;
+            low = 0;
+        }
+        for (; pos < size; pos++) {
+            int value = nextSetBit(pos, low);
+            if (value >= 0) {
+                return (keys[pos] << 16) | value;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the lowest index that is not in the set, and is at least the given
+     * index.
+     *
+     * @param fromIndex The index to start searching at.
+     * @return The index.
+     */
+    public int nextClearBit(int fromIndex) {
+        int index = Math.max(0, fromIndex);
+        while (index < Integer.MAX_VALUE && contains(index)) {
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+
+/**
+ * A source of Observation chunks, ordered by phenomenonTime.
+ *
+ * @author scf
+ */
+public interface ChunkSource extends AutoCloseable {
+
+    /**
+     * @return The next chunk, or null if there are no more Observations.
+     * @throws ServiceFailureException If the communication with the server
+     * fails.
+     */
+    public ObservationStream.Chunk nextChunk() throws ServiceFailureException;
+
+    @Override
+    public void close();
+
+}
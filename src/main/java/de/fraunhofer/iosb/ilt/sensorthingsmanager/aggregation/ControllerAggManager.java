@@ -17,25 +17,19 @@
  */
 package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
 
-import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_DESCRIPTION;
-import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_PHENOMENONTIME;
-import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_UNITOFMEASUREMENT;
-import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
-
 import de.fraunhofer.iosb.ilt.configurable.ConfigurationException;
 import de.fraunhofer.iosb.ilt.configurable.editor.EditorMap;
 import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
 import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
-import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
-import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
-import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeValue;
-import de.fraunhofer.iosb.ilt.frostclient.models.ext.UnitOfMeasurement;
-import de.fraunhofer.iosb.ilt.frostclient.utils.CollectionsHelper;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ButtonTableCell;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.DateTimePicker;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -43,8 +37,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyObjectWrapper;
-import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.value.ObservableValue;
 import javafx.beans.value.ObservableValueBase;
 import javafx.collections.FXCollections;
@@ -58,11 +57,14 @@ import javafx.scene.Node;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Dialog;
+import javafx.scene.control.Label;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
@@ -70,7 +72,10 @@ import javafx.scene.control.TextArea;
 import javafx.scene.control.cell.CheckBoxTableCell;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.text.Text;
+import javafx.stage.FileChooser;
+import javafx.stage.Modality;
 import net.time4j.Moment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -99,6 +104,27 @@ public class ControllerAggManager implements Initializable {
     @FXML
     private Button buttonReload;
 
+    @FXML
+    private Button buttonFullReload;
+
+    @FXML
+    private Button buttonPlanSources;
+
+    @FXML
+    private Button buttonRepairReferences;
+
+    @FXML
+    private Button buttonShowLag;
+
+    @FXML
+    private Button buttonFindGaps;
+
+    @FXML
+    private Button buttonApplySpec;
+
+    @FXML
+    private Button buttonSaveSpec;
+
     @FXML
     private Button buttonAddLevel;
 
@@ -111,7 +137,15 @@ public class ControllerAggManager implements Initializable {
     @FXML
     private ProgressBar progressBar;
 
+    @FXML
+    private HBox paneStatus;
+
+    @FXML
+    private Label labelStatus;
+
     private SensorThingsService service;
+    private String serverUrl;
+    private ObservationCache observationCache;
     private SensorThingsV11Sensing sMdl;
     private SensorThingsV11MultiDatastream mMdl;
 
@@ -124,10 +158,17 @@ public class ControllerAggManager implements Initializable {
     private SensorThingsUtils utils = new SensorThingsUtils();
     private Moment lastPickedStart;
     private Moment lastPickedEnd;
+    private Task<?> backfillTask;
+    private final SourcePlanner planner = new SourcePlanner();
+    private SpecReconciler reconciler;
+    private File lastSpecFile;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         buttonReload.setDisable(true);
+        buttonFullReload.setDisable(true);
+        paneStatus.setVisible(false);
+        paneStatus.managedProperty().bind(paneStatus.visibleProperty());
 
         AggregationLevel level = new AggregationLevel(ChronoUnit.HOURS, 1);
         levelEditor = level.getConfigEditor(null, null);
@@ -138,8 +179,38 @@ public class ControllerAggManager implements Initializable {
     public void setService(SensorThingsService service) {
         this.service = service;
         buttonReload.setDisable(false);
+        buttonFullReload.setDisable(false);
         sMdl = service.getModel(SensorThingsV11Sensing.class);
         mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
+        reconciler = null;
+    }
+
+    /**
+     * Sets the url of the server, used to store a snapshot of the aggregation
+     * data, so the next reload is faster.
+     *
+     * @param serverUrl The url of the server.
+     */
+    public synchronized void setServerUrl(String serverUrl) {
+        this.serverUrl = serverUrl;
+        observationCache = null;
+    }
+
+    private synchronized ObservationCache getObservationCache() {
+        if (serverUrl == null) {
+            return null;
+        }
+        if (observationCache == null) {
+            observationCache = new ObservationCache(ObservationCache.directoryFor(new File(ObservationCache.DEFAULT_DIRECTORY), serverUrl));
+        }
+        return observationCache;
+    }
+
+    private File getSnapshotFile() {
+        if (serverUrl == null) {
+            return null;
+        }
+        return TopologySnapshot.fileFor(new File(TopologySnapshot.DEFAULT_DIRECTORY), serverUrl);
     }
 
     private void addMenuToColumn(final TableColumn<AggregationBase, Boolean> column, final AggregationLevel level) {
@@ -194,42 +265,110 @@ public class ControllerAggManager implements Initializable {
         return column;
     }
 
-    private void reCalculateBase(AggregationBase base, Moment start, Moment end) {
-        try {
-            Entity baseDs = base.getBaseDatastream();
-            if (baseDs == null) {
-                LOGGER.error("No base Datastream for {}", base.getBaseName());
+    private void runBackfill(List<AggregationBase> bases, Moment start, Moment end, boolean calculateLocally, boolean rollUp, boolean useCache) {
+        final BackfillScheduler scheduler = new BackfillScheduler(service, calculateLocally);
+        if (calculateLocally) {
+            scheduler.getCalculator().setRollUp(rollUp);
+            if (useCache) {
+                scheduler.getCalculator().setCache(getObservationCache());
             }
-            Entity dummyObs = sMdl.newObservation("Dummy", baseDs);
-            dummyObs.setProperty(EP_PHENOMENONTIME, TimeValue.create(start, end));
+        }
+        runScheduler(scheduler, () -> scheduler.run(bases, start, end));
+    }
+
+    private void runScheduler(BackfillScheduler scheduler, Runnable job) {
+        Task<Void> task = new Task<Void>() {
+            @Override
+            protected Void call() throws Exception {
+                scheduler.setProgressListener((double progress, String message) -> {
+                    updateProgress(progress, 1);
+                    updateMessage(message);
+                });
+                job.run();
+                return null;
+            }
+        };
+        task.setOnSucceeded((WorkerStateEvent event1) -> {
+            hideBackfillProgress();
+        });
+        task.setOnCancelled((WorkerStateEvent event1) -> {
+            LOGGER.info("Backfill cancelled: {}", scheduler.getStatus());
+            hideBackfillProgress();
+        });
+        task.setOnFailed((WorkerStateEvent event1) -> {
+            LOGGER.error("Backfill failed.", task.getException());
+            hideBackfillProgress();
+            new Alert(Alert.AlertType.ERROR, "Re-Calculation failed: " + task.getException(), ButtonType.CLOSE).show();
+        });
+        backfillTask = task;
+        progressBar.progressProperty().unbind();
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressBar.setVisible(true);
+        labelStatus.textProperty().unbind();
+        labelStatus.textProperty().bind(task.messageProperty());
+        paneStatus.setVisible(true);
+        new Thread(task).start();
+    }
+
+    private void hideBackfillProgress() {
+        backfillTask = null;
+        progressBar.setVisible(false);
+        labelStatus.textProperty().unbind();
+        paneStatus.setVisible(false);
+    }
 
-            service.create(dummyObs);
-            service.delete(dummyObs);
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to create or delete dummy observation!", ex);
+    @FXML
+    private void actionCancel(ActionEvent event) {
+        Task<?> task = backfillTask;
+        if (task != null) {
+            task.cancel();
         }
     }
 
     private void reCalculateBase(AggregationBase base) {
+        final List<AggregationBase> bases = new ArrayList<>();
+        List<AggregationBase> selected = table.getSelectionModel().getSelectedItems();
+        if (selected.size() > 1 && selected.contains(base)) {
+            bases.addAll(selected);
+        } else {
+            bases.add(base);
+        }
         DateTimePicker startTime = new DateTimePicker(lastPickedStart);
         DateTimePicker endTime = new DateTimePicker(lastPickedEnd);
 
         GridPane pane = new GridPane();
         int row = 0;
-        pane.add(new Text(base.getBaseName()), 0, row, 2, 1);
+        String title = bases.size() == 1 ? base.getBaseName() : bases.size() + " selected bases";
+        pane.add(new Text(title), 0, row, 2, 1);
         pane.add(new Text("From"), 0, ++row);
         pane.add(startTime, 1, row);
 
         pane.add(new Text("To"), 0, ++row);
         pane.add(endTime, 1, row);
 
+        CheckBox local = new CheckBox("Calculate in the manager");
+        pane.add(local, 0, ++row, 2, 1);
+
+        CheckBox rollUp = new CheckBox("Calculate coarse levels from finer aggregates");
+        rollUp.setSelected(true);
+        rollUp.disableProperty().bind(local.selectedProperty().not());
+        pane.add(rollUp, 0, ++row, 2, 1);
+
+        CheckBox useCache = new CheckBox("Cache raw Observations locally");
+        useCache.setSelected(true);
+        useCache.disableProperty().bind(local.selectedProperty().not());
+        pane.add(useCache, 0, ++row, 2, 1);
+
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.setResizable(true);
         dialog.setTitle("Re-Calculate which Period?");
         dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
         dialog.getDialogPane().getButtonTypes().add(ButtonType.APPLY);
         dialog.getDialogPane().setContent(pane);
-        dialog.getDialogPane().setExpandableContent(new Text("This will create a new Observation in the given Datastream, and directly delete it again."));
+        dialog.getDialogPane().setExpandableContent(new Text("The period is split into chunks. For each chunk, a new Observation is created in the given Datastream, and directly deleted again.\n"
+                + "When calculating in the manager, the aggregates are calculated from the raw Observations and written directly.\n"
+                + "Coarse levels can be calculated from the aggregates of a finer level, instead of from the raw Observations.\n"
+                + "Raw Observations older than a day can be cached locally, so they are only loaded once from the server."));
         Optional<ButtonType> confirmation = dialog.showAndWait();
 
         Moment startDateTime = startTime.getValue();
@@ -238,8 +377,8 @@ public class ControllerAggManager implements Initializable {
         lastPickedEnd = endDateTime;
 
         if (confirmation.isPresent() && confirmation.get() == ButtonType.APPLY) {
-            LOGGER.info("Re-Calculating from {} to {} for {} ({})", startDateTime, endDateTime, base.getBaseName(), base.getBaseDatastream());
-            reCalculateBase(base, startDateTime, endDateTime);
+            LOGGER.info("Re-Calculating from {} to {} for {} ({})", startDateTime, endDateTime, title, base.getBaseDatastream());
+            runBackfill(bases, startDateTime, endDateTime, local.isSelected(), rollUp.isSelected(), useCache.isSelected());
         } else {
             LOGGER.info("Cancelled...  {} to {} for {}", startDateTime, endDateTime, base.getBaseName());
         }
@@ -253,7 +392,9 @@ public class ControllerAggManager implements Initializable {
         table.setVisible(false);
         progressBar.setVisible(true);
 
-        final AggregationData myData = new AggregationData(service, true, true);
+        final AggregationData myData = new AggregationData(service, false, true);
+        myData.setSnapshotFile(getSnapshotFile(), serverUrl);
+        myData.setPlanner(planner);
 
         Task<AggregationData> task = new Task<AggregationData>() {
             @Override
@@ -278,6 +419,350 @@ public class ControllerAggManager implements Initializable {
         new Thread(task).start();
     }
 
+    @FXML
+    private void actionFullReload(ActionEvent event) {
+        File snapshotFile = getSnapshotFile();
+        if (snapshotFile != null && snapshotFile.exists() && !snapshotFile.delete()) {
+            LOGGER.warn("Failed to delete snapshot {}.", snapshotFile);
+        }
+        actionReload(event);
+    }
+
+    @FXML
+    private void actionPlanSources(ActionEvent event) {
+        if (data == null) {
+            return;
+        }
+        final List<AggregationBase> bases = new ArrayList<>(table.getSelectionModel().getSelectedItems());
+        final boolean estimateRates = !bases.isEmpty();
+        if (bases.isEmpty()) {
+            bases.addAll(data.getAggregationBases());
+        }
+        Task<List<SourcePlanner.PlanEntry>> task = new Task<List<SourcePlanner.PlanEntry>>() {
+            @Override
+            protected List<SourcePlanner.PlanEntry> call() throws Exception {
+                if (estimateRates) {
+                    planner.estimateRawRates(bases, SourcePlanner.DEFAULT_RATE_WINDOW, data.getMaxParallelRequests());
+                }
+                return planner.plan(bases);
+            }
+        };
+        task.setOnSucceeded((WorkerStateEvent event1) -> {
+            progressBar.setVisible(false);
+            showSourcePlan(task.getValue());
+        });
+        task.setOnFailed((WorkerStateEvent event1) -> {
+            progressBar.setVisible(false);
+            new Alert(Alert.AlertType.ERROR, "Planning failed: " + task.getException(), ButtonType.CLOSE).show();
+        });
+        progressBar.progressProperty().unbind();
+        progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        progressBar.setVisible(true);
+        new Thread(task).start();
+    }
+
+    @FXML
+    private void actionRepairReferences(ActionEvent event) {
+        if (data == null) {
+            return;
+        }
+        final ReferenceRepairQueue queue = data.getRepairQueue();
+        if (queue.isEmpty()) {
+            new Alert(Alert.AlertType.INFORMATION, "No incorrect references were found during the last reload.", ButtonType.CLOSE).show();
+            return;
+        }
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setResizable(true);
+        dialog.setTitle("Repair " + queue.size() + " MultiDatastreams?");
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.APPLY);
+        TextArea textArea = new TextArea(queue.getReport());
+        textArea.setEditable(false);
+        textArea.setWrapText(false);
+        dialog.getDialogPane().setContent(textArea);
+
+        Optional<ButtonType> confirmation = dialog.showAndWait();
+        if (confirmation.isPresent() && confirmation.get() == ButtonType.APPLY) {
+            final AggregationData myData = data;
+            Task<Integer> task = new Task<Integer>() {
+                @Override
+                protected Integer call() throws Exception {
+                    return myData.applyRepairs();
+                }
+            };
+            task.setOnSucceeded((WorkerStateEvent event1) -> {
+                progressBar.setVisible(false);
+                if (task.getValue() > 0) {
+                    new Alert(Alert.AlertType.WARNING, task.getValue() + " repairs failed, see the log for details.", ButtonType.CLOSE).show();
+                }
+            });
+            task.setOnFailed((WorkerStateEvent event1) -> {
+                progressBar.setVisible(false);
+                new Alert(Alert.AlertType.ERROR, "Repairing references failed: " + task.getException(), ButtonType.CLOSE).show();
+            });
+            progressBar.progressProperty().unbind();
+            progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+            progressBar.setVisible(true);
+            new Thread(task).start();
+        }
+    }
+
+    private void showSourcePlan(List<SourcePlanner.PlanEntry> plan) {
+        StringBuilder changeString = new StringBuilder();
+        int changes = 0;
+        for (SourcePlanner.PlanEntry entry : plan) {
+            if (!entry.isChange()) {
+                continue;
+            }
+            changes++;
+            changeString.append(entry.getBase().getBaseName())
+                    .append(' ').append(entry.getTarget().level)
+                    .append(": ").append(entry.getCurrentSourceName())
+                    .append(" → ").append(entry.getPlannedSourceName())
+                    .append(" (rows per interval: ").append(formatCost(entry.getCurrentCost()))
+                    .append(" → ").append(formatCost(entry.getPlannedCost()))
+                    .append(")\n");
+        }
+        if (changes == 0) {
+            new Alert(Alert.AlertType.INFORMATION, "All " + plan.size() + " aggregates already use the cheapest known source.", ButtonType.CLOSE).show();
+            return;
+        }
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setResizable(true);
+        dialog.setTitle("Change the source of " + changes + " aggregates?");
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.APPLY);
+        TextArea textArea = new TextArea(changeString.toString());
+        textArea.setEditable(false);
+        textArea.setWrapText(false);
+        dialog.getDialogPane().setContent(textArea);
+        dialog.getDialogPane().setExpandableContent(new Text("Observation rates are estimated for the selected bases, from the last " + SourcePlanner.DEFAULT_RATE_WINDOW.toDays() + " days.\n"
+                + "Without a known rate, a finer aggregate is always preferred over the raw data."));
+
+        Optional<ButtonType> confirmation = dialog.showAndWait();
+        if (confirmation.isPresent() && confirmation.get() == ButtonType.APPLY) {
+            final AggregationData myData = data;
+            Task<Integer> task = new Task<Integer>() {
+                @Override
+                protected Integer call() throws Exception {
+                    return myData.applySourcePlan(plan);
+                }
+            };
+            task.setOnSucceeded((WorkerStateEvent event1) -> {
+                LOGGER.info("Changed the source of {} aggregates.", task.getValue());
+            });
+            task.setOnFailed((WorkerStateEvent event1) -> {
+                new Alert(Alert.AlertType.ERROR, "Changing sources failed: " + task.getException(), ButtonType.CLOSE).show();
+            });
+            new Thread(task).start();
+        }
+    }
+
+    @FXML
+    private void actionFindGaps(ActionEvent event) {
+        if (data == null || backfillTask != null) {
+            return;
+        }
+        final List<AggregationBase> bases = new ArrayList<>(table.getSelectionModel().getSelectedItems());
+        if (bases.isEmpty()) {
+            bases.addAll(data.getAggregationBases());
+        }
+        DateTimePicker startTime = new DateTimePicker(lastPickedStart);
+        DateTimePicker endTime = new DateTimePicker(lastPickedEnd);
+        GridPane pane = new GridPane();
+        int row = 0;
+        pane.add(new Text(bases.size() + " bases"), 0, row, 2, 1);
+        pane.add(new Text("From"), 0, ++row);
+        pane.add(startTime, 1, row);
+        pane.add(new Text("To"), 0, ++row);
+        pane.add(endTime, 1, row);
+        CheckBox useCache = new CheckBox("Cache raw Observations locally");
+        useCache.setSelected(true);
+        pane.add(useCache, 0, ++row, 2, 1);
+
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setResizable(true);
+        dialog.setTitle("Find Gaps in which Period?");
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.APPLY);
+        dialog.getDialogPane().setContent(pane);
+        dialog.getDialogPane().setExpandableContent(new Text("For each aggregate level, the intervals that have raw Observations but no aggregate are listed.\n"
+                + "The current interval has no aggregate yet, so the period should end before it."));
+        Optional<ButtonType> confirmation = dialog.showAndWait();
+        final Moment start = startTime.getValue();
+        lastPickedStart = start;
+        final Moment end = endTime.getValue();
+        lastPickedEnd = end;
+        if (confirmation.isEmpty() || confirmation.get() != ButtonType.APPLY) {
+            return;
+        }
+
+        final CoverageAnalyser analyser = new CoverageAnalyser();
+        if (useCache.isSelected()) {
+            analyser.setCache(getObservationCache());
+        }
+        final AtomicInteger incomplete = new AtomicInteger();
+        Task<List<CoverageAnalyser.Gap>> task = new Task<List<CoverageAnalyser.Gap>>() {
+            @Override
+            protected List<CoverageAnalyser.Gap> call() throws Exception {
+                updateMessage("Analysing coverage of " + bases.size() + " bases…");
+                List<CoverageAnalyser.Coverage> coverages = analyser.analyse(bases, start, end);
+                incomplete.set(CoverageAnalyser.countIncomplete(coverages));
+                return CoverageAnalyser.findGaps(coverages);
+            }
+        };
+        task.setOnSucceeded((WorkerStateEvent event1) -> {
+            hideBackfillProgress();
+            if (incomplete.get() > 0) {
+                new Alert(Alert.AlertType.WARNING, "The coverage of " + incomplete.get() + " combos could not be read completely, their gaps are skipped. See the log for details.", ButtonType.CLOSE).show();
+            }
+            showGaps(task.getValue(), useCache.isSelected());
+        });
+        task.setOnCancelled((WorkerStateEvent event1) -> {
+            hideBackfillProgress();
+        });
+        task.setOnFailed((WorkerStateEvent event1) -> {
+            hideBackfillProgress();
+            new Alert(Alert.AlertType.ERROR, "Finding gaps failed: " + task.getException(), ButtonType.CLOSE).show();
+        });
+        backfillTask = task;
+        progressBar.progressProperty().unbind();
+        progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        progressBar.setVisible(true);
+        labelStatus.textProperty().unbind();
+        labelStatus.textProperty().bind(task.messageProperty());
+        paneStatus.setVisible(true);
+        new Thread(task).start();
+    }
+
+    private void showGaps(List<CoverageAnalyser.Gap> gaps, boolean useCache) {
+        if (gaps.isEmpty()) {
+            new Alert(Alert.AlertType.INFORMATION, "No gaps found.", ButtonType.CLOSE).show();
+            return;
+        }
+        StringBuilder gapString = new StringBuilder();
+        long intervals = 0;
+        for (CoverageAnalyser.Gap gap : gaps) {
+            gapString.append(gap).append('\n');
+            intervals += gap.getBucketCount();
+        }
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setResizable(true);
+        dialog.setTitle("Re-Calculate " + intervals + " missing intervals in " + gaps.size() + " gaps?");
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.APPLY);
+        TextArea textArea = new TextArea(gapString.toString());
+        textArea.setEditable(false);
+        textArea.setWrapText(false);
+        dialog.getDialogPane().setContent(textArea);
+        Optional<ButtonType> confirmation = dialog.showAndWait();
+        if (confirmation.isPresent() && confirmation.get() == ButtonType.APPLY) {
+            final BackfillScheduler scheduler = new BackfillScheduler(service, true);
+            if (useCache) {
+                scheduler.getCalculator().setCache(getObservationCache());
+            }
+            runScheduler(scheduler, () -> scheduler.runGaps(gaps));
+        }
+    }
+
+    @FXML
+    private void actionShowLag(ActionEvent event) {
+        if (data == null) {
+            return;
+        }
+        final LagMonitor monitor = new LagMonitor(service, data.getAggregationBases());
+        final TableView<LagMonitor.Entry> lagTable = new TableView<>(FXCollections.observableArrayList(monitor.getEntries()));
+        TableColumn<LagMonitor.Entry, String> nameColumn = new TableColumn<>("Base Name");
+        nameColumn.setCellValueFactory(param -> new ReadOnlyObjectWrapper<>(param.getValue().getCombo().getBaseName()));
+        TableColumn<LagMonitor.Entry, AggregationLevel> levelColumn = new TableColumn<>("Level");
+        levelColumn.setCellValueFactory(param -> new ReadOnlyObjectWrapper<>(param.getValue().getCombo().level));
+        TableColumn<LagMonitor.Entry, Instant> sourceColumn = new TableColumn<>("Source Last");
+        sourceColumn.setCellValueFactory(param -> new ReadOnlyObjectWrapper<>(param.getValue().getSourceLast()));
+        TableColumn<LagMonitor.Entry, Instant> targetColumn = new TableColumn<>("Aggregate Last");
+        targetColumn.setCellValueFactory(param -> new ReadOnlyObjectWrapper<>(param.getValue().getTargetLast()));
+        TableColumn<LagMonitor.Entry, Long> lagColumn = new TableColumn<>("Lag");
+        lagColumn.setCellValueFactory(param -> new ReadOnlyObjectWrapper<>(param.getValue().getLagMillis()));
+        lagColumn.setCellFactory(param -> new LagTableCell());
+        TableColumn<LagMonitor.Entry, Long> overdueColumn = new TableColumn<>("Overdue");
+        overdueColumn.setCellValueFactory(param -> new ReadOnlyObjectWrapper<>(param.getValue().getOverdueMillis()));
+        overdueColumn.setCellFactory(param -> new LagTableCell());
+        overdueColumn.setSortType(TableColumn.SortType.DESCENDING);
+        lagTable.getColumns().addAll(List.of(nameColumn, levelColumn, sourceColumn, targetColumn, lagColumn, overdueColumn));
+        lagTable.getSortOrder().add(overdueColumn);
+
+        final Label lagStatus = new Label();
+        final Button refresh = new Button("Refresh");
+        final CheckBox autoRefresh = new CheckBox("Auto refresh every minute");
+        final Runnable refreshAction = () -> {
+            try {
+                monitor.refresh();
+            } catch (ServiceFailureException ex) {
+                LOGGER.error("Failed to refresh lag.", ex);
+                Platform.runLater(() -> lagStatus.setText("Refresh failed: " + ex.getMessage()));
+                return;
+            }
+            final int overdue = monitor.getWorst(Integer.MAX_VALUE).size();
+            final int requests = monitor.getLastRequestCount();
+            Platform.runLater(() -> {
+                lagTable.refresh();
+                lagTable.sort();
+                lagStatus.setText(overdue + " overdue, refreshed using " + requests + " requests.");
+            });
+        };
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("LagMonitor").factory());
+        final ScheduledFuture<?>[] autoRefreshFuture = new ScheduledFuture<?>[1];
+        refresh.setOnAction(e -> timer.execute(refreshAction));
+        autoRefresh.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            if (autoRefreshFuture[0] != null) {
+                autoRefreshFuture[0].cancel(false);
+                autoRefreshFuture[0] = null;
+            }
+            if (newValue) {
+                autoRefreshFuture[0] = timer.scheduleWithFixedDelay(refreshAction, 1, 1, TimeUnit.MINUTES);
+            }
+        });
+        HBox controls = new HBox(5, refresh, autoRefresh, lagStatus);
+        controls.setAlignment(Pos.CENTER_LEFT);
+        BorderPane content = new BorderPane(lagTable);
+        content.setTop(controls);
+
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setResizable(true);
+        dialog.setTitle("Lag of " + monitor.getEntries().size() + " aggregates");
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+        dialog.getDialogPane().setContent(content);
+        dialog.initModality(Modality.NONE);
+        dialog.setOnHidden(e -> timer.shutdownNow());
+        dialog.show();
+        timer.execute(refreshAction);
+    }
+
+    /**
+     * Shows a lag in milliseconds as days, hours, minutes and seconds.
+     */
+    private static class LagTableCell extends TableCell<LagMonitor.Entry, Long> {
+
+        @Override
+        protected void updateItem(Long item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setText(null);
+            } else if (item == Long.MAX_VALUE) {
+                setText("no aggregates");
+            } else {
+                Duration lag = Duration.ofMillis(item);
+                setText(String.format("%dd %02d:%02d:%02d", lag.toDays(), lag.toHoursPart(), lag.toMinutesPart(), lag.toSecondsPart()));
+            }
+        }
+    }
+
+    private static String formatCost(double cost) {
+        if (Double.isInfinite(cost)) {
+            return "?";
+        }
+        return String.format("%.1f", cost);
+    }
+
     private void fillTableAndShow(AggregationData myData) {
         data = myData;
         baseColumn = new TableColumn("Base Name");
@@ -325,14 +810,23 @@ public class ControllerAggManager implements Initializable {
 
     @FXML
     private void actionApplyChanges(ActionEvent event) throws ServiceFailureException {
-        List<String> changeLog = generateChangeLog();
+        List<ApplyEngine.Change> changes = ApplyEngine.findChanges(data.getAggregationBases());
+        if (confirmChanges(changes, "Apply changes?")) {
+            LOGGER.info("Working");
+            applyChangesTask(changes);
+        } else {
+            LOGGER.info("Cancelled");
+        }
+    }
+
+    private boolean confirmChanges(List<ApplyEngine.Change> changes, String title) {
         StringBuilder changeString = new StringBuilder();
-        for (String line : changeLog) {
-            changeString.append(line);
+        for (ApplyEngine.Change change : changes) {
+            changeString.append(change).append('\n');
         }
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.setResizable(true);
-        dialog.setTitle("Apply changes?");
+        dialog.setTitle(title);
         dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
         dialog.getDialogPane().getButtonTypes().add(ButtonType.APPLY);
         TextArea textArea = new TextArea(changeString.toString());
@@ -341,119 +835,139 @@ public class ControllerAggManager implements Initializable {
         dialog.getDialogPane().setContent(textArea);
 
         Optional<ButtonType> confirmation = dialog.showAndWait();
-        if (confirmation.isPresent() && confirmation.get() == ButtonType.APPLY) {
-            LOGGER.info("Working");
-            applyChangesTask(changeLog.size());
-        } else {
-            LOGGER.info("Cancelled");
+        return confirmation.isPresent() && confirmation.get() == ButtonType.APPLY;
+    }
+
+    private FileChooser createSpecChooser(String title) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle(title);
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Aggregation Spec", "*.json"));
+        if (lastSpecFile != null) {
+            chooser.setInitialDirectory(lastSpecFile.getParentFile());
+            chooser.setInitialFileName(lastSpecFile.getName());
         }
+        return chooser;
     }
 
-    private void applyChangesTask(int count) {
-        final SimpleDoubleProperty progress = new SimpleDoubleProperty(0);
-        Task<Void> task = new Task<Void>() {
+    @FXML
+    private void actionApplySpec(ActionEvent event) {
+        if (data == null || backfillTask != null) {
+            return;
+        }
+        File file = createSpecChooser("Load Aggregation Spec").showOpenDialog(table.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+        lastSpecFile = file;
+        final AggregationSpec spec;
+        try {
+            spec = AggregationSpec.load(file);
+        } catch (IOException | RuntimeException ex) {
+            new Alert(Alert.AlertType.ERROR, "Failed to load spec: " + ex.getMessage(), ButtonType.CLOSE).show();
+            return;
+        }
+        if (reconciler == null) {
+            reconciler = new SpecReconciler(service, utils, spec);
+        } else {
+            reconciler.setSpec(spec);
+        }
+        final SpecReconciler myReconciler = reconciler;
+        final List<AggregationBase> bases = new ArrayList<>(data.getAggregationBases());
+        Task<List<ApplyEngine.Change>> task = new Task<List<ApplyEngine.Change>>() {
             @Override
-            protected Void call() throws Exception {
-                applyChanges(progress, count);
-                return null;
+            protected List<ApplyEngine.Change> call() throws Exception {
+                return myReconciler.plan(bases);
             }
         };
         task.setOnSucceeded((WorkerStateEvent event1) -> {
-            actionReload(null);
+            progressBar.setVisible(false);
+            List<ApplyEngine.Change> changes = task.getValue();
+            if (changes.isEmpty()) {
+                new Alert(Alert.AlertType.INFORMATION, "All " + bases.size() + " bases already match " + file.getName() + ".", ButtonType.CLOSE).show();
+            } else if (confirmChanges(changes, "Apply " + changes.size() + " changes from " + file.getName() + "?")) {
+                applyChangesTask(changes);
+            }
         });
         task.setOnFailed((WorkerStateEvent event1) -> {
-            new Alert(Alert.AlertType.ERROR, "Update Failed: " + event1.toString(), ButtonType.CLOSE).show();
+            progressBar.setVisible(false);
+            new Alert(Alert.AlertType.ERROR, "Planning failed: " + task.getException(), ButtonType.CLOSE).show();
         });
-        table.setVisible(false);
         progressBar.progressProperty().unbind();
-        progressBar.progressProperty().bind(progress);
+        progressBar.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
         progressBar.setVisible(true);
         new Thread(task).start();
     }
 
-    private void createAggregate(AggregationBase base, AggregationLevel level) throws ServiceFailureException {
-        LOGGER.info("Creating {} for {}.", level, base.getBaseName());
-        Entity baseDs = base.getBaseDatastream();
-        Entity op = baseDs.getProperty(sMdl.npDatastreamObservedproperty);
-        UnitOfMeasurement uom = baseDs.getProperty(EP_UNITOFMEASUREMENT);
-        utils.findOrCreateAggregateOps(service, op);
-
-        List<Entity> ops = new ArrayList<>();
-        ops.add(op);
-        ops.addAll(utils.aggregateProperties.get(op));
-        List<UnitOfMeasurement> uoms = new ArrayList<>();
-        for (Entity op1 : ops) {
-            uoms.add(uom);
-        }
-
-        MapValue aggProps = CollectionsHelper.propertiesBuilder()
-                .addItem(Utils.KEY_AGGREGATE_SOURCE_D, formatKeyValuesForUrl(baseDs))
-                .addItem(Utils.KEY_AGGREGATE_FOR, "/Datastreams(" + formatKeyValuesForUrl(baseDs) + ")")
-                .addItem(Utils.KEY_AGGREGATE_AMOUNT, level.amount)
-                .addItem(Utils.KEY_AGGREGATE_UNIT, level.unit.toString())
-                .build();
-        String mdsName = base.getBaseName() + " " + level.toPostFix();
-        String mdsDesc = baseDs.getProperty(EP_DESCRIPTION) + " aggregated per " + level.amount + " " + level.unit;
-        utils.findOrCreateMultiDatastream(
-                service, mdsName, mdsDesc, uoms,
-                baseDs.getProperty(sMdl.npDatastreamThing), ops,
-                baseDs.getProperty(sMdl.npDatastreamSensor), aggProps);
-    }
-
-    private void deleteAggregate(AggregationBase base, AggregationLevel level) {
-        AggregateCombo combo = base.getCombosByLevel().get(level);
-        if (combo == null) {
-            LOGGER.error("Can not delete {} for {}, no such combo.", level, base.getBaseName());
+    @FXML
+    private void actionSaveSpec(ActionEvent event) {
+        if (data == null) {
+            return;
+        }
+        File file = createSpecChooser("Save Aggregation Spec").showSaveDialog(table.getScene().getWindow());
+        if (file == null) {
             return;
         }
-        LOGGER.error("Deleting {} for {}", level, base.getBaseName());
+        lastSpecFile = file;
         try {
-            service.delete(combo.targetMds);
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to delete {}", combo.targetMds);
-            LOGGER.error("Failed to delete:", ex);
+            AggregationSpec.fromBases(data.getAggregationBases()).save(file);
+            LOGGER.info("Saved aggregation spec to {}", file);
+        } catch (IOException ex) {
+            new Alert(Alert.AlertType.ERROR, "Failed to save spec: " + ex.getMessage(), ButtonType.CLOSE).show();
         }
     }
 
-    private void applyChanges(SimpleDoubleProperty progress, int changeCount) throws ServiceFailureException {
-        int nr = 0;
-        for (AggregationBase base : data.getAggregationBases()) {
-            Map<AggregationLevel, AggregateCombo> presentLevels = base.getCombosByLevel();
-            Map<AggregationLevel, Boolean> wantedLevels = base.getWantedLevels();
-            for (Map.Entry<AggregationLevel, Boolean> wantedEntry : wantedLevels.entrySet()) {
-                AggregationLevel level = wantedEntry.getKey();
-                boolean wanted = wantedEntry.getValue();
-                if (wanted && !presentLevels.containsKey(level)) {
-                    nr++;
-                    createAggregate(base, level);
-
-                } else if (!wanted && presentLevels.containsKey(level)) {
-                    nr++;
-                    deleteAggregate(base, level);
-                }
+    private void applyChangesTask(List<ApplyEngine.Change> changes) {
+        final ApplyEngine engine = new ApplyEngine(service, utils);
+        Task<List<ApplyEngine.Failure>> task = new Task<List<ApplyEngine.Failure>>() {
+            @Override
+            protected List<ApplyEngine.Failure> call() throws Exception {
+                engine.setProgressListener((double progress, String message) -> {
+                    updateProgress(progress, 1);
+                    updateMessage(message);
+                });
+                return engine.run(changes);
             }
 
-            progress.set(1.0 * nr / changeCount);
-        }
-    }
-
-    private List<String> generateChangeLog() {
-        List<String> changeLog = new ArrayList<>();
-        for (AggregationBase base : data.getAggregationBases()) {
-            Map<AggregationLevel, AggregateCombo> presentLevels = base.getCombosByLevel();
-            Map<AggregationLevel, Boolean> wantedLevels = base.getWantedLevels();
-            for (Map.Entry<AggregationLevel, Boolean> wantedEntry : wantedLevels.entrySet()) {
-                AggregationLevel level = wantedEntry.getKey();
-                boolean wanted = wantedEntry.getValue();
-                if (wanted && !presentLevels.containsKey(level)) {
-                    changeLog.add("Create " + level.toString() + " for " + base.getBaseName() + '\n');
-
-                } else if (!wanted && presentLevels.containsKey(level)) {
-                    changeLog.add("DELETE " + level.toString() + " for " + base.getBaseName() + '\n');
-
+            @Override
+            protected void cancelled() {
+                engine.cancel();
+            }
+        };
+        task.setOnSucceeded((WorkerStateEvent event1) -> {
+            hideBackfillProgress();
+            List<ApplyEngine.Failure> failures = task.getValue();
+            if (!failures.isEmpty()) {
+                StringBuilder failed = new StringBuilder();
+                for (ApplyEngine.Failure failure : failures) {
+                    failed.append(failure).append('\n');
                 }
+                TextArea textArea = new TextArea(failed.toString());
+                textArea.setEditable(false);
+                textArea.setWrapText(false);
+                Alert alert = new Alert(Alert.AlertType.ERROR, failures.size() + " of " + changes.size() + " changes failed.", ButtonType.CLOSE);
+                alert.setResizable(true);
+                alert.getDialogPane().setExpandableContent(textArea);
+                alert.show();
             }
-        }
-        return changeLog;
+            actionReload(null);
+        });
+        task.setOnCancelled((WorkerStateEvent event1) -> {
+            LOGGER.info("Applying changes cancelled: {}", engine.getStatus());
+            hideBackfillProgress();
+            actionReload(null);
+        });
+        task.setOnFailed((WorkerStateEvent event1) -> {
+            hideBackfillProgress();
+            new Alert(Alert.AlertType.ERROR, "Update Failed: " + task.getException(), ButtonType.CLOSE).show();
+        });
+        backfillTask = task;
+        table.setVisible(false);
+        progressBar.progressProperty().unbind();
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressBar.setVisible(true);
+        labelStatus.textProperty().unbind();
+        labelStatus.textProperty().bind(task.messageProperty());
+        paneStatus.setVisible(true);
+        new Thread(task).start();
     }
 }
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ParallelRunner;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import net.time4j.Moment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the intervals that are missing in aggregate MultiDatastreams. For
+ * each combo a {@link BucketBitmap} is built of the intervals that have raw
+ * data in the base, and one of the intervals that have an aggregate. The
+ * intervals that only have raw data are the gaps, that can be filled using
+ * {@link BackfillScheduler#runGaps(java.util.List)}.
+ *
+ * The raw data of each base is read once for all its combos. Bases and
+ * combos are scanned in parallel.
+ *
+ * @author scf
+ */
+public class CoverageAnalyser {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoverageAnalyser.class);
+
+    /**
+     * The default maximum number of streams that are read in parallel.
+     */
+    public static final int DEFAULT_MAX_PARALLEL = 4;
+
+    /**
+     * A run of consecutive missing intervals of one combo.
+     */
+    public static class Gap {
+
+        private final AggregationBase base;
+        private final AggregateCombo combo;
+        private final Moment start;
+        private final Moment end;
+        private final int bucketCount;
+
+        public Gap(AggregationBase base, AggregateCombo combo, Moment start, Moment end, int bucketCount) {
+            this.base = base;
+            this.combo = combo;
+            this.start = start;
+            this.end = end;
+            this.bucketCount = bucketCount;
+        }
+
+        public AggregationBase getBase() {
+            return base;
+        }
+
+        public AggregateCombo getCombo() {
+            return combo;
+        }
+
+        public Moment getStart() {
+            return start;
+        }
+
+        public Moment getEnd() {
+            return end;
+        }
+
+        /**
+         * @return The number of missing intervals in this gap.
+         */
+        public int getBucketCount() {
+            return bucketCount;
+        }
+
+        @Override
+        public String toString() {
+            return base.getBaseName() + " " + combo.level + ": " + start + "/" + end + " (" + bucketCount + " intervals)";
+        }
+    }
+
+    /**
+     * The coverage of one combo. The bucket index of an interval is its
+     * position in the list of intervals of the analysed period. The intervals
+     * are not stored, the bucket of a time is found by walking the intervals
+     * with the {@link IntervalCalculator}, since the Observations are read in
+     * order.
+     */
+    public static class Coverage {
+
+        private final AggregationBase base;
+        private final AggregateCombo combo;
+        private final IntervalCalculator intervals;
+        private final long firstStart;
+        private final long lastEnd;
+        private final int bucketCount;
+        private final BucketWalker sourceWalker;
+        private final BucketWalker targetWalker;
+        private final BucketBitmap source = new BucketBitmap();
+        private final BucketBitmap target = new BucketBitmap();
+        private BucketBitmap missing;
+        private volatile boolean sourceScanned;
+        private volatile boolean targetScanned;
+
+        private Coverage(AggregationBase base, AggregateCombo combo, long fromMillis, long toMillis) {
+            this.base = base;
+            this.combo = combo;
+            intervals = combo.getIntervalCalculator();
+            IntervalCalculator.Cursor cursor = intervals.cursor(fromMillis, toMillis);
+            int count = 0;
+            long end = fromMillis;
+            while (cursor.next()) {
+                count++;
+                end = cursor.getEnd();
+            }
+            firstStart = intervals.intervalStart(fromMillis);
+            lastEnd = end;
+            bucketCount = count;
+            sourceWalker = new BucketWalker();
+            targetWalker = new BucketWalker();
+        }
+
+        /**
+         * Walks the intervals of the analysed period. Moving forward is cheap,
+         * moving back starts again at the first interval. Not thread safe.
+         */
+        private final class BucketWalker {
+
+            private int index;
+            private long start;
+            private long end;
+
+            private BucketWalker() {
+                rewind();
+            }
+
+            private void rewind() {
+                index = 0;
+                start = firstStart;
+                end = intervals.intervalEnd(start);
+            }
+
+            private void advance() {
+                index++;
+                start = end;
+                end = intervals.intervalEnd(start);
+            }
+
+            /**
+             * Finds the bucket that contains the given time.
+             *
+             * @return The index of the bucket, or -1 if the time is outside
+             * the analysed period.
+             */
+            private int bucketOf(long millis) {
+                if (millis < firstStart || millis >= lastEnd) {
+                    return -1;
+                }
+                if (millis < start) {
+                    rewind();
+                }
+                while (millis >= end) {
+                    advance();
+                }
+                return index;
+            }
+
+            /**
+             * @return The start of the bucket with the given index.
+             */
+            private long startOf(int bucket) {
+                if (bucket < index) {
+                    rewind();
+                }
+                while (index < bucket) {
+                    advance();
+                }
+                return start;
+            }
+        }
+
+        private void addSource(ObservationStream.Chunk chunk) {
+            for (int row = 0; row < chunk.size(); row++) {
+                int bucket = sourceWalker.bucketOf(chunk.getStart(row));
+                if (bucket >= 0) {
+                    source.add(bucket);
+                }
+            }
+        }
+
+        private void addTarget(ObservationStream.Chunk chunk) {
+            for (int row = 0; row < chunk.size(); row++) {
+                int bucket = targetWalker.bucketOf(chunk.getStart(row));
+                if (bucket >= 0) {
+                    target.add(bucket);
+                }
+            }
+        }
+
+        public AggregationBase getBase() {
+            return base;
+        }
+
+        public AggregateCombo getCombo() {
+            return combo;
+        }
+
+        /**
+         * @return true if both the raw data and the aggregates were read
+         * completely. If a scan failed or was interrupted, the bitmaps are
+         * incomplete, and the gaps found are not real.
+         */
+        public boolean isComplete() {
+            return sourceScanned && targetScanned;
+        }
+
+        /**
+         * @return The number of intervals in the analysed period.
+         */
+        public int getBucketCount() {
+            return bucketCount;
+        }
+
+        /**
+         * @return The intervals that have raw data.
+         */
+        public BucketBitmap getSource() {
+            return source;
+        }
+
+        /**
+         * @return The intervals that have an aggregate.
+         */
+        public BucketBitmap getTarget() {
+            return target;
+        }
+
+        /**
+         * @return The intervals that have raw data, but no aggregate.
+         */
+        public synchronized BucketBitmap getMissing() {
+            if (missing == null) {
+                missing = source.andNot(target);
+            }
+            return missing;
+        }
+
+        /**
+         * @return The missing intervals, merged into runs of consecutive
+         * intervals.
+         */
+        public List<Gap> getGaps() {
+            BucketBitmap miss = getMissing();
+            List<Gap> gaps = new ArrayList<>();
+            BucketWalker walker = new BucketWalker();
+            int first = miss.nextSetBit(0);
+            while (first >= 0) {
+                int after = miss.nextClearBit(first);
+                long start = walker.startOf(first);
+                long end = after < bucketCount ? walker.startOf(after) : lastEnd;
+                gaps.add(new Gap(base, combo, Utils.fromEpochMillis(start), Utils.fromEpochMillis(end), after - first));
+                first = miss.nextSetBit(after);
+            }
+            return gaps;
+        }
+    }
+
+    private ObservationCache cache;
+    private final ParallelRunner runner = new ParallelRunner("Coverage", "streams", DEFAULT_MAX_PARALLEL);
+
+    /**
+     * Analyses the coverage of all combos of the given bases over the given
+     * period. Blocks until done.
+     *
+     * @param bases The bases to analyse.
+     * @param start The start of the period.
+     * @param end The end of the period.
+     * @return The coverage of each combo.
+     */
+    public List<Coverage> analyse(Collection<AggregationBase> bases, Moment start, Moment end) {
+        final long fromMillis = Utils.toEpochMillis(start);
+        final long toMillis = Utils.toEpochMillis(end);
+        List<Coverage> result = new ArrayList<>();
+        List<Runnable> work = new ArrayList<>();
+        for (AggregationBase base : bases) {
+            List<Coverage> ofBase = new ArrayList<>();
+            for (AggregateCombo combo : base.getCombos()) {
+                Coverage coverage = new Coverage(base, combo, fromMillis, toMillis);
+                ofBase.add(coverage);
+                work.add(() -> scanTarget(coverage, fromMillis, toMillis));
+            }
+            if (!ofBase.isEmpty()) {
+                result.addAll(ofBase);
+                work.add(() -> scanSource(base, ofBase, fromMillis, toMillis));
+            }
+        }
+        LOGGER.info("Analysing coverage of {} combos, {} streams.", result.size(), work.size());
+        runner.start(work.size());
+        runner.runAll(work);
+        return result;
+    }
+
+    private void scanSource(AggregationBase base, List<Coverage> coverages, long fromMillis, long toMillis) {
+        Entity source = base.getBaseDatastream();
+        if (source == null) {
+            source = base.getBaseMultiDatastream();
+        }
+        if (source == null) {
+            LOGGER.warn("No base Datastream for {}, can not check coverage.", base.getBaseName());
+            runner.taskFailed(1);
+            return;
+        }
+        try (ChunkSource stream = openSource(source, fromMillis, toMillis)) {
+            ObservationStream.Chunk chunk;
+            while (!Thread.currentThread().isInterrupted() && (chunk = stream.nextChunk()) != null) {
+                for (Coverage coverage : coverages) {
+                    coverage.addSource(chunk);
+                }
+            }
+            if (!Thread.currentThread().isInterrupted()) {
+                for (Coverage coverage : coverages) {
+                    coverage.sourceScanned = true;
+                }
+            }
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to read the raw data of {}.", base.getBaseName(), ex);
+            runner.taskFailed(1);
+            return;
+        }
+        runner.taskDone(1);
+    }
+
+    private void scanTarget(Coverage coverage, long fromMillis, long toMillis) {
+        Entity target = coverage.combo.targetMds;
+        try (ChunkSource stream = new ObservationStream(target, Instant.ofEpochMilli(fromMillis), Instant.ofEpochMilli(toMillis), false, ObservationStream.DEFAULT_PAGE_SIZE)) {
+            ObservationStream.Chunk chunk;
+            while (!Thread.currentThread().isInterrupted() && (chunk = stream.nextChunk()) != null) {
+                coverage.addTarget(chunk);
+            }
+            coverage.targetScanned = !Thread.currentThread().isInterrupted();
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to read the aggregates of {}.", coverage.combo, ex);
+            runner.taskFailed(1);
+            return;
+        }
+        runner.taskDone(1);
+    }
+
+    private ChunkSource openSource(Entity source, long fromMillis, long toMillis) {
+        if (cache != null) {
+            return cache.stream(source, fromMillis, toMillis);
+        }
+        return new ObservationStream(source, Instant.ofEpochMilli(fromMillis), Instant.ofEpochMilli(toMillis), false, ObservationStream.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Collects the gaps of all given coverages. Incomplete coverages are
+     * skipped, since a failed scan of the aggregates would make every
+     * interval look like a gap.
+     *
+     * @param coverages The coverages to collect the gaps of.
+     * @return The gaps, to re-calculate.
+     */
+    public static List<Gap> findGaps(Collection<Coverage> coverages) {
+        List<Gap> gaps = new ArrayList<>();
+        for (Coverage coverage : coverages) {
+            if (coverage.isComplete()) {
+                gaps.addAll(coverage.getGaps());
+            } else {
+                LOGGER.warn("Coverage of {} is incomplete, skipping its gaps.", coverage.combo);
+            }
+        }
+        return gaps;
+    }
+
+    /**
+     * @param coverages The coverages to check.
+     * @return The number of coverages that are not complete.
+     */
+    public static int countIncomplete(Collection<Coverage> coverages) {
+        int count = 0;
+        for (Coverage coverage : coverages) {
+            if (!coverage.isComplete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops the running analysis.
+     */
+    public void cancel() {
+        runner.cancel();
+    }
+
+    /**
+     * @return The fraction of the streams that are read.
+     */
+    public double getProgress() {
+        return runner.getProgress();
+    }
+
+    /**
+     * @return A human readable description of the progress and throughput.
+     */
+    public String getStatus() {
+        return runner.getStatus();
+    }
+
+    public ObservationCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache The cache to read the raw data from, or null to read
+     * directly from the server.
+     */
+    public void setCache(ObservationCache cache) {
+        this.cache = cache;
+    }
+
+    public int getMaxParallel() {
+        return runner.getMaxParallel();
+    }
+
+    public void setMaxParallel(int maxParallel) {
+        runner.setMaxParallel(maxParallel);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses the columns of an {@link ObservationStream.Chunk} into a bit
+ * stream, as described for the Gorilla time series database. Start times are
+ * stored as delta-of-delta, end times as the difference to the start, and
+ * values as the XOR with the previous value of the same column.
+ *
+ * @author scf
+ */
+final class GorillaCodec {
+
+    private GorillaCodec() {
+        // Utility class.
+    }
+
+    /**
+     * Writes bits into a growing array of longs, most significant bit first.
+     */
+    static final class BitWriter {
+
+        private long[] words = new long[64];
+        private long bitCount;
+
+        void writeBit(boolean bit) {
+            if (bit) {
+                writeBits(1, 1);
+            } else {
+                writeBits(0, 1);
+            }
+        }
+
+        void writeBits(long value, int count) {
+            if (count == 0) {
+                return;
+            }
+            if (count < 64) {
+                value &= (1L << count) - 1;
+            }
+            int word = (int) (bitCount >>> 6);
+            int used = (int) (bitCount & 63);
+            ensure(word + 1);
+            int free = 64 - used;
+            if (count <= free) {
+                words[word] |= value << (free - count);
+            } else {
+                int rest = count - free;
+                words[word] |= value >>> rest;
+                words[word + 1] |= value << (64 - rest);
+            }
+            bitCount += count;
+        }
+
+        private void ensure(int lastWord) {
+            if (lastWord >= words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, lastWord + 1));
+            }
+        }
+
+        int getWordCount() {
+            return (int) ((bitCount + 63) >>> 6);
+        }
+
+        long[] getWords() {
+            return words;
+        }
+    }
+
+    /**
+     * Reads bits from longs stored in a buffer, most significant bit first.
+     */
+    static final class BitReader {
+
+        private final ByteBuffer buffer;
+        private final int offset;
+        private long bitPos;
+
+        BitReader(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        boolean readBit() {
+            return readBits(1) != 0;
+        }
+
+        long readBits(int count) {
+            if (count == 0) {
+                return 0;
+            }
+            int word = (int) (bitPos >>> 6);
+            int used = (int) (bitPos & 63);
+            int free = 64 - used;
+            long current = buffer.getLong(offset + word * 8);
+            long result;
+            if (count <= free) {
+                result = current >>> (free - count);
+            } else {
+                int rest = count - free;
+                long next = buffer.getLong(offset + (word + 1) * 8);
+                result = (current << rest) | (next >>> (64 - rest));
+            }
+            bitPos += count;
+            if (count < 64) {
+                result &= (1L << count) - 1;
+            }
+            return result;
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes a signed value that is usually small, using a prefix selecting
+     * the number of bits: 0, 7, 9, 12 or 64.
+     */
+    private static void writeSmall(BitWriter out, long value) {
+        long zz = zigZag(value);
+        if (zz == 0) {
+            out.writeBits(0b0, 1);
+        } else if (zz >>> 7 == 0) {
+            out.writeBits(0b10, 2);
+            out.writeBits(zz, 7);
+        } else if (zz >>> 9 == 0) {
+            out.writeBits(0b110, 3);
+            out.writeBits(zz, 9);
+        } else if (zz >>> 12 == 0) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(zz, 12);
+        } else {
+            out.writeBits(0b1111, 4);
+            out.writeBits(zz, 64);
+        }
+    }
+
+    private static long readSmall(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        int bits;
+        if (!in.readBit()) {
+            bits = 7;
+        } else if (!in.readBit()) {
+            bits = 9;
+        } else if (!in.readBit()) {
+            bits = 12;
+        } else {
+            bits = 64;
+        }
+        return unZigZag(in.readBits(bits));
+    }
+
+    /**
+     * XOR compresses a series of doubles.
+     */
+    private static void writeValues(BitWriter out, double[] values, int offset, int stride, int count) {
+        long previous = 0;
+        int prevLeading = -1;
+        int prevTrailing = 0;
+        for (int i = 0; i < count; i++) {
+            long bits = Double.doubleToRawLongBits(values[offset + i * stride]);
+            if (i == 0) {
+                out.writeBits(bits, 64);
+                previous = bits;
+                continue;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.writeBit(false);
+                continue;
+            }
+            out.writeBit(true);
+            int leading = Long.numberOfLeadingZeros(xor);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                out.writeBit(false);
+                out.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+            } else {
+                out.writeBit(true);
+                int significant = 64 - leading - trailing;
+                out.writeBits(leading, 6);
+                out.writeBits(significant - 1, 6);
+                out.writeBits(xor >>> trailing, significant);
+                prevLeading = leading;
+                prevTrailing = trailing;
+            }
+        }
+    }
+
+    private static void readValues(BitReader in, double[] values, int offset, int stride, int count) {
+        long previous = 0;
+        int prevLeading = 0;
+        int prevTrailing = 0;
+        for (int i = 0; i < count; i++) {
+            long bits;
+            if (i == 0) {
+                bits = in.readBits(64);
+            } else if (!in.readBit()) {
+                bits = previous;
+            } else if (!in.readBit()) {
+                bits = previous ^ (in.readBits(64 - prevLeading - prevTrailing) << prevTrailing);
+            } else {
+                prevLeading = (int) in.readBits(6);
+                int significant = (int) in.readBits(6) + 1;
+                prevTrailing = 64 - prevLeading - significant;
+                bits = previous ^ (in.readBits(significant) << prevTrailing);
+            }
+            values[offset + i * stride] = Double.longBitsToDouble(bits);
+            previous = bits;
+        }
+    }
+
+    /**
+     * Encodes the chunk.
+     *
+     * @param chunk The chunk to encode.
+     * @return The writer holding the encoded bits.
+     */
+    static BitWriter encode(ObservationStream.Chunk chunk) {
+        BitWriter out = new BitWriter();
+        final int size = chunk.size();
+        final int width = chunk.width();
+        long prevStart = 0;
+        long prevDelta = 0;
+        for (int row = 0; row < size; row++) {
+            long start = chunk.getStart(row);
+            if (row == 0) {
+                out.writeBits(start, 64);
+            } else {
+                long delta = start - prevStart;
+                writeSmall(out, delta - prevDelta);
+                prevDelta = delta;
+            }
+            prevStart = start;
+            writeSmall(out, chunk.getEnd(row) - start);
+        }
+        double[] column = new double[size];
+        for (int col = 0; col < width; col++) {
+            for (int row = 0; row < size; row++) {
+                column[row] = chunk.getValue(row, col);
+            }
+            writeValues(out, column, 0, 1, size);
+        }
+        if (chunk.hasResultCounts()) {
+            for (int row = 0; row < size; row++) {
+                column[row] = chunk.getRawResultCount(row);
+            }
+            writeValues(out, column, 0, 1, size);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes a chunk.
+     *
+     * @param buffer The buffer holding the encoded longs.
+     * @param offset The offset of the first long in the buffer.
+     * @param size The number of rows.
+     * @param width The number of values per row.
+     * @param withResultCounts If the result counts were encoded.
+     * @return The decoded chunk.
+     */
+    static ObservationStream.Chunk decode(ByteBuffer buffer, int offset, int size, int width, boolean withResultCounts) {
+        BitReader in = new BitReader(buffer, offset);
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        long prevStart = 0;
+        long prevDelta = 0;
+        for (int row = 0; row < size; row++) {
+            long start;
+            if (row == 0) {
+                start = in.readBits(64);
+            } else {
+                long delta = prevDelta + readSmall(in);
+                start = prevStart + delta;
+                prevDelta = delta;
+            }
+            prevStart = start;
+            starts[row] = start;
+            ends[row] = start + readSmall(in);
+        }
+        double[] values = new double[size * width];
+        for (int col = 0; col < width; col++) {
+            readValues(in, values, col, width, size);
+        }
+        double[] counts = null;
+        if (withResultCounts) {
+            counts = new double[size];
+            readValues(in, counts, 0, 1, size);
+        }
+        return new ObservationStream.Chunk(size, width, starts, ends, values, counts);
+    }
+
+    /**
+     * Compares a decoded chunk with the chunk that was encoded, bit for bit.
+     *
+     * @param expected The chunk that was encoded.
+     * @param actual The decoded chunk.
+     * @return A description of the first difference, or null if the chunks
+     * are the same.
+     */
+    static String findMismatch(ObservationStream.Chunk expected, ObservationStream.Chunk actual) {
+        if (actual.size() != expected.size() || actual.width() != expected.width()) {
+            return "size " + actual.size() + "x" + actual.width() + " != " + expected.size() + "x" + expected.width();
+        }
+        for (int row = 0; row < expected.size(); row++) {
+            if (actual.getStart(row) != expected.getStart(row)) {
+                return "start of row " + row + ": " + actual.getStart(row) + " != " + expected.getStart(row);
+            }
+            if (actual.getEnd(row) != expected.getEnd(row)) {
+                return "end of row " + row + ": " + actual.getEnd(row) + " != " + expected.getEnd(row);
+            }
+            for (int col = 0; col < expected.width(); col++) {
+                if (differs(actual.getValue(row, col), expected.getValue(row, col))) {
+                    return "value " + row + "," + col + ": " + actual.getValue(row, col) + " != " + expected.getValue(row, col);
+                }
+            }
+            if (expected.hasResultCounts() && differs(actual.getRawResultCount(row), expected.getRawResultCount(row))) {
+                return "result count of row " + row + ": " + actual.getRawResultCount(row) + " != " + expected.getRawResultCount(row);
+            }
+        }
+        return null;
+    }
+
+    private static boolean differs(double actual, double expected) {
+        return Double.doubleToRawLongBits(actual) != Double.doubleToRawLongBits(expected);
+    }
+}
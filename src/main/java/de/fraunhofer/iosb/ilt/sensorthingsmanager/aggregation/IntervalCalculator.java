@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Calculates the intervals of an aggregation level in a time zone, on epoch
+ * milliseconds. Gives the same results as
+ * {@link AggregationLevel#toIntervalStart(ZonedDateTime)}, but only does the
+ * date-time calculations when the offset of the zone changes, or the time
+ * moves into a new anchor period (minute, hour, day or year, depending on the
+ * level). In between, the interval start is found using plain long arithmetic.
+ *
+ * Levels with a unit larger than DAYS always use the slow path.
+ *
+ * Instances are thread safe.
+ *
+ * @author scf
+ */
+public class IntervalCalculator {
+
+    /**
+     * A period of time in which the offset of the zone does not change.
+     */
+    private static final class OffsetWindow {
+
+        final long from;
+        final long to;
+        final int offsetMillis;
+
+        OffsetWindow(long from, long to, int offsetMillis) {
+            this.from = from;
+            this.to = to;
+            this.offsetMillis = offsetMillis;
+        }
+    }
+
+    /**
+     * A range of local times that all have the same anchor.
+     */
+    private static final class AnchorWindow {
+
+        final long localFrom;
+        final long localTo;
+        final int offsetMillis;
+        final long anchor;
+
+        AnchorWindow(long localFrom, long localTo, int offsetMillis, long anchor) {
+            this.localFrom = localFrom;
+            this.localTo = localTo;
+            this.offsetMillis = offsetMillis;
+            this.anchor = anchor;
+        }
+    }
+
+    /**
+     * Iterates over the intervals that overlap a given time, without creating
+     * objects for each interval. Not thread safe.
+     */
+    public final class Cursor {
+
+        private long start;
+        private long end;
+        private long limit;
+        private boolean started;
+
+        /**
+         * Positions the cursor before the first interval overlapping the given
+         * period.
+         *
+         * @param fromMillis The start of the period.
+         * @param toMillis The end of the period.
+         * @return this.
+         */
+        public Cursor reset(long fromMillis, long toMillis) {
+            start = intervalStart(fromMillis);
+            end = intervalEnd(start);
+            limit = toMillis;
+            started = false;
+            return this;
+        }
+
+        /**
+         * Moves to the next interval.
+         *
+         * @return false if there are no more intervals.
+         */
+        public boolean next() {
+            if (!started) {
+                started = true;
+                return true;
+            }
+            if (end < limit) {
+                start = end;
+                end = intervalEnd(start);
+                return true;
+            }
+            return false;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+    }
+
+    private final AggregationLevel level;
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final long durationMillis;
+    private final boolean fast;
+    private volatile OffsetWindow offsetWindow;
+    private volatile AnchorWindow anchorWindow;
+
+    public IntervalCalculator(AggregationLevel level, ZoneId zone) {
+        this.level = level;
+        this.zone = zone;
+        this.rules = zone.getRules();
+        this.durationMillis = level.duration.toMillis();
+        this.fast = level.hasFixedLength();
+        if (rules.isFixedOffset()) {
+            int offset = rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000;
+            offsetWindow = new OffsetWindow(Long.MIN_VALUE, Long.MAX_VALUE, offset);
+        }
+    }
+
+    public AggregationLevel getLevel() {
+        return level;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * Finds the start of the interval that contains the given time.
+     *
+     * @param epochMillis The time to find the interval for.
+     * @return The start of the interval, in epoch milliseconds.
+     */
+    public long intervalStart(long epochMillis) {
+        if (!fast) {
+            ZonedDateTime time = Instant.ofEpochMilli(epochMillis).atZone(zone);
+            return level.toIntervalStart(time).toInstant().toEpochMilli();
+        }
+        int offset = offsetAt(epochMillis);
+        long local = epochMillis + offset;
+        AnchorWindow window = anchorWindow;
+        if (window == null || window.offsetMillis != offset || local < window.localFrom || local >= window.localTo) {
+            window = findAnchor(epochMillis, offset);
+            anchorWindow = window;
+        }
+        long anchor = window.anchor;
+        return anchor + Math.floorDiv(epochMillis - anchor, durationMillis) * durationMillis;
+    }
+
+    /**
+     * Finds the end of the interval that starts at the given time.
+     *
+     * @param startMillis The start of the interval.
+     * @return The end of the interval, in epoch milliseconds.
+     */
+    public long intervalEnd(long startMillis) {
+        if (fast) {
+            return startMillis + durationMillis;
+        }
+        return Instant.ofEpochMilli(startMillis).plus(level.amount, level.unit).toEpochMilli();
+    }
+
+    /**
+     * Creates a new cursor over the intervals overlapping the given period.
+     *
+     * @param fromMillis The start of the period.
+     * @param toMillis The end of the period.
+     * @return A new cursor.
+     */
+    public Cursor cursor(long fromMillis, long toMillis) {
+        return new Cursor().reset(fromMillis, toMillis);
+    }
+
+    private int offsetAt(long epochMillis) {
+        OffsetWindow window = offsetWindow;
+        if (window != null && epochMillis >= window.from && epochMillis < window.to) {
+            return window.offsetMillis;
+        }
+        Instant instant = Instant.ofEpochMilli(epochMillis);
+        ZoneOffset offset = rules.getOffset(instant);
+        long from = epochMillis;
+        ZoneOffsetTransition previous = rules.previousTransition(instant);
+        if (previous == null) {
+            from = Long.MIN_VALUE;
+        } else if (previous.getOffsetAfter().equals(offset)) {
+            from = Math.min(from, previous.getInstant().toEpochMilli());
+        }
+        ZoneOffsetTransition next = rules.nextTransition(instant);
+        long to = next == null ? Long.MAX_VALUE : next.getInstant().toEpochMilli();
+        window = new OffsetWindow(from, to, offset.getTotalSeconds() * 1000);
+        offsetWindow = window;
+        return window.offsetMillis;
+    }
+
+    private AnchorWindow findAnchor(long epochMillis, int offsetMillis) {
+        ZonedDateTime time = Instant.ofEpochMilli(epochMillis).atZone(zone);
+        LocalDateTime localFrom = level.toAnchor(time.toLocalDateTime());
+        ZonedDateTime anchor = ZonedDateTime.ofLocal(localFrom, zone, time.getOffset());
+        LocalDateTime localTo;
+        switch ((ChronoUnit) level.unit) {
+            case SECONDS:
+                localTo = localFrom.plusMinutes(1);
+                break;
+            case MINUTES:
+                localTo = localFrom.plusHours(1);
+                break;
+            case HOURS:
+                localTo = localFrom.plusDays(1);
+                break;
+            default:
+                localTo = localFrom.plusYears(1);
+        }
+        return new AnchorWindow(
+                toLocalMillis(localFrom),
+                toLocalMillis(localTo),
+                offsetMillis,
+                anchor.toInstant().toEpochMilli());
+    }
+
+    private static long toLocalMillis(LocalDateTime local) {
+        return local.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.quoteForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.query.Query;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Monitors how far the aggregates lag behind their sources. The latest
+ * Observation of all Datastreams and MultiDatastreams is fetched in paged
+ * collection requests, by expanding the Observations with $top=1, instead of
+ * one request per source and target.
+ *
+ * After the first refresh, only entities that have Observations newer than
+ * the previous refresh are requested. An aggregate is only written after its
+ * interval ends, and its phenomenonTime starts one interval earlier, so the
+ * aggregates of each level are requested in a separate query, that looks back
+ * one interval of that level further. Every few refreshes a full refresh is
+ * done, to pick up late data.
+ *
+ * @author scf
+ */
+public class LagMonitor {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LagMonitor.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    /**
+     * How far before the start of the previous refresh incremental refreshes
+     * look for new Observations.
+     */
+    public static final Duration DEFAULT_OVERLAP = Duration.ofMinutes(10);
+    public static final int DEFAULT_FULL_REFRESH_INTERVAL = 10;
+
+    private static final String EXPAND_LAST = "Observations($select=phenomenonTime;$orderby=phenomenonTime desc;$top=1)";
+    private static final long NONE = Long.MIN_VALUE;
+
+    /**
+     * The lag of one combo.
+     */
+    public static class Entry {
+
+        private final AggregateCombo combo;
+        private volatile long sourceLast = NONE;
+        private volatile long targetLast = NONE;
+
+        private Entry(AggregateCombo combo) {
+            this.combo = combo;
+        }
+
+        public AggregateCombo getCombo() {
+            return combo;
+        }
+
+        /**
+         * @return The end of the phenomenonTime of the latest source
+         * Observation, or null if the source has no Observations.
+         */
+        public Instant getSourceLast() {
+            return sourceLast == NONE ? null : Instant.ofEpochMilli(sourceLast);
+        }
+
+        /**
+         * @return The end of the phenomenonTime of the latest aggregate, or
+         * null if there are no aggregates.
+         */
+        public Instant getTargetLast() {
+            return targetLast == NONE ? null : Instant.ofEpochMilli(targetLast);
+        }
+
+        /**
+         * The time between the latest aggregate and the latest source
+         * Observation. Zero if the source has no Observations, and
+         * Long.MAX_VALUE if only the source has Observations.
+         *
+         * @return The lag in milliseconds.
+         */
+        public long getLagMillis() {
+            if (sourceLast == NONE) {
+                return 0;
+            }
+            if (targetLast == NONE) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0, sourceLast - targetLast);
+        }
+
+        /**
+         * The lag, minus the length of one interval, since the current
+         * interval can not be aggregated before it ends.
+         *
+         * @return The time the aggregate is overdue, in milliseconds.
+         */
+        public long getOverdueMillis() {
+            long lag = getLagMillis();
+            if (lag == Long.MAX_VALUE || combo.level.duration == null) {
+                return lag;
+            }
+            return Math.max(0, lag - combo.level.duration.toMillis());
+        }
+    }
+
+    private final SensorThingsService service;
+    private final SensorThingsV11Sensing sMdl;
+    private final SensorThingsV11MultiDatastream mMdl;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<EntityType, Map<String, List<Entry>>> bySource = new HashMap<>();
+    private final Map<EntityType, Map<String, List<Entry>>> byTarget = new HashMap<>();
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private Duration overlap = DEFAULT_OVERLAP;
+    private int fullRefreshInterval = DEFAULT_FULL_REFRESH_INTERVAL;
+    private int refreshCount = 0;
+    private Instant lastRefresh;
+    private int lastRequestCount;
+
+    public LagMonitor(SensorThingsService service, Collection<AggregationBase> bases) {
+        this.service = service;
+        sMdl = service.getModel(SensorThingsV11Sensing.class);
+        mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
+        for (AggregationBase base : bases) {
+            for (AggregateCombo combo : base.getCombos()) {
+                Entry entry = new Entry(combo);
+                entries.add(entry);
+                addTo(byTarget, combo.targetMds, entry);
+                Entity source = combo.sourceDs != null ? combo.sourceDs : combo.sourceMds;
+                if (source != null) {
+                    addTo(bySource, source, entry);
+                }
+            }
+        }
+    }
+
+    private static void addTo(Map<EntityType, Map<String, List<Entry>>> map, Entity entity, Entry entry) {
+        map.computeIfAbsent(entity.getType(), t -> new HashMap<>())
+                .computeIfAbsent(formatKeyValuesForUrl(entity), k -> new ArrayList<>())
+                .add(entry);
+    }
+
+    /**
+     * Fetches the latest Observations. The first refresh, and every
+     * fullRefreshInterval-th refresh after that, fetches all entities. The
+     * other refreshes only fetch entities with new Observations.
+     *
+     * @return The number of entities with an updated latest Observation.
+     * @throws ServiceFailureException If a request fails.
+     */
+    public synchronized int refresh() throws ServiceFailureException {
+        final long start = System.currentTimeMillis();
+        Instant since = null;
+        if (lastRefresh != null && refreshCount % fullRefreshInterval != 0) {
+            since = lastRefresh.minus(overlap);
+        }
+        final Instant refreshStart = Instant.ofEpochMilli(start);
+        lastRequestCount = 0;
+        Set<String> updated = new HashSet<>();
+        for (EntityType type : new EntityType[]{sMdl.etDatastream, mMdl.etMultiDatastream}) {
+            Map<String, List<Entry>> sources = bySource.getOrDefault(type, Map.of());
+            Map<String, List<Entry>> targets = byTarget.getOrDefault(type, Map.of());
+            if (sources.isEmpty() && targets.isEmpty()) {
+                continue;
+            }
+            if (since == null) {
+                refresh(type, sources, targets, null, updated);
+                continue;
+            }
+            refresh(type, sources, targets, "Observations/phenomenonTime ge " + since, updated);
+            Set<AggregationLevel> levels = new TreeSet<>();
+            for (List<Entry> list : targets.values()) {
+                for (Entry entry : list) {
+                    levels.add(entry.combo.level);
+                }
+            }
+            for (AggregationLevel level : levels) {
+                Instant levelSince = since.minus(maxIntervalLength(level));
+                refresh(type, sources, targets, "Observations/phenomenonTime ge " + levelSince
+                        + " and properties/" + Utils.KEY_AGGREGATE_AMOUNT + " eq " + level.amount
+                        + " and properties/" + Utils.KEY_AGGREGATE_UNIT + " eq " + quoteForUrl(level.unit.toString()), updated);
+            }
+        }
+        lastRefresh = refreshStart;
+        refreshCount++;
+        LOGGER.info("Refreshed lag of {} entities {} in {} requests, {} ms.",
+                updated.size(), since == null ? "(full)" : "since " + since, lastRequestCount, System.currentTimeMillis() - start);
+        return updated.size();
+    }
+
+    /**
+     * The longest an interval of the given level can be. Units without a fixed
+     * duration, like days with a DST change, or months, can be up to a tenth
+     * longer than their estimated duration.
+     */
+    private static Duration maxIntervalLength(AggregationLevel level) {
+        Duration length = level.duration;
+        if (level.unit.isDurationEstimated()) {
+            length = length.plus(length.dividedBy(10));
+        }
+        return length;
+    }
+
+    private void refresh(EntityType type, Map<String, List<Entry>> sources, Map<String, List<Entry>> targets, String filter, Set<String> updated) throws ServiceFailureException {
+        final NavigationPropertyEntitySet npObs = type.getNavigationPropertySet("Observations");
+        Query query = service.query(type)
+                .select("id")
+                .expand(EXPAND_LAST)
+                .orderBy("id asc")
+                .top(pageSize);
+        if (filter != null) {
+            query.filter(filter);
+        }
+        EntitySet page = query.list();
+        lastRequestCount++;
+        while (true) {
+            for (Entity entity : page.toList()) {
+                EntitySet observations = entity.getProperty(npObs);
+                if (observations == null || observations.toList().isEmpty()) {
+                    continue;
+                }
+                long last = Utils.toEpochMillis(Utils.getPhenTimeEnd(observations.toList().get(0)));
+                String key = formatKeyValuesForUrl(entity);
+                boolean found = false;
+                for (Entry entry : sources.getOrDefault(key, List.of())) {
+                    entry.sourceLast = last;
+                    found = true;
+                }
+                for (Entry entry : targets.getOrDefault(key, List.of())) {
+                    entry.targetLast = last;
+                    found = true;
+                }
+                if (found) {
+                    updated.add(type.getEntityName() + key);
+                }
+            }
+            if (!page.hasNextLink()) {
+                break;
+            }
+            page.fetchNext();
+            lastRequestCount++;
+        }
+    }
+
+    /**
+     * @return All entries, in no particular order.
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * @param count The maximum number of entries to return.
+     * @return The entries that are the most overdue, worst first. Entries
+     * that are not overdue are not returned.
+     */
+    public List<Entry> getWorst(int count) {
+        return entries.stream()
+                .filter(e -> e.getOverdueMillis() > 0)
+                .sorted(Comparator.comparingLong(Entry::getOverdueMillis).reversed())
+                .limit(count)
+                .toList();
+    }
+
+    /**
+     * @return The number of requests used by the last refresh.
+     */
+    public int getLastRequestCount() {
+        return lastRequestCount;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public Duration getOverlap() {
+        return overlap;
+    }
+
+    public void setOverlap(Duration overlap) {
+        this.overlap = overlap;
+    }
+
+    public int getFullRefreshInterval() {
+        return fullRefreshInterval;
+    }
+
+    /**
+     * @param fullRefreshInterval Every how many refreshes all entities are
+     * fetched, at least 1.
+     */
+    public void setFullRefreshInterval(int fullRefreshInterval) {
+        if (fullRefreshInterval < 1) {
+            throw new IllegalArgumentException("fullRefreshInterval must be at least 1. Given: " + fullRefreshInterval);
+        }
+        this.fullRefreshInterval = fullRefreshInterval;
+    }
+}
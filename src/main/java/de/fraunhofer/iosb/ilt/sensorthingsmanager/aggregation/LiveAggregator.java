@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeInterval;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.ObjectMapperFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps aggregates up-to-date while new Observations come in. It subscribes
+ * to the MQTT topics of all sources in
+ * {@link AggregationData#getComboBySource()}, keeps running statistics for the
+ * current interval of each combo in memory, and writes the aggregate of an
+ * interval when {@link AggregateCombo#replaceIfNotCurrent(TimeInterval)}
+ * reports that the next interval started, or when the interval is over for
+ * longer than the grace period.
+ *
+ * The first interval of each combo has only been seen in part, and is
+ * recalculated from the server instead. Observations that arrive for an
+ * interval that was already written mark that interval for recalculation.
+ * The marked intervals are recalculated once, by the timer, so a burst of
+ * late Observations does not recalculate the same interval for each
+ * Observation, and does not block the handling of new Observations. Combos
+ * with an aggregate source merge the aggregates written for the finer level.
+ *
+ * Finished intervals are taken from the state while holding its lock, and
+ * written after the lock is released, so incoming Observations do not wait
+ * for the server.
+ *
+ * @author scf
+ */
+public class LiveAggregator implements MqttCallbackExtended {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LiveAggregator.class);
+
+    /**
+     * The default time after the end of an interval, after which the interval
+     * is written, even if no newer Observation came in.
+     */
+    public static final long DEFAULT_GRACE_MILLIS = 60_000;
+
+    private static final int SUBSCRIBE_BATCH = 100;
+    private static final int STRIPES = 8;
+
+    private static final class LiveState {
+
+        final AggregationBase base;
+        final AggregateCombo combo;
+        final boolean fromAggregates;
+        final boolean perValue;
+        List<AggregateStats> stats = newStats();
+        long start = Long.MIN_VALUE;
+        long end;
+        long flushedUntil = Long.MIN_VALUE;
+        boolean partial = true;
+        /**
+         * The starts of the written intervals that received late data.
+         */
+        final NavigableSet<Long> lateStarts = new TreeSet<>();
+
+        LiveState(AggregationBase base, AggregateCombo combo) {
+            this.base = base;
+            this.combo = combo;
+            this.fromAggregates = combo.sourceIsAggregate;
+            this.perValue = !combo.sourceIsAggregate && combo.sourceMds != null;
+        }
+    }
+
+    /**
+     * A finished interval, taken from a state, to be written after the lock
+     * on the state is released.
+     */
+    private static final class PendingWrite {
+
+        final LiveState state;
+        final TimeInterval interval;
+        final List<AggregateStats> stats;
+        final boolean partial;
+
+        PendingWrite(LiveState state, TimeInterval interval, List<AggregateStats> stats, boolean partial) {
+            this.state = state;
+            this.interval = interval;
+            this.stats = stats;
+            this.partial = partial;
+        }
+    }
+
+    private final AggregationCalculator calculator;
+    private final Map<String, List<LiveState>> statesByTopic = new HashMap<>();
+    private final List<LiveState> states = new ArrayList<>();
+    private final ExecutorService[] stripes = new ExecutorService[STRIPES];
+    private ScheduledExecutorService timer;
+    private MqttClient client;
+    private long graceMillis = DEFAULT_GRACE_MILLIS;
+
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong intervalsFlushed = new AtomicLong();
+    private final AtomicLong intervalsRecalculated = new AtomicLong();
+
+    /**
+     * Creates a live aggregator for all combos that have a source.
+     *
+     * @param service The service to write the aggregates to.
+     * @param data The aggregation data to get the combos from.
+     */
+    public LiveAggregator(SensorThingsService service, AggregationData data) {
+        calculator = new AggregationCalculator(service);
+        Map<AggregateCombo, AggregationBase> baseByCombo = new HashMap<>();
+        for (AggregationBase base : data.getAggregationBases()) {
+            for (AggregateCombo combo : base.getCombos()) {
+                baseByCombo.put(combo, base);
+            }
+        }
+        for (Map.Entry<String, List<AggregateCombo>> entry : data.getComboBySource().entrySet()) {
+            List<LiveState> topicStates = new ArrayList<>();
+            for (AggregateCombo combo : entry.getValue()) {
+                LiveState state = new LiveState(baseByCombo.get(combo), combo);
+                topicStates.add(state);
+                states.add(state);
+            }
+            statesByTopic.put(entry.getKey(), topicStates);
+        }
+    }
+
+    /**
+     * @param graceMillis The time after the end of an interval, after which
+     * the interval is written, even if no newer Observation came in.
+     * @return this.
+     */
+    public LiveAggregator setGraceMillis(long graceMillis) {
+        this.graceMillis = graceMillis;
+        return this;
+    }
+
+    /**
+     * Connects to the broker and subscribes to all source topics.
+     *
+     * @param brokerUrl The url of the MQTT broker, like tcp://localhost:1883.
+     * @throws MqttException If connecting or subscribing fails.
+     */
+    public void start(String brokerUrl) throws MqttException {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("LiveAggregator-" + i).factory());
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("LiveAggregator-timer").factory());
+        long period = Math.max(1000, graceMillis / 2);
+        timer.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+
+        client = new MqttClient(brokerUrl, "FROST-Manager-" + Long.toHexString(System.nanoTime()), new MemoryPersistence());
+        client.setCallback(this);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setAutomaticReconnect(true);
+        options.setCleanSession(true);
+        client.connect(options);
+        LOGGER.info("Connected to {}, subscribing to {} topics for {} combos.", brokerUrl, statesByTopic.size(), states.size());
+    }
+
+    /**
+     * Disconnects from the broker. Intervals that are not finished are not
+     * written.
+     */
+    public void stop() {
+        try {
+            if (client != null && client.isConnected()) {
+                client.disconnect();
+            }
+        } catch (MqttException ex) {
+            LOGGER.warn("Failed to disconnect: {}", ex.getMessage());
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        for (ExecutorService stripe : stripes) {
+            if (stripe != null) {
+                stripe.shutdown();
+            }
+        }
+    }
+
+    private void subscribeAll() throws MqttException {
+        List<String> topics = new ArrayList<>(statesByTopic.keySet());
+        for (int from = 0; from < topics.size(); from += SUBSCRIBE_BATCH) {
+            List<String> batch = topics.subList(from, Math.min(topics.size(), from + SUBSCRIBE_BATCH));
+            int[] qos = new int[batch.size()];
+            client.subscribe(batch.toArray(String[]::new), qos);
+        }
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        try {
+            subscribeAll();
+            LOGGER.info("Subscribed to {} topics on {}.", statesByTopic.size(), serverURI);
+        } catch (MqttException ex) {
+            LOGGER.error("Failed to subscribe.", ex);
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        LOGGER.warn("Connection to broker lost: {}", cause.getMessage());
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        List<LiveState> topicStates = statesByTopic.get(topic);
+        if (topicStates == null) {
+            return;
+        }
+        messagesReceived.incrementAndGet();
+        final byte[] payload = message.getPayload();
+        // One single-threaded executor per stripe keeps the messages of each topic in order.
+        stripes[Math.floorMod(topic.hashCode(), STRIPES)].execute(() -> handle(topic, topicStates, payload));
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // We do not publish.
+    }
+
+    private void handle(String topic, List<LiveState> topicStates, byte[] payload) {
+        Map<String, Object> obs;
+        try {
+            obs = ObjectMapperFactory.get().readValue(payload, Map.class);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Failed to parse message on {}: {}", topic, ex.getMessage());
+            return;
+        }
+        Object phenTime = obs.get("phenomenonTime");
+        if (phenTime == null) {
+            return;
+        }
+        long phenTimeStart;
+        try {
+            String time = phenTime.toString();
+            int slash = time.indexOf('/');
+            phenTimeStart = Instant.parse(slash < 0 ? time : time.substring(0, slash)).toEpochMilli();
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Invalid phenomenonTime on {}: {}", topic, phenTime);
+            return;
+        }
+        Object result = obs.get("result");
+        Object resultCount = null;
+        if (obs.get("parameters") instanceof Map<?, ?> parameters) {
+            resultCount = parameters.get(AggregationCalculator.KEY_RESULT_COUNT);
+        }
+        for (LiveState state : topicStates) {
+            try {
+                process(state, phenTimeStart, result, resultCount);
+            } catch (ServiceFailureException ex) {
+                LOGGER.error("Failed to write aggregate for {}: {}", state.combo, ex.getMessage());
+            }
+        }
+    }
+
+    private void process(LiveState state, long phenTimeStart, Object result, Object resultCount) throws ServiceFailureException {
+        PendingWrite pending = null;
+        synchronized (state) {
+            IntervalCalculator intervals = state.combo.getIntervalCalculator();
+            long start = intervals.intervalStart(phenTimeStart);
+            if (start < state.flushedUntil || (state.start != Long.MIN_VALUE && start < state.start)) {
+                // Late data for an interval that was already written.
+                state.lateStarts.add(start);
+                return;
+            }
+            if (start != state.start) {
+                long end = intervals.intervalEnd(start);
+                TimeInterval old = state.combo.replaceIfNotCurrent(toInterval(start, end));
+                if (old != null) {
+                    pending = take(state, old);
+                }
+                state.start = start;
+                state.end = end;
+            }
+            if (state.fromAggregates) {
+                AggregationCalculator.addAggregate(result, resultCount, state.stats);
+            } else {
+                AggregationCalculator.addResult(result, state.stats, state.perValue);
+            }
+        }
+        if (pending != null) {
+            write(pending);
+        }
+    }
+
+    private void flushExpired() {
+        long now = System.currentTimeMillis();
+        for (LiveState state : states) {
+            recalculateLate(state);
+            PendingWrite pending = null;
+            synchronized (state) {
+                if (state.start == Long.MIN_VALUE || state.end + graceMillis > now) {
+                    continue;
+                }
+                TimeInterval old = state.combo.unsetCurrent(null);
+                if (old != null) {
+                    pending = take(state, old);
+                }
+                state.start = Long.MIN_VALUE;
+            }
+            if (pending != null) {
+                try {
+                    write(pending);
+                } catch (ServiceFailureException ex) {
+                    LOGGER.error("Failed to write aggregate for {}: {}", state.combo, ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private static List<AggregateStats> newStats() {
+        List<AggregateStats> stats = new ArrayList<>();
+        stats.add(new AggregateStats());
+        return stats;
+    }
+
+    /**
+     * Takes the statistics of the given interval from the state, and gives
+     * the state new, empty statistics. Called with the lock on the state
+     * held.
+     */
+    private static PendingWrite take(LiveState state, TimeInterval interval) {
+        PendingWrite pending = new PendingWrite(state, interval, state.stats, state.partial);
+        state.stats = newStats();
+        state.partial = false;
+        state.flushedUntil = Math.max(state.flushedUntil, Utils.toEpochMillis(interval.getEnd()));
+        return pending;
+    }
+
+    /**
+     * Writes the aggregate of a taken interval. An interval that was only
+     * seen in part is recalculated from the server instead. Called without
+     * the lock on the state.
+     */
+    private void write(PendingWrite pending) throws ServiceFailureException {
+        if (pending.partial) {
+            recalculate(pending.state, Utils.toEpochMillis(pending.interval.getStart()), Utils.toEpochMillis(pending.interval.getEnd()));
+        } else if (calculator.writeInterval(pending.state.combo, pending.interval, pending.stats)) {
+            intervalsFlushed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Recalculates the intervals that received late data, merging adjacent
+     * intervals into one calculation. Runs without the lock on the state, so
+     * the stripe of the state is not blocked.
+     */
+    private void recalculateLate(LiveState state) {
+        final List<Long> starts;
+        synchronized (state) {
+            if (state.lateStarts.isEmpty()) {
+                return;
+            }
+            starts = new ArrayList<>(state.lateStarts);
+            state.lateStarts.clear();
+        }
+        IntervalCalculator intervals = state.combo.getIntervalCalculator();
+        int i = 0;
+        while (i < starts.size()) {
+            long start = starts.get(i);
+            long end = intervals.intervalEnd(start);
+            i++;
+            while (i < starts.size() && starts.get(i) == end) {
+                end = intervals.intervalEnd(end);
+                i++;
+            }
+            try {
+                recalculate(state, start, end);
+            } catch (ServiceFailureException ex) {
+                LOGGER.error("Failed to recalculate late data for {}: {}", state.combo, ex.getMessage());
+            }
+        }
+    }
+
+    private void recalculate(LiveState state, long start, long end) throws ServiceFailureException {
+        if (state.base == null) {
+            return;
+        }
+        LOGGER.debug("Recalculating {} from {}.", state.combo, Instant.ofEpochMilli(start));
+        calculator.calculate(state.base, state.combo, Utils.fromEpochMillis(start), Utils.fromEpochMillis(end - 1));
+        intervalsRecalculated.incrementAndGet();
+    }
+
+    private static TimeInterval toInterval(long start, long end) {
+        return TimeInterval.create(Utils.fromEpochMillis(start), Utils.fromEpochMillis(end));
+    }
+
+    /**
+     * @return The number of Observations received.
+     */
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    /**
+     * @return The number of intervals written from the in-memory state.
+     */
+    public long getIntervalsFlushed() {
+        return intervalsFlushed.get();
+    }
+
+    /**
+     * @return The number of intervals recalculated from the server, because
+     * they were only seen in part, or late data came in.
+     */
+    public long getIntervalsRecalculated() {
+        return intervalsRecalculated.get();
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of all entities of one type by name, loaded in bulk with
+ * paged queries that only select a few properties. Entities created after
+ * loading must be added using {@link #add(Entity)}.
+ *
+ * This class is thread safe.
+ *
+ * @author scf
+ */
+public class NameIndex {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(NameIndex.class);
+
+    private static final int PAGE_SIZE = 10000;
+
+    private final SensorThingsService service;
+    private final EntityType type;
+    private final Map<String, List<Entity>> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the index for all entities of the given type.
+     *
+     * @param service The service to load the entities from.
+     * @param type The type of the entities.
+     * @param select The properties to load, must include id and name.
+     * @return The loaded index.
+     * @throws ServiceFailureException If loading fails.
+     */
+    public static NameIndex load(SensorThingsService service, EntityType type, String... select) throws ServiceFailureException {
+        NameIndex index = new NameIndex(service, type);
+        long start = System.currentTimeMillis();
+        EntitySet entities = service.query(type)
+                .select(select)
+                .orderBy("id asc")
+                .top(PAGE_SIZE)
+                .list();
+        int count = 0;
+        while (true) {
+            for (Entity entity : entities.toList()) {
+                index.add(entity);
+                count++;
+            }
+            if (!entities.hasNextLink()) {
+                break;
+            }
+            entities.fetchNext();
+        }
+        LOGGER.info("Indexed {} {} in {} ms.", count, type.getEntityName(), System.currentTimeMillis() - start);
+        return index;
+    }
+
+    private NameIndex(SensorThingsService service, EntityType type) {
+        this.service = service;
+        this.type = type;
+    }
+
+    public SensorThingsService getService() {
+        return service;
+    }
+
+    public EntityType getType() {
+        return type;
+    }
+
+    /**
+     * @param name The name to look up.
+     * @return The entities with the given name, empty if there are none.
+     */
+    public List<Entity> get(String name) {
+        return byName.getOrDefault(name, Collections.emptyList());
+    }
+
+    /**
+     * Adds an entity to the index, for instance after it was created.
+     *
+     * @param entity The entity to add.
+     */
+    public void add(Entity entity) {
+        String name = entity.getProperty(EP_NAME);
+        if (name == null) {
+            return;
+        }
+        byName.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(entity);
+    }
+
+    /**
+     * @return The number of distinct names in the index.
+     */
+    public int size() {
+        return byName.size();
+    }
+}
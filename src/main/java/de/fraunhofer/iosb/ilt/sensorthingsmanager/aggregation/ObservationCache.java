@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, memory-mapped cache of the raw Observations of Datastreams and
+ * MultiDatastreams, so that recalculating several levels of a base, or
+ * re-running a backfill, does not load the same Observations from the server
+ * again.
+ *
+ * The Observations of each source are stored in segments of a fixed duration,
+ * one file per segment, holding the Observations with a phenomenonTime start
+ * in the segment. The columns are compressed with {@link GorillaCodec}, and
+ * each segment is decoded and compared before it is stored. Only segments
+ * that ended longer than the settle time ago are stored, since newer data may
+ * still change. A run of missing segments is loaded from the server with one
+ * query, split into segments, and stored, including empty segments.
+ *
+ * The cache does not notice changes to old Observations on the server. Use
+ * {@link #invalidate(Entity)} or {@link #clear()} after such changes.
+ *
+ * This class is thread safe.
+ *
+ * @author scf
+ */
+public class ObservationCache {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationCache.class);
+
+    /**
+     * The default directory to store the cache in.
+     */
+    public static final String DEFAULT_DIRECTORY = "observationCache";
+
+    /**
+     * The default duration of a segment.
+     */
+    public static final Duration DEFAULT_SEGMENT_DURATION = Duration.ofDays(1);
+
+    /**
+     * The default time after the end of a segment, after which the segment is
+     * assumed not to change any more.
+     */
+    public static final Duration DEFAULT_SETTLE_TIME = Duration.ofDays(1);
+
+    private static final int MAGIC = 0x464d4f43;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int FLAG_RESULT_COUNTS = 1;
+
+    private final Path directory;
+    private final long segmentMillis;
+    private final long settleMillis;
+
+    private final AtomicLong segmentsHit = new AtomicLong();
+    private final AtomicLong segmentsLoaded = new AtomicLong();
+    private final AtomicLong bytesMapped = new AtomicLong();
+
+    /**
+     * Creates a cache with the default segment duration and settle time.
+     *
+     * @param directory The directory to store the segments of one server in.
+     */
+    public ObservationCache(File directory) {
+        this(directory, DEFAULT_SEGMENT_DURATION, DEFAULT_SETTLE_TIME);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory The directory to store the segments of one server in.
+     * @param segmentDuration The duration of one segment. Segments of existing
+     * files must have the same duration.
+     * @param settleTime The time after the end of a segment, after which the
+     * segment is assumed not to change any more.
+     */
+    public ObservationCache(File directory, Duration segmentDuration, Duration settleTime) {
+        this.directory = directory.toPath().resolve(Long.toString(segmentDuration.toMillis()));
+        this.segmentMillis = segmentDuration.toMillis();
+        this.settleMillis = settleTime.toMillis();
+    }
+
+    /**
+     * Get the directory to store the cache for the given server in.
+     *
+     * @param directory The directory to store the caches in.
+     * @param serverUrl The url of the server.
+     * @return The cache directory for the server.
+     */
+    public static File directoryFor(File directory, String serverUrl) {
+        return new File(directory, serverUrl.replaceAll("[^a-zA-Z0-9.-]+", "_"));
+    }
+
+    /**
+     * Streams the Observations of the source with a phenomenonTime start in
+     * the given range. Settled segments are read from the cache, or loaded
+     * and stored if missing. Other parts of the range are read from the
+     * server.
+     *
+     * @param source The Datastream or MultiDatastream to read from.
+     * @param fromMillis The start of the range, inclusive.
+     * @param toMillis The end of the range, exclusive.
+     * @return The stream of chunks.
+     */
+    public ChunkSource stream(Entity source, long fromMillis, long toMillis) {
+        return new CachedStream(source, fromMillis, toMillis);
+    }
+
+    private class CachedStream implements ChunkSource {
+
+        private final Entity source;
+        private final long fromMillis;
+        private final long toMillis;
+        private long segmentStart;
+        private ObservationStream direct;
+        /**
+         * The stream loading a run of missing segments, with one query.
+         */
+        private ObservationStream loading;
+        private long loadingSegment;
+        private long loadingEnd;
+        private final List<ObservationStream.Chunk> loadingChunks = new ArrayList<>();
+        private final Deque<ObservationStream.Chunk> ready = new ArrayDeque<>();
+
+        CachedStream(Entity source, long fromMillis, long toMillis) {
+            this.source = source;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.segmentStart = Math.floorDiv(fromMillis, segmentMillis) * segmentMillis;
+        }
+
+        @Override
+        public ObservationStream.Chunk nextChunk() throws ServiceFailureException {
+            while (true) {
+                if (!ready.isEmpty()) {
+                    return ready.poll();
+                }
+                if (direct != null) {
+                    ObservationStream.Chunk chunk = direct.nextChunk();
+                    if (chunk != null) {
+                        return chunk;
+                    }
+                    direct.close();
+                    direct = null;
+                }
+                if (loading != null) {
+                    continueLoading();
+                    continue;
+                }
+                if (segmentStart >= toMillis || Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                long start = segmentStart;
+                long end = start + segmentMillis;
+                long rangeStart = Math.max(start, fromMillis);
+                long now = System.currentTimeMillis();
+                if (end + settleMillis > now) {
+                    // This and all later segments are not settled.
+                    direct = new ObservationStream(source, rangeFilter(rangeStart, toMillis), false, ObservationStream.DEFAULT_PAGE_SIZE);
+                    segmentStart = toMillis;
+                    continue;
+                }
+                ObservationStream.Chunk chunk = read(segmentFile(source, start));
+                if (chunk != null) {
+                    segmentsHit.incrementAndGet();
+                    segmentStart = end;
+                    chunk = chunk.slice(rangeStart, Math.min(end, toMillis));
+                    if (chunk.size() > 0) {
+                        return chunk;
+                    }
+                    continue;
+                }
+                long runEnd = end;
+                while (runEnd < toMillis
+                        && runEnd + segmentMillis + settleMillis <= now
+                        && !Files.isRegularFile(segmentFile(source, runEnd))) {
+                    runEnd += segmentMillis;
+                }
+                loading = new ObservationStream(source, rangeFilter(start, runEnd), false, ObservationStream.DEFAULT_PAGE_SIZE);
+                loadingSegment = start;
+                loadingEnd = runEnd;
+                segmentStart = runEnd;
+            }
+        }
+
+        /**
+         * Reads the next chunk of the run of missing segments, and splits it
+         * over the segments. Segments are stored as soon as a later row shows
+         * they are complete, or when the run ends. Segments without any rows
+         * are stored too, so they are not loaded again.
+         */
+        private void continueLoading() throws ServiceFailureException {
+            ObservationStream.Chunk chunk = loading.nextChunk();
+            if (chunk == null) {
+                loading.close();
+                loading = null;
+                if (Thread.currentThread().isInterrupted()) {
+                    // The last segment is incomplete.
+                    loadingChunks.clear();
+                    return;
+                }
+                while (loadingSegment < loadingEnd) {
+                    finishSegment();
+                }
+                return;
+            }
+            while (loadingSegment < loadingEnd) {
+                long end = loadingSegment + segmentMillis;
+                ObservationStream.Chunk part = chunk.slice(loadingSegment, end);
+                if (part.size() > 0) {
+                    loadingChunks.add(part);
+                }
+                if (chunk.size() == 0 || chunk.getStart(chunk.size() - 1) < end) {
+                    return;
+                }
+                finishSegment();
+            }
+        }
+
+        private void finishSegment() {
+            long start = loadingSegment;
+            long end = start + segmentMillis;
+            ObservationStream.Chunk segment = ObservationStream.Chunk.concat(loadingChunks, false);
+            loadingChunks.clear();
+            loadingSegment = end;
+            write(segmentFile(source, start), start, end, segment);
+            segmentsLoaded.incrementAndGet();
+            segment = segment.slice(Math.max(start, fromMillis), Math.min(end, toMillis));
+            if (segment.size() > 0) {
+                ready.add(segment);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (direct != null) {
+                direct.close();
+                direct = null;
+            }
+            if (loading != null) {
+                loading.close();
+                loading = null;
+            }
+        }
+    }
+
+    private static String rangeFilter(long fromMillis, long toMillis) {
+        return "phenomenonTime ge " + Instant.ofEpochMilli(fromMillis) + " and phenomenonTime lt " + Instant.ofEpochMilli(toMillis);
+    }
+
+    private Path segmentFile(Entity source, long start) {
+        String key = formatKeyValuesForUrl(source).replaceAll("[^a-zA-Z0-9.-]+", "_");
+        return directory.resolve(source.getType().getEntityName()).resolve(key).resolve(start + ".seg");
+    }
+
+    private ObservationStream.Chunk read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            bytesMapped.addAndGet(channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LOGGER.warn("Ignoring cache segment {} with unknown format.", file);
+                return null;
+            }
+            int size = buffer.getInt(24);
+            int width = buffer.getInt(28);
+            int flags = buffer.getInt(32);
+            return GorillaCodec.decode(buffer, HEADER_SIZE, size, width, (flags & FLAG_RESULT_COUNTS) != 0);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Failed to read cache segment {}: {}", file, ex.getMessage());
+            return null;
+        }
+    }
+
+    private void write(Path file, long start, long end, ObservationStream.Chunk chunk) {
+        GorillaCodec.BitWriter bits = GorillaCodec.encode(chunk);
+        int wordCount = bits.getWordCount();
+        long[] words = bits.getWords();
+        try {
+            Files.createDirectories(file.getParent());
+            // Streams loading the same segment at the same time each write their own file.
+            Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            String mismatch;
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 8L * wordCount);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putLong(8, start);
+                buffer.putLong(16, end);
+                buffer.putInt(24, chunk.size());
+                buffer.putInt(28, chunk.width());
+                buffer.putInt(32, chunk.hasResultCounts() ? FLAG_RESULT_COUNTS : 0);
+                buffer.putInt(36, wordCount);
+                for (int i = 0; i < wordCount; i++) {
+                    buffer.putLong(HEADER_SIZE + 8 * i, words[i]);
+                }
+                buffer.force();
+                mismatch = GorillaCodec.findMismatch(chunk, GorillaCodec.decode(buffer, HEADER_SIZE, chunk.size(), chunk.width(), chunk.hasResultCounts()));
+            }
+            if (mismatch != null) {
+                LOGGER.error("Not storing cache segment {}, it does not decode to the loaded Observations: {}", file, mismatch);
+                Files.delete(tempFile);
+                return;
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to write cache segment {}: {}", file, ex.getMessage());
+        }
+    }
+
+    /**
+     * Removes all cached segments of the given source.
+     *
+     * @param source The Datastream or MultiDatastream to remove.
+     */
+    public void invalidate(Entity source) {
+        deleteRecursively(segmentFile(source, 0).getParent());
+    }
+
+    /**
+     * Removes all cached segments.
+     */
+    public void clear() {
+        deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to delete {}: {}", path, ex.getMessage());
+        }
+    }
+
+    /**
+     * @return The number of segments read from the cache.
+     */
+    public long getSegmentsHit() {
+        return segmentsHit.get();
+    }
+
+    /**
+     * @return The number of segments loaded from the server and stored.
+     */
+    public long getSegmentsLoaded() {
+        return segmentsLoaded.get();
+    }
+
+    /**
+     * @return The total size of the segment files read from the cache.
+     */
+    public long getBytesMapped() {
+        return bytesMapped.get();
+    }
+
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_PARAMETERS;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_PHENOMENONTIME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_RESULT;
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.TimeValue;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Streams the Observations of a Datastream or MultiDatastream in a period, in
+ * order of phenomenonTime, as column chunks of primitive values. Only the
+ * phenomenonTime, the result and optionally the resultCount parameter are
+ * decoded, the entities of a page are dropped as soon as the page is decoded.
+ *
+ * Pages are fetched with keyset pagination: each page continues at the
+ * phenomenonTime of the last row of the previous page, so the server does not
+ * have to skip over all earlier rows. Rows that share that phenomenonTime and
+ * were already returned are skipped. Only when a full page has the same
+ * phenomenonTime is the nextLink of the page followed instead. The next page
+ * is fetched in the background while the current chunk is consumed.
+ *
+ * Instances are not thread safe, and must be closed when not read to the end.
+ *
+ * @author scf
+ */
+public class ObservationStream implements ChunkSource {
+
+    /**
+     * The default number of Observations per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * One page of Observations, as columns.
+     */
+    public static final class Chunk {
+
+        private final int size;
+        private final int width;
+        private final long[] phenTimeStart;
+        private final long[] phenTimeEnd;
+        private final double[] values;
+        private final double[] resultCounts;
+
+        Chunk(int size, int width, long[] phenTimeStart, long[] phenTimeEnd, double[] values, double[] resultCounts) {
+            this.size = size;
+            this.width = width;
+            this.phenTimeStart = phenTimeStart;
+            this.phenTimeEnd = phenTimeEnd;
+            this.values = values;
+            this.resultCounts = resultCounts;
+        }
+
+        /**
+         * @return The number of rows in this chunk.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The number of values per row. Rows with a single result
+         * have a width of 1, rows with a list result have the length of the
+         * longest list in the chunk.
+         */
+        public int width() {
+            return width;
+        }
+
+        /**
+         * @param row The row.
+         * @return The start of the phenomenonTime, in epoch milliseconds.
+         */
+        public long getStart(int row) {
+            return phenTimeStart[row];
+        }
+
+        /**
+         * @param row The row.
+         * @return The end of the phenomenonTime, in epoch milliseconds. Equal
+         * to the start for instants.
+         */
+        public long getEnd(int row) {
+            return phenTimeEnd[row];
+        }
+
+        /**
+         * @param row The row.
+         * @param column The index in a list result.
+         * @return The value, or NaN if the value is missing or not a number.
+         */
+        public double getValue(int row, int column) {
+            return values[row * width + column];
+        }
+
+        /**
+         * @param row The row.
+         * @return The resultCount parameter of the row, or 1 if it is missing
+         * or the parameters were not requested.
+         */
+        public long getResultCount(int row) {
+            if (resultCounts == null || Double.isNaN(resultCounts[row])) {
+                return 1;
+            }
+            return (long) resultCounts[row];
+        }
+
+        boolean hasResultCounts() {
+            return resultCounts != null;
+        }
+
+        double getRawResultCount(int row) {
+            return resultCounts == null ? Double.NaN : resultCounts[row];
+        }
+
+        /**
+         * Returns the rows with a phenomenonTime start in the given range. The
+         * rows must be ordered by their start.
+         *
+         * @param fromMillis The start of the range, inclusive.
+         * @param toMillis The end of the range, exclusive.
+         * @return The rows in the range, this chunk if all rows are in the
+         * range.
+         */
+        public Chunk slice(long fromMillis, long toMillis) {
+            int from = lowerBound(fromMillis);
+            int to = lowerBound(toMillis);
+            if (from == 0 && to == size) {
+                return this;
+            }
+            return new Chunk(
+                    to - from,
+                    width,
+                    Arrays.copyOfRange(phenTimeStart, from, to),
+                    Arrays.copyOfRange(phenTimeEnd, from, to),
+                    Arrays.copyOfRange(values, from * width, to * width),
+                    resultCounts == null ? null : Arrays.copyOfRange(resultCounts, from, to));
+        }
+
+        private int lowerBound(long millis) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (phenTimeStart[mid] < millis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Joins chunks into one.
+         *
+         * @param chunks The chunks to join, in order.
+         * @param withResultCounts If the joined chunk has result counts.
+         * @return The joined chunk.
+         */
+        static Chunk concat(List<Chunk> chunks, boolean withResultCounts) {
+            int size = 0;
+            int width = 1;
+            for (Chunk chunk : chunks) {
+                size += chunk.size;
+                width = Math.max(width, chunk.width);
+            }
+            long[] starts = new long[size];
+            long[] ends = new long[size];
+            double[] values = new double[size * width];
+            Arrays.fill(values, Double.NaN);
+            double[] counts = withResultCounts ? new double[size] : null;
+            int row = 0;
+            for (Chunk chunk : chunks) {
+                System.arraycopy(chunk.phenTimeStart, 0, starts, row, chunk.size);
+                System.arraycopy(chunk.phenTimeEnd, 0, ends, row, chunk.size);
+                for (int i = 0; i < chunk.size; i++) {
+                    System.arraycopy(chunk.values, i * chunk.width, values, (row + i) * width, chunk.width);
+                    if (counts != null) {
+                        counts[row + i] = chunk.getRawResultCount(i);
+                    }
+                }
+                row += chunk.size;
+            }
+            return new Chunk(size, width, starts, ends, values, counts);
+        }
+    }
+
+    private record Page(Chunk chunk, EntitySet entitySet, boolean full) {
+
+    }
+
+    private final Entity source;
+    private final NavigationPropertyEntitySet npObs;
+    private final String period;
+    private final boolean withParameters;
+    private final int pageSize;
+
+    private long lastStart = Long.MIN_VALUE;
+    private final Set<String> seenAtLastStart = new HashSet<>();
+    private FutureTask<Page> pending;
+    private long rowsRead;
+    private long pagesRead;
+
+    /**
+     * Creates a stream over the Observations of the source, that overlap the
+     * given period.
+     *
+     * @param source The Datastream or MultiDatastream to read from.
+     * @param start The start of the period.
+     * @param end The end of the period.
+     * @param withParameters If true, the resultCount parameter is decoded.
+     * @param pageSize The number of Observations to request per page.
+     */
+    public ObservationStream(Entity source, Instant start, Instant end, boolean withParameters, int pageSize) {
+        this(source, "overlaps(phenomenonTime," + start + "/" + end + ")", withParameters, pageSize);
+    }
+
+    /**
+     * Creates a stream over the Observations of the source that match the
+     * given filter.
+     *
+     * @param source The Datastream or MultiDatastream to read from.
+     * @param period The filter selecting the period.
+     * @param withParameters If true, the resultCount parameter is decoded.
+     * @param pageSize The number of Observations to request per page.
+     */
+    public ObservationStream(Entity source, String period, boolean withParameters, int pageSize) {
+        this.source = source;
+        this.npObs = source.getType().getNavigationPropertySet("Observations");
+        this.period = period;
+        this.withParameters = withParameters;
+        this.pageSize = pageSize;
+        prefetch(null);
+    }
+
+    /**
+     * Returns the next chunk, waiting for it to be loaded if needed, and
+     * starts loading the chunk after it.
+     *
+     * @return The next chunk, or null if there are no more Observations, or
+     * the thread was interrupted.
+     * @throws ServiceFailureException If the communication with the server
+     * fails.
+     */
+    @Override
+    public Chunk nextChunk() throws ServiceFailureException {
+        while (pending != null) {
+            Page page;
+            try {
+                page = pending.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                close();
+                return null;
+            } catch (ExecutionException ex) {
+                pending = null;
+                if (ex.getCause() instanceof ServiceFailureException sfe) {
+                    throw sfe;
+                }
+                if (ex.getCause() instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw new IllegalStateException(ex.getCause());
+            }
+            pending = null;
+            if (page.full()) {
+                prefetch(page);
+            }
+            if (page.chunk().size() > 0) {
+                return page.chunk();
+            }
+        }
+        return null;
+    }
+
+    private void prefetch(Page previous) {
+        pending = new FutureTask<>(() -> fetch(previous));
+        Thread.ofVirtual().name("ObservationStream").start(pending);
+    }
+
+    private Page fetch(Page previous) throws ServiceFailureException {
+        EntitySet entitySet;
+        if (previous == null) {
+            entitySet = query(period);
+        } else if (previous.chunk().size() == 0) {
+            // A full page with a single phenomenonTime, keyset can not advance.
+            entitySet = previous.entitySet();
+            entitySet.fetchNext();
+        } else {
+            entitySet = query("(" + period + ") and phenomenonTime ge " + Instant.ofEpochMilli(lastStart));
+        }
+        List<Entity> rows = entitySet.toList();
+        Chunk chunk = decode(rows);
+        pagesRead++;
+        rowsRead += chunk.size();
+        return new Page(chunk, entitySet, entitySet.hasNextLink());
+    }
+
+    private EntitySet query(String filter) throws ServiceFailureException {
+        var query = source.query(npObs)
+                .filter(filter)
+                .orderBy("phenomenonTime asc,id asc")
+                .top(pageSize);
+        if (withParameters) {
+            query.select("id", "phenomenonTime", "result", "parameters");
+        } else {
+            query.select("id", "phenomenonTime", "result");
+        }
+        return query.list();
+    }
+
+    private Chunk decode(List<Entity> rows) {
+        int count = rows.size();
+        int width = 1;
+        for (Entity obs : rows) {
+            if (obs.getProperty(EP_RESULT) instanceof List<?> list) {
+                width = Math.max(width, list.size());
+            }
+        }
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        double[] values = new double[count * width];
+        Arrays.fill(values, Double.NaN);
+        double[] resultCounts = withParameters ? new double[count] : null;
+        int size = 0;
+        for (Entity obs : rows) {
+            TimeValue phenTime = obs.getProperty(EP_PHENOMENONTIME);
+            long start = Utils.toEpochMillis(Utils.getPhenTimeStart(phenTime));
+            String key = formatKeyValuesForUrl(obs);
+            if (start == lastStart) {
+                if (!seenAtLastStart.add(key)) {
+                    continue;
+                }
+            } else {
+                lastStart = start;
+                seenAtLastStart.clear();
+                seenAtLastStart.add(key);
+            }
+            starts[size] = start;
+            ends[size] = Utils.toEpochMillis(Utils.getPhenTimeEnd(phenTime));
+            Object result = obs.getProperty(EP_RESULT);
+            if (result instanceof List<?> list) {
+                for (int i = 0; i < list.size(); i++) {
+                    values[size * width + i] = toDouble(list.get(i));
+                }
+            } else {
+                values[size * width] = toDouble(result);
+            }
+            if (resultCounts != null) {
+                MapValue parameters = obs.getProperty(EP_PARAMETERS);
+                resultCounts[size] = parameters == null ? Double.NaN : toDouble(parameters.get(AggregationCalculator.KEY_RESULT_COUNT));
+            }
+            size++;
+        }
+        return new Chunk(size, width, starts, ends, values, resultCounts);
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * @return The number of Observations returned so far.
+     */
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @return The number of pages loaded so far.
+     */
+    public long getPagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * Stops loading the next page.
+     */
+    @Override
+    public void close() {
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
+}
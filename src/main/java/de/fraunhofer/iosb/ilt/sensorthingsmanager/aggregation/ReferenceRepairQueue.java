@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypeComplex;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.BoundedVirtualExecutor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the fixes to the names and aggregate properties of
+ * MultiDatastreams that are found while scanning, so the scan itself does not
+ * write, and the entities in memory are left as they are on the server. All
+ * fixes for one MultiDatastream are merged into one update. The queue can be
+ * listed as a report, or applied in parallel.
+ *
+ * This class is thread safe.
+ *
+ * @author scf
+ */
+public class ReferenceRepairQueue {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReferenceRepairQueue.class);
+
+    /**
+     * The fixes for one MultiDatastream, with the values they replace. The
+     * entity in memory is only changed after the update on the server
+     * succeeded.
+     */
+    public static class Repair {
+
+        private Entity target;
+        private final String oldName;
+        private final Map<String, Object> properties = new LinkedHashMap<>();
+        private final Map<String, Object> oldProperties = new LinkedHashMap<>();
+        private String name;
+
+        private Repair(Entity target) {
+            this.target = target;
+            this.oldName = target.getProperty(EP_NAME);
+        }
+
+        public synchronized Entity getTarget() {
+            return target;
+        }
+
+        /**
+         * @return The properties to set, a null value removes the property.
+         */
+        public synchronized Map<String, Object> getProperties() {
+            return new LinkedHashMap<>(properties);
+        }
+
+        /**
+         * @return The values of the properties to set, before the repair.
+         */
+        public synchronized Map<String, Object> getOldProperties() {
+            return new LinkedHashMap<>(oldProperties);
+        }
+
+        /**
+         * @return The new name, or null if the name is not changed.
+         */
+        public synchronized String getName() {
+            return name;
+        }
+
+        /**
+         * @return The name before the repair.
+         */
+        public String getOldName() {
+            return oldName;
+        }
+
+        private synchronized void setProperty(String property, Object value) {
+            if (!oldProperties.containsKey(property)) {
+                MapValue targetProps = target.getProperty(EP_PROPERTIES);
+                oldProperties.put(property, targetProps == null ? null : targetProps.get(property));
+            }
+            properties.put(property, value);
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder("MultiDatastreams(").append(formatKeyValuesForUrl(target)).append(')');
+            if (oldName != null) {
+                sb.append(" '").append(oldName).append('\'');
+            }
+            sb.append(':');
+            if (name != null) {
+                sb.append(" name '").append(oldName).append("' -> '").append(name).append('\'');
+            }
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                sb.append(' ').append(entry.getKey()).append(' ').append(oldProperties.get(entry.getKey())).append(" -> ").append(entry.getValue());
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Updates the entity on the server, and after that the entity in
+         * memory. The properties are loaded from the server first, since the
+         * entity in memory may not have all of them, and the update replaces
+         * all properties.
+         */
+        private synchronized void apply(SensorThingsService service) throws ServiceFailureException {
+            Entity copy = target.withOnlyPk();
+            if (!properties.isEmpty()) {
+                Entity current = service.query(target.getType())
+                        .filter("id eq " + formatKeyValuesForUrl(target))
+                        .select("id", "properties")
+                        .first();
+                if (current == null) {
+                    throw new IllegalStateException("MultiDatastreams(" + formatKeyValuesForUrl(target) + ") no longer exists.");
+                }
+                MapValue currentProps = current.getProperty(EP_PROPERTIES);
+                if (currentProps == null) {
+                    currentProps = new MapValue(TypeComplex.STA_MAP);
+                }
+                for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                    currentProps.put(entry.getKey(), entry.getValue());
+                }
+                copy.setProperty(EP_PROPERTIES, currentProps);
+            }
+            if (name != null) {
+                copy.setProperty(EP_NAME, name);
+            }
+            service.update(copy);
+
+            if (!properties.isEmpty()) {
+                MapValue targetProps = target.getProperty(EP_PROPERTIES);
+                if (targetProps == null) {
+                    targetProps = new MapValue(TypeComplex.STA_MAP);
+                    target.setProperty(EP_PROPERTIES, targetProps);
+                }
+                for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                    targetProps.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (name != null) {
+                target.setProperty(EP_NAME, name);
+            }
+        }
+    }
+
+    private final Map<String, Repair> repairs = new ConcurrentHashMap<>();
+
+    private Repair repairFor(Entity target) {
+        return repairs.computeIfAbsent(formatKeyValuesForUrl(target), k -> new Repair(target));
+    }
+
+    /**
+     * Queues setting a property of the given MultiDatastream.
+     *
+     * @param target The MultiDatastream to fix.
+     * @param property The name of the property.
+     * @param value The new value, null to remove the property.
+     */
+    public void addProperty(Entity target, String property, Object value) {
+        repairFor(target).setProperty(property, value);
+    }
+
+    /**
+     * Queues renaming the given MultiDatastream.
+     *
+     * @param target The MultiDatastream to rename.
+     * @param name The new name.
+     */
+    public void addName(Entity target, String name) {
+        Repair repair = repairFor(target);
+        synchronized (repair) {
+            repair.name = name;
+        }
+    }
+
+    /**
+     * Replaces the entity in memory that a queued repair changes after it is
+     * applied, for instance with the stub that replaced the full entity.
+     *
+     * @param entity The new entity in memory, for the MultiDatastream with
+     * the same id.
+     */
+    public void replaceTarget(Entity entity) {
+        Repair repair = repairs.get(formatKeyValuesForUrl(entity));
+        if (repair != null) {
+            synchronized (repair) {
+                repair.target = entity;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return repairs.isEmpty();
+    }
+
+    public int size() {
+        return repairs.size();
+    }
+
+    /**
+     * Removes all queued repairs, without applying them.
+     */
+    public void clear() {
+        repairs.clear();
+    }
+
+    /**
+     * @return The queued repairs.
+     */
+    public List<Repair> getRepairs() {
+        return new ArrayList<>(repairs.values());
+    }
+
+    /**
+     * @return A human readable list of all queued repairs, one per line.
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Repair repair : repairs.values()) {
+            report.append(repair).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * Applies all queued repairs, with at most the given number of updates
+     * running at the same time. Repairs that are applied are removed from the
+     * queue, repairs that fail stay in the queue.
+     *
+     * @param service The service to update the entities in.
+     * @param maxParallel The maximum number of parallel updates.
+     * @return The number of repairs that failed.
+     */
+    public int apply(SensorThingsService service, int maxParallel) {
+        if (repairs.isEmpty()) {
+            return 0;
+        }
+        LOGGER.info("Applying {} reference repairs.", repairs.size());
+        int failed = 0;
+        ExecutorService executor = new BoundedVirtualExecutor("Repair", maxParallel);
+        try {
+            Map<String, Future<?>> tasks = new LinkedHashMap<>();
+            for (Map.Entry<String, Repair> entry : repairs.entrySet()) {
+                Repair repair = entry.getValue();
+                tasks.put(entry.getKey(), executor.submit(() -> {
+                    repair.apply(service);
+                    return null;
+                }));
+            }
+            for (Map.Entry<String, Future<?>> entry : tasks.entrySet()) {
+                try {
+                    entry.getValue().get();
+                    repairs.remove(entry.getKey());
+                } catch (ExecutionException ex) {
+                    failed++;
+                    LOGGER.error("Failed to repair {}: {}", repairs.get(entry.getKey()), ex.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while applying repairs.");
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Applied reference repairs, {} failed, {} left.", failed, repairs.size());
+        return failed;
+    }
+
+}
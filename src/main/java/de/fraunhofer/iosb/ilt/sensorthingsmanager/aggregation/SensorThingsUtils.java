@@ -25,7 +25,6 @@ import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROP
 import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
 import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
-import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
 import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
@@ -33,9 +32,10 @@ import de.fraunhofer.iosb.ilt.frostclient.models.ext.UnitOfMeasurement;
 import de.fraunhofer.iosb.ilt.frostclient.query.Query;
 import de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,32 +50,79 @@ public class SensorThingsUtils {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(SensorThingsUtils.class);
 
-    public final Map<Entity, List<Entity>> aggregateProperties = new HashMap<>();
+    /**
+     * The Min, Max and Dev ObservedProperties, by the id of the
+     * ObservedProperty they belong to.
+     */
+    private final Map<String, List<Entity>> aggregateProperties = new ConcurrentHashMap<>();
+
+    private volatile NameIndex opIndex;
+    private volatile NameIndex mdsIndex;
 
     public SensorThingsUtils() {
     }
 
+    /**
+     * Loads the names of all ObservedProperties, and optionally all
+     * MultiDatastreams, so that {@link #findOrCreateOp} and
+     * {@link #findOrCreateMultiDatastream} can find existing entities without
+     * a request each. Replaces previously loaded indexes.
+     *
+     * @param service The service to load the names from.
+     * @param multiDatastreams If true, also the MultiDatastream names are
+     * loaded.
+     * @throws ServiceFailureException If loading fails.
+     */
+    public void loadNameIndexes(SensorThingsService service, boolean multiDatastreams) throws ServiceFailureException {
+        SensorThingsV11Sensing sMdl = service.getModel(SensorThingsV11Sensing.class);
+        opIndex = NameIndex.load(service, sMdl.etObservedProperty, "id", "name", "definition", "description");
+        if (multiDatastreams) {
+            SensorThingsV11MultiDatastream mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
+            mdsIndex = NameIndex.load(service, mMdl.etMultiDatastream, "id", "name");
+        } else {
+            mdsIndex = null;
+        }
+    }
+
+    /**
+     * Get the index if it was loaded for the given service.
+     */
+    private static NameIndex indexFor(NameIndex index, SensorThingsService service) {
+        if (index != null && index.getService() == service) {
+            return index;
+        }
+        return null;
+    }
+
     public Entity findOrCreateOp(SensorThingsService service, String name, String def, String description, MapValue properties, String filter, boolean aggregates) throws ServiceFailureException {
         SensorThingsV11Sensing sMdl = service.getModel(SensorThingsV11Sensing.class);
-        SensorThingsV11MultiDatastream mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
-        Query query = service.query(sMdl.etObservedProperty);
-        if (StringHelper.isNullOrEmpty(filter)) {
-            query.filter("name eq " + StringHelper.quoteForUrl(name) + "");
+        NameIndex index = indexFor(opIndex, service);
+        List<Entity> opList;
+        if (index != null && StringHelper.isNullOrEmpty(filter)) {
+            opList = index.get(name);
         } else {
-            query.filter(filter);
+            Query query = service.query(sMdl.etObservedProperty);
+            if (StringHelper.isNullOrEmpty(filter)) {
+                query.filter("name eq " + StringHelper.quoteForUrl(name) + "");
+            } else {
+                query.filter(filter);
+            }
+            opList = query.list().toList();
         }
-        EntitySet opList = query.list();
         if (opList.size() > 1) {
             throw new IllegalStateException("More than one observedProperty with name " + name);
         }
         Entity op;
         if (opList.size() == 1) {
-            op = opList.iterator().next();
+            op = opList.get(0);
         } else {
             LOGGER.info("Creating ObservedProperty {}.", name);
             op = sMdl.newObservedProperty(name, def, description)
                     .setProperty(EP_PROPERTIES, properties);
             service.create(op);
+            if (index != null) {
+                index.add(op);
+            }
         }
         if (aggregates) {
             findOrCreateAggregateOps(service, op);
@@ -83,13 +130,25 @@ public class SensorThingsUtils {
         return op;
     }
 
+    /**
+     * Get the Min, Max and Dev ObservedProperties of the given
+     * ObservedProperty, as found or created by
+     * {@link #findOrCreateAggregateOps(SensorThingsService, Entity)}.
+     *
+     * @param op The ObservedProperty.
+     * @return The aggregate ObservedProperties, empty if not known yet.
+     */
+    public List<Entity> getAggregateOps(Entity op) {
+        return aggregateProperties.getOrDefault(StringHelper.formatKeyValuesForUrl(op), Collections.emptyList());
+    }
+
     public void findOrCreateAggregateOps(SensorThingsService service, Entity op) throws ServiceFailureException {
-        List<Entity> agList = aggregateProperties.get(op);
+        String key = StringHelper.formatKeyValuesForUrl(op);
+        List<Entity> agList = aggregateProperties.get(key);
         if (agList != null && agList.size() == 3) {
             return;
         }
         agList = new ArrayList<>();
-        aggregateProperties.put(op, agList);
 
         String opName = op.getProperty(EP_NAME);
         String opDef = op.getProperty(EP_DEFINITION);
@@ -113,20 +172,28 @@ public class SensorThingsUtils {
             Entity agOp = findOrCreateOp(service, agOpName, def, agOpDesc, null, "", false);
             agList.add(agOp);
         }
+        aggregateProperties.put(key, agList);
     }
 
     public Entity findOrCreateMultiDatastream(SensorThingsService service, String name, String desc, List<UnitOfMeasurement> uoms, Entity thing, List<Entity> ops, Entity sensor, MapValue props) throws ServiceFailureException {
         SensorThingsV11MultiDatastream mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
 
-        EntitySet mdsList = service.query(mMdl.etMultiDatastream)
-                .filter("name eq " + StringHelper.quoteForUrl(name) + "")
-                .list();
+        NameIndex index = indexFor(mdsIndex, service);
+        List<Entity> mdsList;
+        if (index != null) {
+            mdsList = index.get(name);
+        } else {
+            mdsList = service.query(mMdl.etMultiDatastream)
+                    .filter("name eq " + StringHelper.quoteForUrl(name) + "")
+                    .list()
+                    .toList();
+        }
         if (mdsList.size() > 1) {
             throw new IllegalStateException("More than one multidatastream with name " + name);
         }
         Entity mds;
         if (mdsList.size() == 1) {
-            mds = mdsList.iterator().next();
+            mds = mdsList.get(0);
         } else {
             LOGGER.info("Creating multiDatastream {}.", name);
             mds = mMdl.newMultiDatastream(name, desc, uoms)
@@ -135,6 +202,9 @@ public class SensorThingsUtils {
                     .setProperty(mMdl.npMultidatastreamSensor, sensor)
                     .addNavigationEntity(mMdl.npMultidatastreamObservedproperties, ops);
             service.create(mds);
+            if (index != null) {
+                index.add(mds);
+            }
         }
         return mds;
     }
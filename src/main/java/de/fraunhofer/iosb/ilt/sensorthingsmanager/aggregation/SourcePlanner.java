@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.BoundedVirtualExecutor;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plans which source each aggregate combo is calculated from. The candidates
+ * for a combo are the raw base Datastream and all finer combos of the same
+ * base whose level divides the level of the combo. The candidate that needs
+ * the fewest rows to be read per interval is chosen.
+ *
+ * The divisibility lattice of the levels is shared by all bases, and only
+ * calculated once for each level. Observation rates are kept by base name, so
+ * they survive a reload of the bases. When the observation rate of a base is
+ * not known, the source that is configured on the server is kept. Only
+ * combos without a configured source get the finest aggregate, since reading
+ * the raw data is assumed to be more expensive.
+ *
+ * This class is thread safe.
+ *
+ * @author scf
+ */
+public class SourcePlanner {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourcePlanner.class);
+
+    /**
+     * The default period to count Observations in, when estimating the
+     * observation rate of a base.
+     */
+    public static final Duration DEFAULT_RATE_WINDOW = Duration.ofDays(7);
+
+    /**
+     * Matches the end of an aggregateFor reference: /Datastreams(id) or
+     * /MultiDatastreams(id).
+     */
+    private static final Pattern AGGREGATE_FOR_PATTERN = Pattern.compile("/(Multi)?Datastreams\\((.+)\\)$");
+
+    /**
+     * One planned source.
+     */
+    public static class PlanEntry {
+
+        private final AggregationBase base;
+        private final AggregateCombo target;
+        private final AggregateCombo currentSource;
+        private final boolean currentRaw;
+        private final AggregateCombo plannedSource;
+        private final double currentCost;
+        private final double plannedCost;
+
+        PlanEntry(AggregationBase base, AggregateCombo target, AggregateCombo currentSource, boolean currentRaw, AggregateCombo plannedSource, double currentCost, double plannedCost) {
+            this.base = base;
+            this.target = target;
+            this.currentSource = currentSource;
+            this.currentRaw = currentRaw;
+            this.plannedSource = plannedSource;
+            this.currentCost = currentCost;
+            this.plannedCost = plannedCost;
+        }
+
+        public AggregationBase getBase() {
+            return base;
+        }
+
+        public AggregateCombo getTarget() {
+            return target;
+        }
+
+        /**
+         * @return The finer combo the target is currently calculated from, or
+         * null if it is calculated from raw data, or has no source.
+         */
+        public AggregateCombo getCurrentSource() {
+            return currentSource;
+        }
+
+        /**
+         * @return The finer combo the target should be calculated from, or
+         * null if it should be calculated from the raw data.
+         */
+        public AggregateCombo getPlannedSource() {
+            return plannedSource;
+        }
+
+        /**
+         * @return The estimated rows read per interval for the current
+         * source, infinite if not known.
+         */
+        public double getCurrentCost() {
+            return currentCost;
+        }
+
+        /**
+         * @return The estimated rows read per interval for the planned
+         * source, infinite if not known.
+         */
+        public double getPlannedCost() {
+            return plannedCost;
+        }
+
+        /**
+         * @return true if the planned source differs from the current source.
+         */
+        public boolean isChange() {
+            if (plannedSource == null) {
+                return !currentRaw && base.getBaseDatastream() != null;
+            }
+            return plannedSource != currentSource;
+        }
+
+        public String getCurrentSourceName() {
+            if (currentSource != null) {
+                return currentSource.level.toString();
+            }
+            return currentRaw ? "raw" : "-";
+        }
+
+        public String getPlannedSourceName() {
+            return plannedSource == null ? "raw" : plannedSource.level.toString();
+        }
+    }
+
+    private final Set<AggregationLevel> levels = ConcurrentHashMap.newKeySet();
+    private final Map<AggregationLevel, List<AggregationLevel>> divisors = new ConcurrentHashMap<>();
+    private final Map<String, Double> rawRates = new ConcurrentHashMap<>();
+
+    /**
+     * Get the levels, of all levels seen so far, that divide the given level.
+     * The lists are cached until a new level is seen.
+     */
+    private synchronized List<AggregationLevel> divisorsOf(AggregationLevel level, Collection<AggregationLevel> baseLevels) {
+        if (!levels.containsAll(baseLevels)) {
+            levels.addAll(baseLevels);
+            divisors.clear();
+        }
+        return divisors.computeIfAbsent(level, larger -> {
+            List<AggregationLevel> list = new ArrayList<>();
+            long largerSeconds = larger.duration.getSeconds();
+            for (AggregationLevel smaller : levels) {
+                long smallerSeconds = smaller.duration.getSeconds();
+                if (smallerSeconds > 0 && smallerSeconds < largerSeconds && largerSeconds % smallerSeconds == 0) {
+                    list.add(smaller);
+                }
+            }
+            return list;
+        });
+    }
+
+    /**
+     * Sets the known observation rate of the raw data of a base.
+     *
+     * @param base The base.
+     * @param rowsPerSecond The number of raw Observations per second.
+     */
+    public void setRawRate(AggregationBase base, double rowsPerSecond) {
+        rawRates.put(base.getBaseName(), rowsPerSecond);
+    }
+
+    /**
+     * Forgets the observation rates of bases that no longer exist.
+     *
+     * @param baseNames The names of the bases that exist.
+     */
+    public void retainRates(Collection<String> baseNames) {
+        rawRates.keySet().retainAll(baseNames);
+    }
+
+    /**
+     * Estimates the observation rates of the given bases, by counting the
+     * Observations of their base Datastream in the given period before now.
+     * The counts are requested in parallel, with at most maxParallelRequests
+     * requests at the same time.
+     *
+     * @param bases The bases to estimate the rate for.
+     * @param window The period to count Observations in.
+     * @param maxParallelRequests The maximum number of parallel requests.
+     */
+    public void estimateRawRates(Collection<AggregationBase> bases, Duration window, int maxParallelRequests) {
+        final String filter = "phenomenonTime ge " + Instant.now().minus(window);
+        final ExecutorService executor = new BoundedVirtualExecutor("SourcePlanner", maxParallelRequests);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (AggregationBase base : bases) {
+                Entity baseDs = base.getBaseDatastream();
+                if (baseDs != null) {
+                    tasks.add(executor.submit(() -> estimateRawRate(base, baseDs, filter, window)));
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Interrupted while estimating rates.");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            LOGGER.error("Failed to estimate rates.", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void estimateRawRate(AggregationBase base, Entity baseDs, String filter, Duration window) {
+        try {
+            NavigationPropertyEntitySet npObs = baseDs.getType().getNavigationPropertySet("Observations");
+            long count = baseDs.query(npObs).filter(filter).count(true).top(0).list().getCount();
+            if (count > 0) {
+                setRawRate(base, (double) count / window.getSeconds());
+            }
+        } catch (ServiceFailureException ex) {
+            LOGGER.warn("Failed to count Observations for {}: {}", base.getBaseName(), ex.getMessage());
+        }
+    }
+
+    private double rawCost(AggregationBase base, AggregateCombo target) {
+        Double rate = rawRates.get(base.getBaseName());
+        if (rate == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return rate * target.level.duration.getSeconds();
+    }
+
+    private static String configuredSource(AggregateCombo target) {
+        MapValue properties = target.targetMds.getProperty(EP_PROPERTIES);
+        if (properties == null) {
+            return "";
+        }
+        return Objects.toString(properties.get(Utils.KEY_AGGREGATE_FOR), "");
+    }
+
+    private static AggregateCombo findByTargetId(AggregationBase base, String id) {
+        for (AggregateCombo candidate : base.getCombos()) {
+            if (id.equals(formatKeyValuesForUrl(candidate.targetMds))) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static double aggregateCost(AggregateCombo source, AggregateCombo target) {
+        return (double) target.level.duration.getSeconds() / source.level.duration.getSeconds();
+    }
+
+    /**
+     * Plans the sources for all combos of the given base.
+     *
+     * @param base The base to plan.
+     * @return The plan, one entry for each combo, from fine to coarse.
+     */
+    public List<PlanEntry> plan(AggregationBase base) {
+        Map<AggregationLevel, AggregateCombo> byLevel = base.getCombosByLevel();
+        List<PlanEntry> result = new ArrayList<>(byLevel.size());
+        for (AggregateCombo target : base.getCombos()) {
+            AggregateCombo best = null;
+            double bestCost = rawCost(base, target);
+            for (AggregationLevel divisor : divisorsOf(target.level, byLevel.keySet())) {
+                AggregateCombo candidate = byLevel.get(divisor);
+                if (candidate == null) {
+                    continue;
+                }
+                double cost = aggregateCost(candidate, target);
+                if (cost < bestCost) {
+                    best = candidate;
+                    bestCost = cost;
+                }
+            }
+            AggregateCombo current = null;
+            boolean currentRaw = target.sourceDs != null && !target.sourceIsAggregate;
+            if (target.sourceIsAggregate && target.sourceMds != null) {
+                current = findByTargetId(base, formatKeyValuesForUrl(target.sourceMds));
+            } else if (target.sourceDs == null && target.sourceMds == null) {
+                // Not resolved yet, use the source configured on the server.
+                Matcher matcher = AGGREGATE_FOR_PATTERN.matcher(configuredSource(target));
+                if (matcher.find()) {
+                    if (matcher.group(1) != null) {
+                        current = findByTargetId(base, matcher.group(2));
+                    }
+                    // A source that is not one of the aggregates is the raw data.
+                    currentRaw = current == null;
+                }
+            }
+            double currentCost = Double.POSITIVE_INFINITY;
+            if (current != null) {
+                currentCost = aggregateCost(current, target);
+            } else if (currentRaw) {
+                currentCost = rawCost(base, target);
+            }
+            if (!rawRates.containsKey(base.getBaseName()) && (current != null || currentRaw)) {
+                // Without a rate the costs can not be compared, keep the configured source.
+                best = current;
+                bestCost = currentCost;
+            }
+            result.add(new PlanEntry(base, target, current, currentRaw, best, currentCost, bestCost));
+        }
+        return result;
+    }
+
+    /**
+     * Plans the sources for all combos of the given bases.
+     *
+     * @param bases The bases to plan.
+     * @return The plan.
+     */
+    public List<PlanEntry> plan(Collection<AggregationBase> bases) {
+        List<PlanEntry> result = new ArrayList<>();
+        for (AggregationBase base : bases) {
+            result.addAll(plan(base));
+        }
+        return result;
+    }
+
+}
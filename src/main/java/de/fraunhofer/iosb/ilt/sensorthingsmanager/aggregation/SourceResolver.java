@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+import static de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.Utils.KEY_AGGREGATE_SOURCE_D;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostclient.model.PkValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up the sources of many AggregateCombos at once. Instead of up to four
+ * requests for each combo, the lookups are combined into OR-ed filters, that
+ * are sent in chunks.
+ *
+ * @author scf
+ */
+public class SourceResolver {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SourceResolver.class);
+
+    /**
+     * The default maximum number of terms OR-ed together in one filter.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 50;
+
+    /**
+     * The maximum length of a single filter, to stay below URL length limits.
+     */
+    private static final int MAX_FILTER_LENGTH = 2000;
+
+    private static final Pattern LONG_PATTERN = Pattern.compile("-?[0-9]{1,18}");
+
+    private final SensorThingsService service;
+    private final SensorThingsV11Sensing sMdl;
+    private final SensorThingsV11MultiDatastream mMdl;
+    private final int chunkSize;
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private final Map<String, Entity> datastreamsById = new ConcurrentHashMap<>();
+    private final Map<String, List<Entity>> multiDatastreamsByName = new ConcurrentHashMap<>();
+    private final Map<String, List<Entity>> datastreamsByName = new ConcurrentHashMap<>();
+    private final Map<String, List<Entity>> datastreamsByPrefix = new ConcurrentHashMap<>();
+
+    public SourceResolver(SensorThingsService service) {
+        this(service, DEFAULT_CHUNK_SIZE);
+    }
+
+    public SourceResolver(SensorThingsService service, int chunkSize) {
+        this.service = service;
+        this.chunkSize = chunkSize;
+        sMdl = service.getModel(SensorThingsV11Sensing.class);
+        mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
+    }
+
+    /**
+     * Fetches all possible sources for the given combos. The lookups are done
+     * in the same order as in the single-combo case: first by the
+     * aggregateSource id, then by the name of MultiDatastreams, then by the
+     * name of Datastreams and finally by the start of the name of Datastreams.
+     * Each step only looks up the combos that were not found in the previous
+     * steps.
+     *
+     * @param combos The combos to find the sources for.
+     * @param executor The executor to run the chunks on.
+     */
+    public void resolve(Collection<AggregateCombo> combos, ExecutorService executor) {
+        Set<String> ids = new LinkedHashSet<>();
+        Map<String, Object> idValues = new ConcurrentHashMap<>();
+        for (AggregateCombo combo : combos) {
+            Object id = normalizeId(getSourceDsId(combo));
+            if (id != null) {
+                String key = idKey(id);
+                ids.add(key);
+                idValues.put(key, id);
+            }
+        }
+        List<String> idTerms = new ArrayList<>();
+        for (String key : ids) {
+            idTerms.add("id eq " + quote(idValues.get(key)));
+        }
+        fetchChunked(sMdl.etDatastream, idTerms, (terms, entity) -> {
+            datastreamsById.put(idKey(entity.getPrimaryKeyValues().get(0)), entity);
+        }, executor);
+
+        Set<String> names = new LinkedHashSet<>();
+        for (AggregateCombo combo : combos) {
+            if (getDatastream(getSourceDsId(combo)) == null) {
+                names.add(combo.baseName);
+            }
+        }
+        fetchChunked(mMdl.etMultiDatastream, nameTerms(names, "name eq "), (terms, entity) -> {
+            addTo(multiDatastreamsByName, entity.getProperty(EP_NAME), entity);
+        }, executor);
+
+        names.removeIf(multiDatastreamsByName::containsKey);
+        fetchChunked(sMdl.etDatastream, nameTerms(names, "name eq "), (terms, entity) -> {
+            addTo(datastreamsByName, entity.getProperty(EP_NAME), entity);
+        }, executor);
+
+        names.removeIf(datastreamsByName::containsKey);
+        final List<String> prefixes = new ArrayList<>(names);
+        fetchChunked(sMdl.etDatastream, prefixTerms(prefixes), (terms, entity) -> {
+            String name = entity.getProperty(EP_NAME);
+            for (String prefix : prefixes) {
+                if (name.startsWith(prefix)) {
+                    addTo(datastreamsByPrefix, prefix, entity);
+                }
+            }
+        }, executor);
+        LOGGER.info("Looked up sources for {} combos using {} requests.", combos.size(), requestCount.get());
+    }
+
+    /**
+     * Get the Datastream with the given id, if it was found by
+     * {@link #resolve(Collection, ExecutorService)}.
+     *
+     * @param id The id of the Datastream.
+     * @return The Datastream, or null if it was not found.
+     */
+    public Entity getDatastream(Object id) {
+        if (id == null) {
+            return null;
+        }
+        if (id instanceof PkValue pk) {
+            if (pk.size() != 1) {
+                return null;
+            }
+            id = pk.get(0);
+        }
+        return datastreamsById.get(idKey(normalizeId(id)));
+    }
+
+    public List<Entity> getMultiDatastreamsByName(String name) {
+        return multiDatastreamsByName.getOrDefault(name, Collections.emptyList());
+    }
+
+    public List<Entity> getDatastreamsByName(String name) {
+        return datastreamsByName.getOrDefault(name, Collections.emptyList());
+    }
+
+    public List<Entity> getDatastreamsByPrefix(String prefix) {
+        return datastreamsByPrefix.getOrDefault(prefix, Collections.emptyList());
+    }
+
+    /**
+     * @return The number of requests sent to the server so far.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    private static Object getSourceDsId(AggregateCombo combo) {
+        MapValue properties = combo.targetMds.getProperty(EP_PROPERTIES);
+        if (properties == null) {
+            return null;
+        }
+        return properties.get(KEY_AGGREGATE_SOURCE_D);
+    }
+
+    private static void addTo(Map<String, List<Entity>> map, String key, Entity entity) {
+        map.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).add(entity);
+    }
+
+    private static List<String> nameTerms(Collection<String> names, String operator) {
+        List<String> terms = new ArrayList<>(names.size());
+        for (String name : names) {
+            terms.add(operator + quote(name));
+        }
+        return terms;
+    }
+
+    private static List<String> prefixTerms(Collection<String> prefixes) {
+        List<String> terms = new ArrayList<>(prefixes.size());
+        for (String prefix : prefixes) {
+            terms.add("startswith(name," + quote(prefix) + ")");
+        }
+        return terms;
+    }
+
+    /**
+     * The aggregateSource properties contain ids formatted for use in URLs. This
+     * turns them back into plain values.
+     */
+    static Object normalizeId(Object id) {
+        if (!(id instanceof String)) {
+            return id;
+        }
+        String string = (String) id;
+        if (string.length() >= 2 && string.startsWith("'") && string.endsWith("'")) {
+            return string.substring(1, string.length() - 1).replaceAll("''", "'");
+        }
+        if (LONG_PATTERN.matcher(string).matches()) {
+            return Long.valueOf(string);
+        }
+        return string;
+    }
+
+    /**
+     * Normalises ids, so that ids read from properties match ids of entities,
+     * even when the JSON parser picked a different number type.
+     */
+    static String idKey(Object id) {
+        if (id instanceof BigDecimal bd) {
+            return bd.stripTrailingZeros().toPlainString();
+        }
+        if (id instanceof Double || id instanceof Float) {
+            double value = ((Number) id).doubleValue();
+            if (value == Math.rint(value)) {
+                return Long.toString((long) value);
+            }
+        }
+        return String.valueOf(id);
+    }
+
+    static String quote(Object value) {
+        if (value instanceof Number) {
+            return idKey(value);
+        }
+        return "'" + value.toString().replaceAll("'", "''") + "'";
+    }
+
+    private void fetchChunked(EntityType type, List<String> terms, BiConsumer<List<String>, Entity> handler, ExecutorService executor) {
+        List<Future<?>> tasks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        int length = 0;
+        for (String term : terms) {
+            if (!chunk.isEmpty() && (chunk.size() >= chunkSize || length + term.length() > MAX_FILTER_LENGTH)) {
+                final List<String> toFetch = chunk;
+                tasks.add(executor.submit(() -> fetchChunk(type, toFetch, handler)));
+                chunk = new ArrayList<>();
+                length = 0;
+            }
+            chunk.add(term);
+            length += term.length() + 4;
+        }
+        if (!chunk.isEmpty()) {
+            final List<String> toFetch = chunk;
+            tasks.add(executor.submit(() -> fetchChunk(type, toFetch, handler)));
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                LOGGER.warn("Interrupted while looking up sources.");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                LOGGER.error("Failed to look up sources.", ex.getCause());
+            }
+        }
+    }
+
+    private void fetchChunk(EntityType type, List<String> terms, BiConsumer<List<String>, Entity> handler) {
+        String filter = String.join(" or ", terms);
+        try {
+            EntitySet list = service.query(type)
+                    .filter(filter)
+                    .top(1000)
+                    .orderBy("id asc")
+                    .list();
+            requestCount.incrementAndGet();
+            while (true) {
+                for (Entity entity : list.toList()) {
+                    handler.accept(terms, entity);
+                }
+                if (!list.hasNextLink()) {
+                    break;
+                }
+                list.fetchNext();
+                requestCount.incrementAndGet();
+            }
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to fetch {} using filter {}", type, filter, ex);
+        }
+    }
+}
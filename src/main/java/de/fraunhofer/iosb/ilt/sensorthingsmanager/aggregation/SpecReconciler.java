@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_DEFINITION;
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings the aggregation levels of the discovered bases in line with an
+ * {@link AggregationSpec}. Only the levels that differ from the spec are
+ * created or deleted, using the {@link ApplyEngine}, so running it again
+ * without changes on the server does nothing.
+ *
+ * For rules on the ObservedProperty, the definitions of the ObservedProperties
+ * of all Datastreams are loaded in one paged request and kept, so repeated
+ * runs only request them again when new base Datastreams show up. Bases
+ * without a base Datastream only match on their name, and levels are never
+ * created for them.
+ *
+ * @author scf
+ */
+public class SpecReconciler {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpecReconciler.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 10000;
+
+    private final SensorThingsService service;
+    private final SensorThingsV11Sensing sMdl;
+    private final SensorThingsUtils utils;
+    private AggregationSpec spec;
+    private final Map<String, String> definitions = new ConcurrentHashMap<>();
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile ApplyEngine engine;
+
+    public SpecReconciler(SensorThingsService service, SensorThingsUtils utils, AggregationSpec spec) {
+        this.service = service;
+        this.utils = utils;
+        this.spec = spec;
+        sMdl = service.getModel(SensorThingsV11Sensing.class);
+    }
+
+    /**
+     * Finds the changes needed to make the bases match the spec. Levels that
+     * are wanted but have no base Datastream to aggregate from are skipped.
+     *
+     * @param bases The discovered bases.
+     * @return The creates and deletes, grouped by base.
+     * @throws ServiceFailureException If loading the ObservedProperties fails.
+     */
+    public List<ApplyEngine.Change> plan(Collection<AggregationBase> bases) throws ServiceFailureException {
+        if (spec.needsObservedProperties()) {
+            loadDefinitions(bases);
+        }
+        List<ApplyEngine.Change> changes = new ArrayList<>();
+        for (AggregationBase base : bases) {
+            Entity baseDs = base.getBaseDatastream();
+            String definition = baseDs == null ? null : definitions.get(formatKeyValuesForUrl(baseDs));
+            Set<AggregationLevel> wanted = spec.getWantedLevels(base.getBaseName(), definition);
+            if (wanted == null) {
+                continue;
+            }
+            Map<AggregationLevel, AggregateCombo> present = base.getCombosByLevel();
+            if (baseDs == null) {
+                LOGGER.debug("No base Datastream for {}, not creating levels.", base.getBaseName());
+            } else {
+                for (AggregationLevel level : wanted) {
+                    if (!present.containsKey(level)) {
+                        changes.add(new ApplyEngine.Change(base, level, true));
+                    }
+                }
+            }
+            if (spec.deleteUnlisted) {
+                for (AggregationLevel level : present.keySet()) {
+                    if (!wanted.contains(level)) {
+                        changes.add(new ApplyEngine.Change(base, level, false));
+                    }
+                }
+            }
+        }
+        LOGGER.info("Spec needs {} changes on {} bases.", changes.size(), bases.size());
+        return changes;
+    }
+
+    /**
+     * Plans and applies the changes. Blocks until done.
+     *
+     * @param bases The discovered bases.
+     * @return The changes that failed.
+     * @throws ServiceFailureException If loading the ObservedProperties fails.
+     */
+    public List<ApplyEngine.Failure> reconcile(Collection<AggregationBase> bases) throws ServiceFailureException {
+        return apply(plan(bases));
+    }
+
+    /**
+     * Applies previously planned changes. Blocks until done.
+     *
+     * @param changes The changes to apply.
+     * @return The changes that failed.
+     */
+    public List<ApplyEngine.Failure> apply(List<ApplyEngine.Change> changes) {
+        if (changes.isEmpty()) {
+            return List.of();
+        }
+        engine = new ApplyEngine(service, utils);
+        return engine.run(changes);
+    }
+
+    private void loadDefinitions(Collection<AggregationBase> bases) throws ServiceFailureException {
+        boolean missing = false;
+        for (AggregationBase base : bases) {
+            Entity baseDs = base.getBaseDatastream();
+            if (baseDs != null && !definitions.containsKey(formatKeyValuesForUrl(baseDs))) {
+                missing = true;
+                break;
+            }
+        }
+        if (!missing) {
+            return;
+        }
+        final long start = System.currentTimeMillis();
+        EntitySet page = service.query(sMdl.etDatastream)
+                .select("id")
+                .expand("ObservedProperty($select=definition)")
+                .orderBy("id asc")
+                .top(pageSize)
+                .list();
+        while (true) {
+            for (Entity ds : page.toList()) {
+                Entity op = ds.getProperty(sMdl.npDatastreamObservedproperty);
+                String definition = op == null ? null : op.getProperty(EP_DEFINITION);
+                // Also remember Datastreams without a definition, so they do not trigger a reload.
+                definitions.put(formatKeyValuesForUrl(ds), definition == null ? "" : definition);
+            }
+            if (!page.hasNextLink()) {
+                break;
+            }
+            page.fetchNext();
+        }
+        LOGGER.info("Loaded {} ObservedProperty definitions in {} ms.", definitions.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Stops the running apply.
+     */
+    public void cancel() {
+        ApplyEngine exec = engine;
+        if (exec != null) {
+            exec.cancel();
+        }
+    }
+
+    /**
+     * @return The engine of the last apply, or null.
+     */
+    public ApplyEngine getEngine() {
+        return engine;
+    }
+
+    public AggregationSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * Replaces the spec, keeping the loaded ObservedProperty definitions.
+     *
+     * @param spec The new spec.
+     */
+    public void setSpec(AggregationSpec spec) {
+        this.spec = spec;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+}
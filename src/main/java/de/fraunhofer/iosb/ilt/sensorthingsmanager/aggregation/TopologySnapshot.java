@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_DESCRIPTION;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_UNITOFMEASUREMENT;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostclient.model.PkValue;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypeComplex;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
+import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.UnitOfMeasurement;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compact, persistable copy of the aggregation topology of a server: the
+ * bases, their combos, levels, source and target ids and zone ids. Only the
+ * properties that the aggregation manager needs are kept.
+ *
+ * @author scf
+ */
+public class TopologySnapshot {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TopologySnapshot.class);
+
+    /**
+     * The version of the file format. Snapshots with a different version are
+     * ignored.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The default directory to store snapshots in.
+     */
+    public static final String DEFAULT_DIRECTORY = "aggregationSnapshots";
+
+    private static final String[] AGGREGATE_KEYS = {
+        Utils.KEY_AGGREGATE_FOR,
+        Utils.KEY_AGGREGATE_AMOUNT,
+        Utils.KEY_AGGREGATE_UNIT,
+        Utils.KEY_AGGREGATE_SOURCE_D,
+        Utils.KEY_AGGREGATE_SOURCE_MD
+    };
+
+    public static class EntityRef {
+
+        public Object id;
+        public String name;
+        public String description;
+        public String[] unit;
+        public Map<String, Object> properties;
+    }
+
+    public static class ComboRef {
+
+        public int amount;
+        public String unit;
+        public String baseName;
+        public Object thingId;
+        public String timeZone;
+        public EntityRef target;
+        public EntityRef sourceDs;
+        public EntityRef sourceMds;
+        public boolean sourceIsAggregate;
+        public boolean sourceIsCollection;
+    }
+
+    public static class BaseRef {
+
+        public String name;
+        public EntityRef baseDatastream;
+        public EntityRef baseMultiDatastream;
+        public List<ComboRef> combos = new ArrayList<>();
+    }
+
+    public int version = VERSION;
+    public String serverUrl;
+    public long created;
+    public Long maxDatastreamId;
+    public Long maxMultiDatastreamId;
+    public long datastreamCount;
+    public long multiDatastreamCount;
+    public List<BaseRef> bases = new ArrayList<>();
+
+    /**
+     * Get the file to store the snapshot for the given server in.
+     *
+     * @param directory The directory to store the snapshots in.
+     * @param serverUrl The url of the server.
+     * @return The snapshot file for the server.
+     */
+    public static File fileFor(File directory, String serverUrl) {
+        String fileName = serverUrl.replaceAll("[^a-zA-Z0-9.-]+", "_") + ".json.gz";
+        return new File(directory, fileName);
+    }
+
+    public static TopologySnapshot load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath())), Utils.UTF8)) {
+            TopologySnapshot snapshot = new Gson().fromJson(reader, TopologySnapshot.class);
+            if (snapshot == null || snapshot.version != VERSION) {
+                LOGGER.info("Ignoring snapshot {} with unsupported version.", file);
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | JsonParseException ex) {
+            LOGGER.warn("Failed to read snapshot {}.", file, ex);
+            return null;
+        }
+    }
+
+    public void save(File file) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tempFile.toPath())), Utils.UTF8)) {
+                new GsonBuilder().create().toJson(this, writer);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("Saved snapshot with {} bases to {}.", bases.size(), file);
+        } catch (IOException ex) {
+            LOGGER.error("Failed to write snapshot {}.", file, ex);
+        }
+    }
+
+    /**
+     * Adds the given bases to this snapshot.
+     *
+     * @param aggregationBases The bases to add.
+     */
+    public void addBases(List<AggregationBase> aggregationBases) {
+        for (AggregationBase base : aggregationBases) {
+            BaseRef baseRef = new BaseRef();
+            baseRef.name = base.getBaseName();
+            baseRef.baseDatastream = toRef(base.getBaseDatastream(), true);
+            baseRef.baseMultiDatastream = toRef(base.getBaseMultiDatastream(), false);
+            for (AggregateCombo combo : base.getCombos()) {
+                ComboRef comboRef = new ComboRef();
+                comboRef.amount = combo.level.amount;
+                comboRef.unit = combo.level.unit.toString();
+                comboRef.baseName = combo.baseName;
+                comboRef.thingId = combo.targetThing.getPrimaryKeyValues().get(0);
+                MapValue thingProps = combo.targetThing.getProperty(EP_PROPERTIES);
+                if (thingProps != null && thingProps.get("timeZone") != null) {
+                    comboRef.timeZone = thingProps.get("timeZone").toString();
+                }
+                comboRef.target = toRef(combo.targetMds, false);
+                comboRef.target.properties = aggregateProperties(combo.targetMds);
+                comboRef.sourceDs = toRef(combo.sourceDs, false);
+                comboRef.sourceMds = toRef(combo.sourceMds, false);
+                comboRef.sourceIsAggregate = combo.sourceIsAggregate;
+                comboRef.sourceIsCollection = combo.sourceIsCollection;
+                baseRef.combos.add(comboRef);
+            }
+            bases.add(baseRef);
+        }
+    }
+
+    /**
+     * Re-creates the bases stored in this snapshot. The entities in the bases
+     * only have the properties that are stored in the snapshot.
+     *
+     * @param service The service to link the entities to.
+     * @return The restored bases.
+     */
+    public List<AggregationBase> restoreBases(SensorThingsService service) {
+        final SensorThingsV11Sensing sMdl = service.getModel(SensorThingsV11Sensing.class);
+        final SensorThingsV11MultiDatastream mMdl = service.getModel(SensorThingsV11MultiDatastream.class);
+        List<AggregationBase> result = new ArrayList<>(bases.size());
+        for (BaseRef baseRef : bases) {
+            AggregationBase base = new AggregationBase(
+                    baseRef.name,
+                    fromRef(service, sMdl.etDatastream, baseRef.baseDatastream),
+                    fromRef(service, mMdl.etMultiDatastream, baseRef.baseMultiDatastream));
+            for (ComboRef comboRef : baseRef.combos) {
+                Entity thing = createEntity(service, sMdl.etThing, comboRef.thingId);
+                MapValue thingProps = new MapValue(TypeComplex.STA_MAP);
+                if (comboRef.timeZone != null) {
+                    thingProps.put("timeZone", comboRef.timeZone);
+                }
+                thing.setProperty(EP_PROPERTIES, thingProps);
+                AggregateCombo combo = new AggregateCombo(service, thing, fromRef(service, mMdl.etMultiDatastream, comboRef.target));
+                combo.baseName = comboRef.baseName;
+                combo.level = new AggregationLevel(ChronoUnit.valueOf(comboRef.unit.toUpperCase()), comboRef.amount);
+                combo.sourceDs = fromRef(service, sMdl.etDatastream, comboRef.sourceDs);
+                combo.sourceMds = fromRef(service, mMdl.etMultiDatastream, comboRef.sourceMds);
+                combo.sourceIsAggregate = comboRef.sourceIsAggregate;
+                combo.sourceIsCollection = comboRef.sourceIsCollection;
+                base.addCombo(combo);
+            }
+            result.add(base);
+        }
+        return result;
+    }
+
+    private static Map<String, Object> aggregateProperties(Entity entity) {
+        MapValue properties = entity.getProperty(EP_PROPERTIES);
+        if (properties == null) {
+            return null;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String key : AGGREGATE_KEYS) {
+            Object value = properties.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private static EntityRef toRef(Entity entity, boolean full) {
+        if (entity == null) {
+            return null;
+        }
+        EntityRef ref = new EntityRef();
+        ref.id = entity.getPrimaryKeyValues().get(0);
+        ref.name = entity.getProperty(EP_NAME);
+        if (full) {
+            ref.description = entity.getProperty(EP_DESCRIPTION);
+            UnitOfMeasurement uom = entity.getProperty(EP_UNITOFMEASUREMENT);
+            if (uom != null) {
+                ref.unit = new String[]{uom.getName(), uom.getSymbol(), uom.getDefinition()};
+            }
+        }
+        return ref;
+    }
+
+    private static Entity fromRef(SensorThingsService service, EntityType type, EntityRef ref) {
+        if (ref == null) {
+            return null;
+        }
+        Entity entity = createEntity(service, type, ref.id);
+        if (ref.name != null) {
+            entity.setProperty(EP_NAME, ref.name);
+        }
+        if (ref.description != null) {
+            entity.setProperty(EP_DESCRIPTION, ref.description);
+        }
+        if (ref.unit != null && ref.unit.length == 3) {
+            entity.setProperty(EP_UNITOFMEASUREMENT, new UnitOfMeasurement(ref.unit[0], ref.unit[1], ref.unit[2]));
+        }
+        if (ref.properties != null) {
+            MapValue properties = new MapValue(TypeComplex.STA_MAP);
+            for (Map.Entry<String, Object> entry : ref.properties.entrySet()) {
+                properties.put(entry.getKey(), jsonNumber(entry.getValue()));
+            }
+            entity.setProperty(EP_PROPERTIES, properties);
+        }
+        return entity;
+    }
+
+    static Entity createEntity(SensorThingsService service, EntityType type, Object id) {
+        Entity entity = new Entity(type);
+        entity.setPrimaryKeyValues(PkValue.of(jsonNumber(id)));
+        entity.setService(service);
+        return entity;
+    }
+
+    /**
+     * Gson reads all numbers as doubles. Ids and amounts are integers.
+     */
+    private static Object jsonNumber(Object value) {
+        if (value instanceof Double) {
+            double number = (Double) value;
+            if (number == Math.rint(number) && Math.abs(number) < Long.MAX_VALUE) {
+                return (long) number;
+            }
+        }
+        return value;
+    }
+
+}
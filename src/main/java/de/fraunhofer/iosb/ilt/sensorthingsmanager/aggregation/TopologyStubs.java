@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation;
+
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_DESCRIPTION;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_NAME;
+import static de.fraunhofer.iosb.ilt.frostclient.models.CommonProperties.EP_PROPERTIES;
+import static de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing.EP_UNITOFMEASUREMENT;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypeComplex;
+import de.fraunhofer.iosb.ilt.frostclient.models.ext.MapValue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.time4j.tz.TZID;
+
+/**
+ * Replaces the entities of aggregation bases with stubs, so the full entities
+ * loaded during discovery, with all their properties, can be garbage
+ * collected. Stubs only have the id, the name and the properties the
+ * aggregation manager needs, like the entities restored from a
+ * {@link TopologySnapshot}. Stubs for the same entity are shared. The full
+ * base Datastream is loaded again when needed, see
+ * {@link AggregationBase#loadBaseDatastream(SensorThingsService)}.
+ *
+ * @author scf
+ */
+final class TopologyStubs {
+
+    private static final String[] AGGREGATE_KEYS = {
+        Utils.KEY_AGGREGATE_FOR,
+        Utils.KEY_AGGREGATE_AMOUNT,
+        Utils.KEY_AGGREGATE_UNIT,
+        Utils.KEY_AGGREGATE_SOURCE_D,
+        Utils.KEY_AGGREGATE_SOURCE_MD
+    };
+
+    private final SensorThingsService service;
+    private final Map<Object, Entity> things = new HashMap<>();
+    private final Map<Object, Entity> datastreams = new HashMap<>();
+    private final Map<Object, Entity> multiDatastreams = new HashMap<>();
+
+    private TopologyStubs(SensorThingsService service) {
+        this.service = service;
+    }
+
+    /**
+     * Creates copies of the given bases, that hold stubs instead of the
+     * entities of the given bases.
+     *
+     * @param service The service to link the stubs to.
+     * @param bases The bases to copy.
+     * @param defaultZone The zone to use for Things without a time zone.
+     * @return The copies, in the same order.
+     */
+    static List<AggregationBase> stubBases(SensorThingsService service, List<AggregationBase> bases, TZID defaultZone) {
+        TopologyStubs stubs = new TopologyStubs(service);
+        List<AggregationBase> result = new ArrayList<>(bases.size());
+        for (AggregationBase base : bases) {
+            result.add(stubs.stubBase(base, defaultZone));
+        }
+        return result;
+    }
+
+    private AggregationBase stubBase(AggregationBase base, TZID defaultZone) {
+        Entity baseDs = stub(datastreams, base.getBaseDatastream());
+        if (baseDs != null) {
+            Entity full = base.getBaseDatastream();
+            if (full.getProperty(EP_DESCRIPTION) != null) {
+                baseDs.setProperty(EP_DESCRIPTION, full.getProperty(EP_DESCRIPTION));
+            }
+            if (full.getProperty(EP_UNITOFMEASUREMENT) != null) {
+                baseDs.setProperty(EP_UNITOFMEASUREMENT, full.getProperty(EP_UNITOFMEASUREMENT));
+            }
+        }
+        AggregationBase result = new AggregationBase(base.getBaseName(), baseDs, stub(multiDatastreams, base.getBaseMultiDatastream()));
+        for (AggregateCombo combo : base.getCombos()) {
+            AggregateCombo copy = new AggregateCombo(service, stubThing(combo.targetThing), stubTarget(combo.targetMds));
+            copy.baseName = combo.baseName;
+            copy.level = combo.level;
+            copy.sourceDs = stub(datastreams, combo.sourceDs);
+            copy.sourceMds = stub(multiDatastreams, combo.sourceMds);
+            copy.sourceIsAggregate = combo.sourceIsAggregate;
+            copy.sourceIsCollection = combo.sourceIsCollection;
+            copy.resolveZoneId(defaultZone);
+            result.addCombo(copy);
+        }
+        return result;
+    }
+
+    private Entity stubThing(Entity thing) {
+        Object id = thing.getPrimaryKeyValues().get(0);
+        Entity stub = things.get(id);
+        if (stub == null) {
+            stub = TopologySnapshot.createEntity(service, thing.getType(), id);
+            MapValue stubProps = new MapValue(TypeComplex.STA_MAP);
+            MapValue properties = thing.getProperty(EP_PROPERTIES);
+            if (properties != null && properties.get("timeZone") != null) {
+                stubProps.put("timeZone", properties.get("timeZone"));
+            }
+            stub.setProperty(EP_PROPERTIES, stubProps);
+            things.put(id, stub);
+        }
+        return stub;
+    }
+
+    private Entity stubTarget(Entity target) {
+        Entity stub = stub(multiDatastreams, target);
+        MapValue stubProps = new MapValue(TypeComplex.STA_MAP);
+        MapValue properties = target.getProperty(EP_PROPERTIES);
+        if (properties != null) {
+            for (String key : AGGREGATE_KEYS) {
+                if (properties.get(key) != null) {
+                    stubProps.put(key, properties.get(key));
+                }
+            }
+        }
+        stub.setProperty(EP_PROPERTIES, stubProps);
+        return stub;
+    }
+
+    private Entity stub(Map<Object, Entity> stubs, Entity entity) {
+        if (entity == null) {
+            return null;
+        }
+        Object id = entity.getPrimaryKeyValues().get(0);
+        Entity stub = stubs.get(id);
+        if (stub == null) {
+            stub = TopologySnapshot.createEntity(service, entity.getType(), id);
+            stubs.put(id, stub);
+        }
+        if (stub.getProperty(EP_NAME) == null && entity.getProperty(EP_NAME) != null) {
+            stub.setProperty(EP_NAME, entity.getProperty(EP_NAME));
+        }
+        return stub;
+    }
+}
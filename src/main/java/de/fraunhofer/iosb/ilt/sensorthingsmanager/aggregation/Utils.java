@@ -24,6 +24,7 @@ import de.fraunhofer.iosb.ilt.frostclient.models.ext.UnitOfMeasurement;
 import java.nio.charset.Charset;
 import java.util.regex.Pattern;
 import net.time4j.Moment;
+import net.time4j.scale.TimeScale;
 
 /**
  *
@@ -84,4 +85,19 @@ public class Utils {
         }
         return phenTime.getInstant().getDateTime();
     }
+
+    /**
+     * Converts the given moment to milliseconds since the epoch, rounding
+     * down.
+     *
+     * @param moment The moment to convert.
+     * @return The milliseconds since the epoch.
+     */
+    public static long toEpochMillis(Moment moment) {
+        return moment.getPosixTime() * 1000 + moment.getNanosecond() / 1_000_000;
+    }
+
+    public static Moment fromEpochMillis(long epochMillis) {
+        return Moment.of(Math.floorDiv(epochMillis, 1000), (int) Math.floorMod(epochMillis, 1000) * 1_000_000, TimeScale.POSIX);
+    }
 }
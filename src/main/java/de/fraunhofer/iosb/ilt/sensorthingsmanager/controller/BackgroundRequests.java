@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.controller;
+
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.BoundedVirtualExecutor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.concurrent.Task;
+import javafx.scene.control.ProgressIndicator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the HTTP requests of a GUI controller on a shared background executor,
+ * and hands the results back on the JavaFX application thread.
+ *
+ * There are two kinds of requests. A query replaces any earlier query of the
+ * same controller: the earlier query is cancelled, and if its response still
+ * arrives it is discarded. Discarded results that are AutoCloseable are
+ * closed. An update, like a delete, is never replaced. When
+ * cancelled explicitly, an update is asked to stop, and still passes on the
+ * result of the work it did.
+ *
+ * All methods must be called on the JavaFX application thread.
+ *
+ * @author scf
+ */
+public class BackgroundRequests {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundRequests.class);
+
+    /**
+     * The maximum number of requests running at the same time, over all
+     * controllers.
+     */
+    public static final int MAX_PARALLEL = 8;
+
+    private static final ExecutorService EXECUTOR = new BoundedVirtualExecutor("Request", MAX_PARALLEL);
+
+    /**
+     * The work of a request, run on a background thread.
+     *
+     * @param <T> The type of the result.
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+
+        T run(Context context) throws Exception;
+    }
+
+    /**
+     * Lets a running request report progress and check for cancellation.
+     */
+    public interface Context {
+
+        /**
+         * @return true if the request is cancelled, and should stop.
+         */
+        boolean isCancelled();
+
+        /**
+         * @param done The amount of work done.
+         * @param total The total amount of work.
+         */
+        void progress(long done, long total);
+    }
+
+    /**
+     * A running request.
+     */
+    private static class RequestTask<T> extends Task<T> {
+
+        private final Request<T> request;
+        private final boolean update;
+        private volatile boolean stopRequested;
+        /**
+         * The result, until it is handed out or discarded. Used to close a
+         * result that is produced after the task was cancelled.
+         */
+        private final AtomicReference<T> result = new AtomicReference<>();
+
+        public RequestTask(Request<T> request, boolean update) {
+            this.request = request;
+            this.update = update;
+        }
+
+        @Override
+        protected T call() throws Exception {
+            T value = request.run(new Context() {
+                @Override
+                public boolean isCancelled() {
+                    return RequestTask.this.isCancelled() || stopRequested;
+                }
+
+                @Override
+                public void progress(long done, long total) {
+                    updateProgress(done, total);
+                }
+            });
+            result.set(value);
+            if (isCancelled()) {
+                discardResult();
+            }
+            return value;
+        }
+
+        /**
+         * Closes the result, if there is one that was not handed out yet.
+         */
+        private void discardResult() {
+            close(result.getAndSet(null));
+        }
+
+        private void stop() {
+            if (update) {
+                stopRequested = true;
+            } else {
+                cancel(true);
+            }
+        }
+    }
+
+    private final List<RequestTask<?>> running = new ArrayList<>();
+    private final ReadOnlyBooleanWrapper busy = new ReadOnlyBooleanWrapper(false);
+    private final ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(ProgressIndicator.INDETERMINATE_PROGRESS);
+    private RequestTask<?> currentQuery;
+    private long queryGeneration;
+
+    /**
+     * Runs a query, cancelling the previous query. The result is only passed
+     * on if no newer query was started in the meantime. A discarded result
+     * that is AutoCloseable is closed.
+     *
+     * @param <T> The type of the result.
+     * @param description What the query does, for logging.
+     * @param request The query to run.
+     * @param onSuccess Receives the result.
+     * @param onFailure Receives the exception if the query fails.
+     */
+    public <T> void query(String description, Request<T> request, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        if (currentQuery != null) {
+            LOGGER.debug("Cancelling previous query for: {}", description);
+            currentQuery.cancel(true);
+        }
+        final long generation = ++queryGeneration;
+        currentQuery = submit(description, request, false, result -> {
+            if (generation == queryGeneration) {
+                onSuccess.accept(result);
+            } else {
+                discard(description, result);
+            }
+        }, ex -> {
+            if (generation == queryGeneration) {
+                onFailure.accept(ex);
+            }
+        });
+    }
+
+    /**
+     * Runs an update. Updates are not replaced by newer requests.
+     *
+     * @param <T> The type of the result.
+     * @param description What the update does, for logging.
+     * @param request The update to run.
+     * @param onSuccess Receives the result.
+     * @param onFailure Receives the exception if the update fails.
+     */
+    public <T> void update(String description, Request<T> request, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        submit(description, request, true, onSuccess, onFailure);
+    }
+
+    private <T> RequestTask<T> submit(String description, Request<T> request, boolean update, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        final RequestTask<T> task = new RequestTask<>(request, update);
+        task.setOnSucceeded(event -> {
+            finished(task);
+            task.result.set(null);
+            onSuccess.accept(task.getValue());
+        });
+        task.setOnFailed(event -> {
+            finished(task);
+            LOGGER.debug("Request failed: {}", description, task.getException());
+            onFailure.accept(task.getException());
+        });
+        task.setOnCancelled(event -> {
+            finished(task);
+            task.discardResult();
+            LOGGER.info("Request cancelled: {}", description);
+        });
+        running.add(task);
+        busy.set(true);
+        progress.bind(task.progressProperty());
+        LOGGER.debug("Starting request: {}", description);
+        EXECUTOR.submit(task);
+        return task;
+    }
+
+    private void finished(RequestTask<?> task) {
+        running.remove(task);
+        if (task == currentQuery) {
+            currentQuery = null;
+        }
+        if (running.isEmpty()) {
+            progress.unbind();
+            progress.set(ProgressIndicator.INDETERMINATE_PROGRESS);
+            busy.set(false);
+        } else {
+            progress.bind(running.get(running.size() - 1).progressProperty());
+        }
+    }
+
+    private static void discard(String description, Object result) {
+        LOGGER.debug("Discarding late response of: {}", description);
+        close(result);
+    }
+
+    private static void close(Object result) {
+        if (result instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception ex) {
+                LOGGER.warn("Failed to close discarded result.", ex);
+            }
+        }
+    }
+
+    /**
+     * Cancels all running queries, and asks all running updates to stop.
+     * Query responses that still arrive are discarded.
+     */
+    public void cancelAll() {
+        queryGeneration++;
+        for (RequestTask<?> task : new ArrayList<>(running)) {
+            task.stop();
+        }
+    }
+
+    /**
+     * @return true while any request is running.
+     */
+    public ReadOnlyBooleanProperty busyProperty() {
+        return busy.getReadOnlyProperty();
+    }
+
+    /**
+     * @return The progress of the most recent running request.
+     */
+    public ReadOnlyDoubleProperty progressProperty() {
+        return progress.getReadOnlyProperty();
+    }
+}
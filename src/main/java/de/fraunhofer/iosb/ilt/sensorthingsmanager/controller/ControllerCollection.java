@@ -33,14 +33,19 @@ import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntit
 import de.fraunhofer.iosb.ilt.frostclient.model.property.type.TypePrimitive;
 import de.fraunhofer.iosb.ilt.frostclient.query.Query;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.gui.Helper.ChildSetter;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.BulkDeleter;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.EntityCache;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.Utils;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.function.Supplier;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
@@ -52,6 +57,7 @@ import javafx.scene.Node;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
@@ -59,6 +65,7 @@ import javafx.scene.control.TableView;
 import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.BorderPane;
+import javafx.util.Callback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,6 +95,11 @@ public class ControllerCollection implements Initializable {
     @FXML
     private Button buttonSave;
 
+    @FXML
+    private Button buttonCancel;
+    @FXML
+    private ProgressIndicator progressRequest;
+
     @FXML
     private ToggleButton buttonFilter;
     private String filter = "";
@@ -112,6 +124,17 @@ public class ControllerCollection implements Initializable {
 
     private final ObservableList<EntityListEntry> entities = FXCollections.observableArrayList();
     private EntitySet currentQueryList;
+    /**
+     * The query of the current list, and the position of the current list in
+     * the results of that query.
+     */
+    private Supplier<Query> currentQuerySupplier;
+    private int currentQueryOffset;
+    /**
+     * The server-paged list of all entities, when showing all entities.
+     */
+    private PagedEntityList pagedEntities;
+    private final BackgroundRequests requests = new BackgroundRequests();
 
     private ControllerServer parent;
     private SensorThingsService service;
@@ -149,53 +172,117 @@ public class ControllerCollection implements Initializable {
 
     @FXML
     private void actionButtonReload(ActionEvent event) {
-        try {
-            addOptionsToQuery();
-            currentQueryList = query.list();
-            loadEntities();
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to fetch entity list.", ex);
-            Utils.showAlert(
-                    Alert.AlertType.ERROR,
-                    "Failed to reload",
-                    "Reloading the set of entities failed.",
-                    ex);
-        } catch (IllegalArgumentException ex) {
-            // Happens with new entities.
-            LOGGER.trace("Failed to fetch entity list.", ex);
-        }
+        final Supplier<Query> querySupplier = createQuerySupplier();
+        final EntityCache cache = getCacheForQuery();
+        requests.query("Reload " + entityType,
+                context -> {
+                    EntitySet list = querySupplier.get().list();
+                    if (cache != null) {
+                        cache.putAll(list.toList());
+                    }
+                    return list;
+                },
+                list -> {
+                    currentQueryList = list;
+                    currentQuerySupplier = querySupplier;
+                    currentQueryOffset = 0;
+                    loadEntities();
+                },
+                ex -> {
+                    updateButtonNext();
+                    if (ex instanceof IllegalArgumentException) {
+                        // Happens with new entities.
+                        LOGGER.trace("Failed to fetch entity list.", ex);
+                        return;
+                    }
+                    LOGGER.error("Failed to fetch entity list.", ex);
+                    Utils.showAlert(
+                            Alert.AlertType.ERROR,
+                            "Failed to reload",
+                            "Reloading the set of entities failed.",
+                            ex);
+                });
     }
 
     @FXML
     private void actionButtonNext(ActionEvent event) {
-        if (currentQueryList == null || !currentQueryList.hasNextLink()) {
+        final EntitySet list = currentQueryList;
+        final Supplier<Query> querySupplier = currentQuerySupplier;
+        if (list == null || querySupplier == null || !list.hasNextLink()) {
             return;
         }
-        currentQueryList.fetchNext();
-        loadEntities();
+        // Fetched as a new list, the current list stays as it is until the
+        // new one is shown.
+        final int offset = currentQueryOffset + list.toList().size();
+        buttonNext.setDisable(true);
+        final EntityCache cache = getCacheForQuery();
+        requests.query("Next page of " + entityType,
+                context -> {
+                    EntitySet next = querySupplier.get().skip(offset).list();
+                    if (cache != null) {
+                        cache.putAll(next.toList());
+                    }
+                    return next;
+                },
+                fetched -> {
+                    currentQueryList = fetched;
+                    currentQueryOffset = offset;
+                    loadEntities();
+                },
+                ex -> {
+                    LOGGER.error("Failed to fetch the next page.", ex);
+                    updateButtonNext();
+                    Utils.showAlert(
+                            Alert.AlertType.ERROR,
+                            "Failed to fetch",
+                            "Fetching the next set of entities failed.",
+                            ex);
+                });
     }
 
     @FXML
     private void actionButtonAll(ActionEvent event) {
-        try {
-            addOptionsToQuery();
-            currentQueryList = query.top(500).list();
-            loadAllEntities();
-        } catch (StatusCodeException ex) {
-            LOGGER.error("Failed to fetch entity list.", ex);
-            Utils.showAlert(
-                    Alert.AlertType.ERROR,
-                    "Failed to fetch",
-                    "Fetching the set of all entities failed for url: " + ex.getUrl(),
-                    ex);
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to fetch entity list.", ex);
-            Utils.showAlert(
-                    Alert.AlertType.ERROR,
-                    "Failed to fetch",
-                    "Fetching the set of all entities failed.",
-                    ex);
-        }
+        closePagedEntities();
+        final Supplier<Query> querySupplier = createQuerySupplier();
+        final EntityCache cache = getCacheForQuery();
+        requests.query("All " + entityType,
+                context -> {
+                    PagedEntityList paged = new PagedEntityList(querySupplier, entityType, PagedEntityList.DEFAULT_PAGE_SIZE, PagedEntityList.DEFAULT_MAX_PAGES);
+                    paged.setCache(cache);
+                    try {
+                        paged.loadFirstPage();
+                    } catch (ServiceFailureException | RuntimeException ex) {
+                        paged.close();
+                        throw ex;
+                    }
+                    return paged;
+                },
+                paged -> {
+                    paged.setErrorHandler(ex -> Utils.showAlert(
+                            Alert.AlertType.ERROR,
+                            "Failed to fetch",
+                            "Fetching a page of entities failed.",
+                            ex));
+                    showPagedEntities(paged);
+                },
+                ex -> {
+                    LOGGER.error("Failed to fetch entity list.", ex);
+                    String message = "Fetching the set of all entities failed.";
+                    if (ex instanceof StatusCodeException sce) {
+                        message = "Fetching the set of all entities failed for url: " + sce.getUrl();
+                    }
+                    Utils.showAlert(
+                            Alert.AlertType.ERROR,
+                            "Failed to fetch",
+                            message,
+                            ex);
+                });
+    }
+
+    @FXML
+    private void actionCancel(ActionEvent event) {
+        requests.cancelAll();
+        updateButtonNext();
     }
 
     @FXML
@@ -260,29 +347,74 @@ public class ControllerCollection implements Initializable {
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "Delete " + what + " ?", ButtonType.YES, ButtonType.NO);
         alert.showAndWait();
 
-        if (alert.getResult() == ButtonType.YES) {
-            try {
-                // ToDo: Add progress dialog.
-                for (EntityListEntry selectedItem : toDelete) {
-                    Entity entity = selectedItem.getEntity();
-                    if (entity.primaryKeyFullySet()) {
-                        LOGGER.info("Deleting " + entity);
-                        entity.getService().delete(entity);
-                        entities.remove(selectedItem);
-                    } else {
-                        // entity doesn't exist yet.
-                        entities.remove(selectedItem);
-                    }
-                }
-            } catch (ServiceFailureException ex) {
-                LOGGER.warn("Failed to delete entity.", ex);
-                Utils.showAlert(
-                        Alert.AlertType.ERROR,
-                        "Failed to delete",
-                        "Failed to delete an entity.",
-                        ex);
+        if (alert.getResult() != ButtonType.YES) {
+            return;
+        }
+        final List<EntityListEntry> toDeleteOnServer = new ArrayList<>();
+        for (EntityListEntry selectedItem : toDelete) {
+            if (selectedItem.getEntity().primaryKeyFullySet()) {
+                toDeleteOnServer.add(selectedItem);
+            } else {
+                // entity doesn't exist yet.
+                entities.remove(selectedItem);
             }
         }
+        if (toDeleteOnServer.isEmpty()) {
+            return;
+        }
+        final List<EntityListEntry> deleted = Collections.synchronizedList(new ArrayList<>());
+        final Map<Entity, EntityListEntry> entries = new IdentityHashMap<>();
+        for (EntityListEntry selectedItem : toDeleteOnServer) {
+            entries.put(selectedItem.getEntity(), selectedItem);
+        }
+        final BulkDeleter deleter = new BulkDeleter();
+        deleter.setDeletedListener(entity -> {
+            EntityCache.forService(entity.getService()).remove(entity);
+            deleted.add(entries.get(entity));
+        });
+        buttonDelete.setDisable(true);
+        requests.update("Delete " + toDeleteOnServer.size() + " " + entityType,
+                context -> {
+                    deleter.setProgressListener((progress, status) -> {
+                        if (context.isCancelled()) {
+                            deleter.cancel();
+                        }
+                        context.progress(Math.round(progress * 1000), 1000);
+                    });
+                    return deleter.delete(entries.keySet());
+                },
+                failures -> {
+                    LOGGER.info("Delete {}: {}", entityType, deleter.getStatus());
+                    afterDelete(deleted);
+                    if (!failures.isEmpty()) {
+                        StringBuilder text = new StringBuilder();
+                        for (BulkDeleter.Failure failure : failures) {
+                            text.append(failure).append('\n');
+                        }
+                        Utils.showAlert(
+                                Alert.AlertType.ERROR,
+                                "Failed to delete",
+                                "Failed to delete " + failures.size() + " of " + toDeleteOnServer.size() + " entities:\n" + text,
+                                failures.get(0).getException());
+                    }
+                },
+                ex -> {
+                    LOGGER.warn("Failed to delete entities.", ex);
+                    afterDelete(deleted);
+                    Utils.showAlert(
+                            Alert.AlertType.ERROR,
+                            "Failed to delete",
+                            "Failed to delete entities.",
+                            ex);
+                });
+    }
+
+    private void afterDelete(List<EntityListEntry> deleted) {
+        if (pagedEntities != null) {
+            actionButtonAll(null);
+        } else {
+            entities.removeAll(deleted);
+        }
     }
 
     @FXML
@@ -290,6 +422,7 @@ public class ControllerCollection implements Initializable {
         if (!canCreate) {
             return;
         }
+        closePagedEntities();
         EntityListEntry newItem = new EntityListEntry().setEntity(new Entity(entityType));
         entities.add(newItem);
         entityTable.getSelectionModel().select(newItem);
@@ -303,6 +436,7 @@ public class ControllerCollection implements Initializable {
         Query allQuery = service.query(entityType);
         Optional<List<Entity>> result = entitySearchDialog(parent, allQuery, true, orderby);
         if (result.isPresent() && !result.get().isEmpty()) {
+            closePagedEntities();
             List<Entity> newChildren = result.get();
             for (var child : newChildren) {
                 entities.add(new EntityListEntry()
@@ -333,45 +467,99 @@ public class ControllerCollection implements Initializable {
     private void actionSave(ActionEvent event) {
         Entity parent = query.getParent();
         NavigationPropertyEntitySet npes = query.getNavigationLink();
-        Dao dao = parent.dao(npes);
-        for (Iterator<EntityListEntry> it = entities.iterator(); it.hasNext();) {
-            EntityListEntry ele = it.next();
-            if (ele.isToLink()) {
-                LOGGER.info("Linking {}", ele.getEntity());
-                try {
-                    dao.linkEntities(ele.getEntity().asReference());
-                    ele.setToLink(false);
-                } catch (ServiceFailureException ex) {
-                    LOGGER.error("Failed to link {}", ele.getEntity());
-                }
-            }
-            if (ele.isToUnlink()) {
-                LOGGER.info("UnLinking {}", ele.getEntity());
-                try {
-                    dao.unlinkEntity(ele.getEntity().asReference());
-                    it.remove();
-                } catch (ServiceFailureException ex) {
-                    LOGGER.error("Failed to unlink {}", ele.getEntity());
-                }
+        final Dao dao = parent.dao(npes);
+        final List<EntityListEntry> toSave = new ArrayList<>();
+        for (EntityListEntry ele : entities) {
+            if (ele.isToLink() || ele.isToUnlink()) {
+                toSave.add(ele);
             }
         }
+        if (toSave.isEmpty()) {
+            return;
+        }
+        final List<EntityListEntry> unlinked = Collections.synchronizedList(new ArrayList<>());
+        buttonSave.setDisable(true);
+        requests.update("Save links of " + entityType,
+                context -> {
+                    int done = 0;
+                    for (EntityListEntry ele : toSave) {
+                        if (context.isCancelled()) {
+                            break;
+                        }
+                        if (ele.isToLink()) {
+                            LOGGER.info("Linking {}", ele.getEntity());
+                            try {
+                                dao.linkEntities(ele.getEntity().asReference());
+                                ele.setToLink(false);
+                            } catch (ServiceFailureException ex) {
+                                LOGGER.error("Failed to link {}", ele.getEntity());
+                            }
+                        }
+                        if (ele.isToUnlink()) {
+                            LOGGER.info("UnLinking {}", ele.getEntity());
+                            try {
+                                dao.unlinkEntity(ele.getEntity().asReference());
+                                unlinked.add(ele);
+                            } catch (ServiceFailureException ex) {
+                                LOGGER.error("Failed to unlink {}", ele.getEntity());
+                            }
+                        }
+                        context.progress(++done, toSave.size());
+                    }
+                    return unlinked;
+                },
+                result -> afterSave(unlinked),
+                ex -> {
+                    LOGGER.error("Failed to save links.", ex);
+                    afterSave(unlinked);
+                });
+    }
+
+    private void afterSave(List<EntityListEntry> unlinked) {
+        entities.removeAll(unlinked);
+        buttonSave.setDisable(pagedEntities != null);
         entityTable.refresh();
     }
 
-    private void addOptionsToQuery() {
-        if (buttonFilter.isSelected() && !filter.isEmpty()) {
-            query.filter(filter);
-        } else {
-            query.filter("");
-        }
-        if (buttonSelect.isSelected() && !select.isEmpty()) {
-            query.select(select);
+    private static void addOptionsToQuery(Query target, String filter, String select, String orderby) {
+        target.filter(filter);
+        if (select.isEmpty()) {
+            target.select();
         } else {
-            query.select();
+            target.select(select);
         }
         if (!orderby.isEmpty()) {
-            query.orderBy(orderby);
+            target.orderBy(orderby);
+        }
+    }
+
+    /**
+     * @return The cache to put loaded entities in, or null if the entities
+     * are not complete because a select is set.
+     */
+    private EntityCache getCacheForQuery() {
+        if (buttonSelect.isSelected() && !select.isEmpty()) {
+            return null;
         }
+        return EntityCache.forService(service);
+    }
+
+    /**
+     * Creates a supplier of new queries, using the current filter, select and
+     * order. The queries are independent of the query of this collection, so
+     * they can be used on a background thread.
+     */
+    private Supplier<Query> createQuerySupplier() {
+        final Entity owner = query.getParent();
+        final NavigationPropertyEntitySet navLink = query.getNavigationLink();
+        final String myFilter = buttonFilter.isSelected() ? filter : "";
+        final String mySelect = buttonSelect.isSelected() ? select : "";
+        final String myOrderby = orderby;
+        return () -> {
+            Query newQuery = owner == null ? service.query(entityType) : owner.query(navLink);
+            addOptionsToQuery(newQuery, myFilter, mySelect, myOrderby);
+            return newQuery;
+        };
     }
 
     public void setOrderby(String orderby) {
@@ -379,6 +567,7 @@ public class ControllerCollection implements Initializable {
     }
 
     private void loadEntities() {
+        closePagedEntities();
         entities.clear();
         int count = 0;
         for (Entity entity : currentQueryList.toList()) {
@@ -386,35 +575,45 @@ public class ControllerCollection implements Initializable {
             count++;
         }
         LOGGER.info("Loaded {} Entities", count);
-        createIdColumn();
-        buttonNext.setDisable(!currentQueryList.hasNextLink());
+        createIdColumn(entities);
+        updateButtonNext();
         buttonDelete.setDisable(true);
         entityTable.sort();
     }
 
-    private void loadAllEntities() {
-        int i = 0;
-        entities.clear();
-        for (Entity entity : currentQueryList) {
-            entities.add(new EntityListEntry().setEntity(entity));
-            i++;
-            if (i >= 500) {
-                LOGGER.warn("Warning after {}. Total: {}.", i, entities.size());
-                Optional<ButtonType> result = new Alert(Alert.AlertType.WARNING, "Already loaded " + entities.size() + " Entities.\nContinue loading?", ButtonType.CANCEL, ButtonType.YES).showAndWait();
-                if (!result.isPresent() || result.get() != ButtonType.YES) {
-                    break;
-                }
-                i = 0;
-            }
-        }
-        createIdColumn();
-        buttonNext.setDisable(!currentQueryList.hasNextLink());
+    private void updateButtonNext() {
+        buttonNext.setDisable(currentQueryList == null || !currentQueryList.hasNextLink());
+    }
+
+    private void showPagedEntities(PagedEntityList paged) {
+        pagedEntities = paged;
+        currentQueryList = null;
+        entityTable.setItems(paged);
+        createIdColumn(paged);
+        buttonNext.setDisable(true);
         buttonDelete.setDisable(true);
-        entityTable.sort();
+        buttonRemove.setDisable(true);
+        buttonSave.setDisable(true);
+    }
+
+    /**
+     * Stops showing the paged list of all entities, and goes back to the list
+     * of loaded entities.
+     */
+    private void closePagedEntities() {
+        if (pagedEntities == null) {
+            return;
+        }
+        pagedEntities.close();
+        pagedEntities = null;
+        entities.clear();
+        entityTable.setItems(entities);
+        buttonRemove.setDisable(false);
+        buttonSave.setDisable(false);
     }
 
     private void entitySelected(EntityListEntry newValue) {
-        if (newValue == null) {
+        if (newValue == null || newValue.isPlaceholder()) {
             buttonDelete.setDisable(true);
             return;
         }
@@ -429,6 +628,7 @@ public class ControllerCollection implements Initializable {
     }
 
     public void selectEntity(Entity entity) {
+        closePagedEntities();
         final TableView.TableViewSelectionModel<EntityListEntry> selectionModel = entityTable.getSelectionModel();
         for (EntityListEntry entry : entities) {
             if (entry.getEntity().equals(entity)) {
@@ -446,6 +646,9 @@ public class ControllerCollection implements Initializable {
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         columnName.setCellValueFactory((TableColumn.CellDataFeatures<EntityListEntry, String> param) -> {
+            if (param.getValue().isPlaceholder()) {
+                return new ReadOnlyObjectWrapper<>("Loading…");
+            }
             Entity entity = param.getValue().getEntity();
             String display = entity.display();
             if (Utils.isNullOrEmpty(display)) {
@@ -453,7 +656,15 @@ public class ControllerCollection implements Initializable {
             }
             return new ReadOnlyObjectWrapper<>(display);
         });
+        progressRequest.visibleProperty().bind(requests.busyProperty());
+        progressRequest.managedProperty().bind(requests.busyProperty());
+        progressRequest.progressProperty().bind(requests.progressProperty());
+        buttonCancel.visibleProperty().bind(requests.busyProperty());
+        buttonCancel.managedProperty().bind(requests.busyProperty());
         entityTable.setItems(entities);
+        final Callback<TableView<EntityListEntry>, Boolean> defaultSortPolicy = entityTable.getSortPolicy();
+        // The paged list is ordered by the server, using the order button.
+        entityTable.setSortPolicy(table -> pagedEntities == null && defaultSortPolicy.call(table));
         entityTable.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         entityTable.getSelectionModel().selectedItemProperty().addListener(
                 (ObservableValue<? extends EntityListEntry> observable, EntityListEntry oldValue, EntityListEntry newValue) -> {
@@ -461,11 +672,11 @@ public class ControllerCollection implements Initializable {
                 });
     }
 
-    private void createIdColumn() {
-        if (entities.isEmpty() || columnId != null) {
+    private void createIdColumn(List<EntityListEntry> items) {
+        if (items.isEmpty() || columnId != null) {
             return;
         }
-        final Entity entity = entities.get(0).getEntity();
+        final Entity entity = items.get(0).getEntity();
         if (!entity.primaryKeyFullySet()) {
             return;
         }
@@ -496,6 +707,9 @@ public class ControllerCollection implements Initializable {
             TableColumn<EntityListEntry, Number> column = new TableColumn<>(idColumnName);
             columnId = column;
             column.setCellValueFactory((TableColumn.CellDataFeatures<EntityListEntry, Number> param) -> {
+                if (param.getValue().isPlaceholder()) {
+                    return new ReadOnlyObjectWrapper<>(null);
+                }
                 final Object pkValue = param.getValue().getEntity().getPrimaryKeyValues().get(0);
                 if (pkValue == null) {
                     return new ReadOnlyObjectWrapper<>(-1);
@@ -531,7 +745,7 @@ public class ControllerCollection implements Initializable {
             columnId = column;
             column.setCellValueFactory((TableColumn.CellDataFeatures<EntityListEntry, String> param) -> {
                 final Entity cellEntity = param.getValue().getEntity();
-                if (!cellEntity.primaryKeyFullySet()) {
+                if (param.getValue().isPlaceholder() || !cellEntity.primaryKeyFullySet()) {
                     return new ReadOnlyObjectWrapper<>("");
                 }
                 String keyValue = formatKeyValuesForUrl(cellEntity);
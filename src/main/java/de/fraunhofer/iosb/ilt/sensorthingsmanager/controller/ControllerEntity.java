@@ -20,6 +20,7 @@ package de.fraunhofer.iosb.ilt.sensorthingsmanager.controller;
 import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
 import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.EntityCache;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.Utils;
 import java.net.URL;
 import java.util.ResourceBundle;
@@ -72,6 +73,7 @@ public class ControllerEntity implements Initializable {
                 entity.getService().update(entity);
                 controller.loadFields();
             }
+            EntityCache.forService(service).put(entity);
         } catch (ServiceFailureException ex) {
             LOGGER.error("Failed to update or create entity.", ex);
             Utils.showAlert(
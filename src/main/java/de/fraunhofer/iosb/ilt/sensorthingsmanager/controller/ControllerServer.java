@@ -25,6 +25,7 @@ import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11MultiDatastream;
 import de.fraunhofer.iosb.ilt.frostclient.models.SensorThingsV11Sensing;
 import de.fraunhofer.iosb.ilt.frostclient.query.Query;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.aggregation.ControllerAggManager;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.EntityCache;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.Server;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -42,6 +43,7 @@ import javafx.scene.Group;
 import javafx.scene.control.Label;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.StackPane;
@@ -85,6 +87,10 @@ public class ControllerServer implements Initializable {
                     .setBaseUrl(new URI(entry.getUrl()).toURL())
                     .setAuthMethod(entry.getAuthMethod())
                     .init();
+            final EntityCache cache = EntityCache.forService(service);
+            final Tooltip cacheStats = new Tooltip();
+            cacheStats.setOnShowing(event -> cacheStats.setText("Entity cache: " + cache));
+            serverTitle.setTooltip(cacheStats);
 
             for (EntityType et : service.getModelRegistry().getEntityTypes()) {
                 String orderBy = "";
@@ -115,6 +121,7 @@ public class ControllerServer implements Initializable {
             LOGGER.info("Can not open entity {}, key not fully set.", entity);
             return;
         }
+        entity = EntityCache.forService(service).getOrSelf(entity);
         EntityType type = entity.getType();
         ControllerCollection controller = tabControllersByType.get(type);
         if (controller == null) {
@@ -171,6 +178,7 @@ public class ControllerServer implements Initializable {
             BorderPane content = (BorderPane) loader.load();
             ControllerAggManager controller = loader.getController();
             controller.setService(service);
+            controller.setServerUrl(entry.getUrl());
 
             Tab tab = new Tab();
             tab.setGraphic(new StackPane(new Group(new Label("Aggregations"))));
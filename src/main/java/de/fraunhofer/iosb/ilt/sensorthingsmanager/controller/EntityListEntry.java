@@ -28,6 +28,7 @@ public class EntityListEntry {
     private boolean changed = false;
     private boolean toLink = false;
     private boolean toUnlink = false;
+    private boolean placeholder = false;
 
     @Override
     public String toString() {
@@ -84,4 +85,17 @@ public class EntityListEntry {
         return this;
     }
 
+    /**
+     * @return true if this entry stands in for an entity that is not loaded
+     * yet.
+     */
+    public boolean isPlaceholder() {
+        return placeholder;
+    }
+
+    public EntityListEntry setPlaceholder(boolean placeholder) {
+        this.placeholder = placeholder;
+        return this;
+    }
+
 }
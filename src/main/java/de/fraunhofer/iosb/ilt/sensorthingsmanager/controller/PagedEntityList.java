@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.controller;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostclient.query.Query;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.EntityCache;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only list of all entities of a query, that only holds the pages
+ * that are looked at. The size comes from $count, so the scrollbar of a
+ * TableView covers the whole collection. Rows of pages that are not loaded
+ * are placeholders, and the page is fetched in the background. When loaded,
+ * the rows are replaced.
+ *
+ * Only the most recently used pages are kept. When a page that was looked at
+ * is fetched, the next page is prefetched through the nextLink, which is
+ * usually cheaper for the server than a $skip. A prefetched page does not
+ * prefetch further, so the collection is never walked in the background.
+ * Pages requested while scrolling are fetched newest first, and requests for
+ * pages scrolled past are dropped.
+ *
+ * Apart from {@link #loadFirstPage()}, all methods must be called on the
+ * JavaFX application thread.
+ *
+ * @author scf
+ */
+public class PagedEntityList extends ObservableListBase<EntityListEntry> implements AutoCloseable {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PagedEntityList.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 200;
+    public static final int DEFAULT_MAX_PAGES = 20;
+
+    private final Supplier<Query> querySupplier;
+    private final EntityType entityType;
+    private final int pageSize;
+    private final int maxPages;
+    private final Map<Integer, List<EntityListEntry>> pages;
+    private final Set<Integer> pending = new HashSet<>();
+    /**
+     * The pending pages that were only requested as prefetch.
+     */
+    private final Set<Integer> prefetching = new HashSet<>();
+    private final Deque<Integer> queue = new ArrayDeque<>();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("PagedEntityList-", 0).factory());
+    private final List<EntityListEntry> placeholders = new ArrayList<>();
+    private Consumer<Exception> errorHandler;
+    private EntityCache cache;
+
+    private int size;
+    private boolean countKnown;
+    private volatile boolean closed;
+
+    /**
+     * The result of the last fetch, used for prefetching through the
+     * nextLink. Only used on the loader thread.
+     */
+    private EntitySet lastSet;
+    private int lastSetPage = -1;
+
+    /**
+     * @param querySupplier Creates a new query with the filter, select and
+     * order to use. Called on a background thread.
+     * @param entityType The type of the entities, used for placeholders.
+     * @param pageSize The number of entities per page.
+     * @param maxPages The maximum number of pages to keep in memory.
+     */
+    public PagedEntityList(Supplier<Query> querySupplier, EntityType entityType, int pageSize, int maxPages) {
+        this.querySupplier = querySupplier;
+        this.entityType = entityType;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<EntityListEntry>> eldest) {
+                return size() > PagedEntityList.this.maxPages;
+            }
+        };
+    }
+
+    /**
+     * Fetches the first page, with the count. Blocks until done, should be
+     * called once before the list is shown.
+     *
+     * @throws ServiceFailureException If the request fails.
+     */
+    public void loadFirstPage() throws ServiceFailureException {
+        EntitySet first = querySupplier.get()
+                .count(true)
+                .top(pageSize)
+                .list();
+        long count = first.getCount();
+        List<EntityListEntry> page = toEntries(first);
+        countKnown = count >= 0;
+        size = countKnown ? (int) Math.min(Integer.MAX_VALUE, count) : page.size();
+        if (!countKnown && first.hasNextLink()) {
+            size += pageSize;
+        }
+        pages.put(0, page);
+        lastSet = first;
+        lastSetPage = 0;
+        LOGGER.info("Paging {} {}, {} per page.", countKnown ? size : "unknown number of", entityType, pageSize);
+        prefetch(1);
+    }
+
+    @Override
+    public EntityListEntry get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " not in [0, " + size + ")");
+        }
+        int pageNr = index / pageSize;
+        int offset = index % pageSize;
+        List<EntityListEntry> page = pages.get(pageNr);
+        if (page == null) {
+            request(pageNr, false);
+            return placeholder(offset);
+        }
+        if (offset >= page.size()) {
+            return placeholder(offset);
+        }
+        return page.get(offset);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private EntityListEntry placeholder(int offset) {
+        while (placeholders.size() <= offset) {
+            placeholders.add(new EntityListEntry()
+                    .setEntity(new Entity(entityType))
+                    .setPlaceholder(true));
+        }
+        return placeholders.get(offset);
+    }
+
+    private List<EntityListEntry> toEntries(EntitySet set) {
+        List<EntityListEntry> entries = new ArrayList<>();
+        for (Entity entity : set.toList()) {
+            entries.add(new EntityListEntry().setEntity(entity));
+        }
+        if (cache != null) {
+            cache.putAll(set.toList());
+        }
+        return entries;
+    }
+
+    private void request(int pageNr, boolean prefetch) {
+        if (closed) {
+            return;
+        }
+        if (!pending.add(pageNr)) {
+            if (!prefetch) {
+                prefetching.remove(pageNr);
+            }
+            return;
+        }
+        if (prefetch) {
+            prefetching.add(pageNr);
+        }
+        synchronized (queue) {
+            queue.addLast(pageNr);
+            while (queue.size() > maxPages) {
+                int dropped = queue.pollFirst();
+                pending.remove(dropped);
+                prefetching.remove(dropped);
+            }
+        }
+        loader.submit(this::loadNext);
+    }
+
+    private void prefetch(int pageNr) {
+        if (pageNr * pageSize < size && !pages.containsKey(pageNr)) {
+            request(pageNr, true);
+        }
+    }
+
+    /**
+     * Loads the most recently requested page. Runs on the loader thread.
+     */
+    private void loadNext() {
+        Integer pageNr;
+        synchronized (queue) {
+            pageNr = queue.pollLast();
+        }
+        if (pageNr == null || closed) {
+            return;
+        }
+        try {
+            EntitySet set;
+            if (lastSet != null && pageNr == lastSetPage + 1 && lastSet.hasNextLink()) {
+                lastSet.fetchNext();
+                set = lastSet;
+            } else {
+                set = querySupplier.get()
+                        .skip(pageNr * pageSize)
+                        .top(pageSize)
+                        .list();
+            }
+            lastSet = set;
+            lastSetPage = pageNr;
+            final List<EntityListEntry> entries = toEntries(set);
+            final boolean hasNext = set.hasNextLink();
+            Platform.runLater(() -> pageLoaded(pageNr, entries, hasNext));
+        } catch (ServiceFailureException | RuntimeException ex) {
+            LOGGER.error("Failed to load page {} of {}.", pageNr, entityType, ex);
+            Platform.runLater(() -> {
+                pending.remove(pageNr);
+                prefetching.remove(pageNr);
+                if (errorHandler != null && !closed) {
+                    errorHandler.accept(ex);
+                }
+            });
+        }
+    }
+
+    private void pageLoaded(int pageNr, List<EntityListEntry> entries, boolean hasNext) {
+        pending.remove(pageNr);
+        final boolean wasPrefetch = prefetching.remove(pageNr);
+        if (closed) {
+            return;
+        }
+        pages.put(pageNr, entries);
+        final int from = pageNr * pageSize;
+        final int loadedEnd = from + entries.size();
+        int newSize = size;
+        if (!hasNext && loadedEnd < size) {
+            // The collection shrunk since the count.
+            newSize = loadedEnd;
+        } else if (!countKnown && hasNext) {
+            newSize = Math.max(size, loadedEnd + pageSize);
+        } else if (loadedEnd > size) {
+            newSize = loadedEnd;
+        }
+        beginChange();
+        int updateEnd = Math.min(loadedEnd, Math.min(size, newSize));
+        if (updateEnd > from) {
+            nextUpdate(from);
+            for (int i = from + 1; i < updateEnd; i++) {
+                nextUpdate(i);
+            }
+        }
+        if (newSize < size) {
+            List<EntityListEntry> removed = new ArrayList<>(Collections.nCopies(size - newSize, placeholder(0)));
+            size = newSize;
+            nextRemove(newSize, removed);
+        } else if (newSize > size) {
+            int oldSize = size;
+            size = newSize;
+            nextAdd(oldSize, newSize);
+        }
+        endChange();
+        if (hasNext && !wasPrefetch) {
+            prefetch(pageNr + 1);
+        }
+    }
+
+    /**
+     * @return true if the number of entities is known from the count.
+     */
+    public boolean isCountKnown() {
+        return countKnown;
+    }
+
+    /**
+     * @return The number of pages currently in memory.
+     */
+    public int getLoadedPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * @param errorHandler Called on the JavaFX thread when loading a page
+     * fails.
+     */
+    public void setErrorHandler(Consumer<Exception> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * @param cache The cache to put loaded entities in, or null. Must be set
+     * before the first page is loaded.
+     */
+    public void setCache(EntityCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Stops loading pages. The list should no longer be used.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        loader.shutdownNow();
+        pages.clear();
+    }
+}
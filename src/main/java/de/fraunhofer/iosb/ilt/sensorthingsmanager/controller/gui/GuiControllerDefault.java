@@ -27,6 +27,7 @@ import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationProperty;
 import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationPropertyEntitySet;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.ControllerServer;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.EntityGuiController;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.EntityCache;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -103,7 +104,9 @@ public class GuiControllerDefault implements EntityGuiController {
                     if (npe.getEntityType().hasProperty("name")) {
                         order = "name asc";
                     }
-                    final Entity linkedEntity = entity.getProperty(npe);
+                    final Entity linkedEntity = entity.hasService()
+                            ? EntityCache.forService(parent.getService()).getLinked(entity, npe)
+                            : entity.getProperty(npe);
                     TitledPane tp = createEditableEntityPane(parent, entity, npe, linkedEntity, parent.getService().query(npe.getEntityType()), order, child -> entity.setProperty(npe, child));
                     accordionLinks.getPanes().add(tp);
                 }
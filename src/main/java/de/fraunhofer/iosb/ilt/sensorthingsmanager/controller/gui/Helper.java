@@ -27,6 +27,7 @@ import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.ControllerCollectio
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.ControllerServer;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.EntityGuiController;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.controller.FactoryEntityPanel;
+import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.EntityCache;
 import de.fraunhofer.iosb.ilt.sensorthingsmanager.utils.Utils;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -187,13 +188,21 @@ public class Helper {
             dialog.getDialogPane().getButtonTypes().add(buttonTypeOk);
             ButtonType buttonTypeCancel = new ButtonType("Cancel", ButtonBar.ButtonData.CANCEL_CLOSE);
             dialog.getDialogPane().getButtonTypes().add(buttonTypeCancel);
+            // The chosen entities may come from a list loaded with a $select,
+            // use the complete versions from the cache where possible.
+            final EntityCache cache = EntityCache.forService(parent.getService());
             dialog.setResultConverter((ButtonType button) -> {
                 if (button == buttonTypeOk) {
                     if (multiSelect) {
-                        return controller.getSelectedEntities();
+                        List<Entity> selected = controller.getSelectedEntities();
+                        if (selected == null) {
+                            return null;
+                        }
+                        selected.replaceAll(cache::getOrSelf);
+                        return selected;
                     }
                     List<Entity> list = new ArrayList<>();
-                    list.add(controller.getSelectedEntity());
+                    list.add(cache.getOrSelf(controller.getSelectedEntity()));
                     return list;
                 }
                 return null;
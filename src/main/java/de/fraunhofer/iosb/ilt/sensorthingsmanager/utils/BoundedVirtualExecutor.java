@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.utils;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on a new virtual thread, with at most maxParallel tasks
+ * running at the same time. Virtual threads are not pooled, the limit is a
+ * Semaphore that each task takes before it runs.
+ *
+ * A task that is interrupted while waiting for its turn, for instance by
+ * {@link #shutdownNow()}, does not run, and its Future is cancelled.
+ *
+ * @author scf
+ */
+public class BoundedVirtualExecutor extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    /**
+     * @param name The name prefix of the threads.
+     * @param maxParallel The maximum number of tasks running at the same time.
+     */
+    public BoundedVirtualExecutor(String name, int maxParallel) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel must be at least 1, got " + maxParallel);
+        }
+        this.delegate = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        this.permits = new Semaphore(maxParallel);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException ex) {
+                if (command instanceof Future<?> future) {
+                    future.cancel(false);
+                }
+                return;
+            }
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.utils;
+
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
+import de.fraunhofer.iosb.ilt.frostclient.query.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes many entities, with a bounded number of deletes in flight. To
+ * delete all entities matching a query, only the ids are fetched, in pages
+ * ordered by id. Each next page is requested with a filter on the last id of
+ * the previous page, so the paging is not disturbed by the deletes, and the
+ * next page is loaded while the deletes of the previous page run.
+ *
+ * A failing delete is recorded, and does not stop the other deletes.
+ *
+ * @author scf
+ */
+public class BulkDeleter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkDeleter.class);
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * A delete that failed.
+     */
+    public static class Failure {
+
+        private final Entity entity;
+        private final Exception exception;
+
+        public Failure(Entity entity, Exception exception) {
+            this.entity = entity;
+            this.exception = exception;
+        }
+
+        public Entity getEntity() {
+            return entity;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return entity.getType().getEntityName() + " " + formatKeyValuesForUrl(entity) + ": " + exception.getMessage();
+        }
+    }
+
+    private final ParallelRunner runner = new ParallelRunner("Delete", "deletes", DEFAULT_MAX_IN_FLIGHT);
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private Consumer<Entity> deletedListener;
+
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Deletes all entities matching the given filter. Blocks until done, or
+     * cancelled. Only works for entity types with a single primary key
+     * property named id.
+     *
+     * @param querySupplier Creates a new query on the collection to delete
+     * from, without a filter.
+     * @param filter The filter for the entities to delete, or empty to
+     * delete all.
+     * @return The deletes that failed.
+     * @throws ServiceFailureException If fetching the ids fails.
+     */
+    public List<Failure> deleteAll(Supplier<Query> querySupplier, String filter) throws ServiceFailureException {
+        failures.clear();
+        runner.start(-1);
+        runner.open();
+        try {
+            EntitySet page = querySupplier.get()
+                    .select("id")
+                    .filter(filter)
+                    .orderBy("id asc")
+                    .top(pageSize)
+                    .count(true)
+                    .list();
+            runner.setTotal(page.getCount());
+            LOGGER.info("Deleting {} entities.", page.getCount());
+            while (!runner.isCancelled()) {
+                List<Entity> ids = page.toList();
+                if (ids.isEmpty()) {
+                    break;
+                }
+                for (Entity entity : ids) {
+                    if (!runner.submit(() -> deleteOne(entity))) {
+                        break;
+                    }
+                }
+                if (ids.size() < pageSize && !page.hasNextLink()) {
+                    break;
+                }
+                String after = "id gt " + formatKeyValuesForUrl(ids.get(ids.size() - 1));
+                page = querySupplier.get()
+                        .select("id")
+                        .filter(filter.isEmpty() ? after : "(" + filter + ") and " + after)
+                        .orderBy("id asc")
+                        .top(pageSize)
+                        .list();
+            }
+            runner.awaitAll();
+        } catch (InterruptedException ex) {
+            LOGGER.info("Deleting interrupted.");
+            cancel();
+            Thread.currentThread().interrupt();
+        } finally {
+            runner.close();
+        }
+        LOGGER.info("Finished: {}", getStatus());
+        return getFailures();
+    }
+
+    /**
+     * Deletes the given entities. Blocks until done, or cancelled.
+     *
+     * @param entities The entities to delete.
+     * @return The deletes that failed.
+     */
+    public List<Failure> delete(Collection<Entity> entities) {
+        failures.clear();
+        runner.start(entities.size());
+        List<Runnable> work = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            work.add(() -> deleteOne(entity));
+        }
+        runner.runAll(work);
+        LOGGER.info("Finished: {}", getStatus());
+        return getFailures();
+    }
+
+    private void deleteOne(Entity entity) {
+        if (runner.isCancelled()) {
+            return;
+        }
+        try {
+            entity.getService().delete(entity);
+            if (deletedListener != null) {
+                deletedListener.accept(entity);
+            }
+            runner.taskDone(1);
+        } catch (ServiceFailureException | RuntimeException ex) {
+            LOGGER.debug("Failed to delete {}", entity, ex);
+            failures.add(new Failure(entity, ex));
+            runner.taskFailed(1);
+        }
+    }
+
+    /**
+     * @return The number of deletes per second since the start.
+     */
+    public double getRate() {
+        return runner.getRate();
+    }
+
+    public String getStatus() {
+        return runner.getStatus();
+    }
+
+    /**
+     * @return The deletes that failed so far.
+     */
+    public List<Failure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    /**
+     * Stops submitting deletes. Deletes that are in flight still finish.
+     */
+    public void cancel() {
+        runner.stop();
+    }
+
+    public boolean isCancelled() {
+        return runner.isCancelled();
+    }
+
+    public int getMaxInFlight() {
+        return runner.getMaxParallel();
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        runner.setMaxParallel(maxInFlight);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setProgressListener(ParallelRunner.ProgressListener progressListener) {
+        runner.setProgressListener(progressListener);
+    }
+
+    /**
+     * @param deletedListener Called, on a background thread, for each entity
+     * that was deleted.
+     */
+    public void setDeletedListener(Consumer<Entity> deletedListener) {
+        this.deletedListener = deletedListener;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.utils;
+
+import static de.fraunhofer.iosb.ilt.frostclient.utils.StringHelper.formatKeyValuesForUrl;
+
+import de.fraunhofer.iosb.ilt.frostclient.SensorThingsService;
+import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
+import de.fraunhofer.iosb.ilt.frostclient.model.EntityType;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.EntityPropertyMain;
+import de.fraunhofer.iosb.ilt.frostclient.model.property.NavigationProperty;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps recently loaded entities of one service, so tabs, panes and dialogs
+ * that show the same entity do not each fetch it again. Entities are keyed by
+ * their EntityType and primary key value. The links from an entity to its
+ * single related entities, like the Thing of a Datastream, are also kept.
+ *
+ * The cache holds at most maxSize entities, and the links of at most maxSize
+ * entities. The links are kept by their source entity, so dropping the links
+ * of an entity does not scan all links. The least recently used are evicted
+ * first, and entries older than the time-to-live are not returned.
+ *
+ * Only complete entities should be put in the cache, not entities loaded
+ * with a $select. The cache keeps its own copy of each entity, with only the
+ * entity properties, and hands out copies, so an editor changing an entity
+ * does not change the cached version, or the entity shown in another tab.
+ *
+ * @author scf
+ */
+public class EntityCache {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntityCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(5);
+
+    private static final Map<SensorThingsService, EntityCache> CACHES = new WeakHashMap<>();
+
+    private record Key(EntityType type, String pk) {
+    }
+
+    private record Cached<T>(T value, long loadedAt) {
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<Key, Cached<Entity>> entities;
+    /**
+     * The links by their source, and the name of the navigation property.
+     */
+    private final Map<Key, Map<String, Cached<Key>>> links;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public EntityCache(int maxSize, Duration ttl) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.entities = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached<Entity>> eldest) {
+                return evict(size());
+            }
+        };
+        this.links = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Map<String, Cached<Key>>> eldest) {
+                return evict(size());
+            }
+        };
+    }
+
+    private boolean evict(int size) {
+        if (size > maxSize) {
+            evictions.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cache of the given service, creating it if needed.
+     *
+     * @param service The service to get the cache for.
+     * @return The cache of the service.
+     */
+    public static EntityCache forService(SensorThingsService service) {
+        synchronized (CACHES) {
+            return CACHES.computeIfAbsent(service, s -> new EntityCache(DEFAULT_MAX_SIZE, DEFAULT_TTL));
+        }
+    }
+
+    private static Key keyOf(Entity entity) {
+        if (entity == null || !entity.primaryKeyFullySet()) {
+            return null;
+        }
+        return new Key(entity.getType(), formatKeyValuesForUrl(entity));
+    }
+
+    private boolean isFresh(Cached<?> cached) {
+        return System.nanoTime() - cached.loadedAt() < ttlNanos;
+    }
+
+    /**
+     * Finds the cached version of the given entity.
+     *
+     * @param entity An entity, or a stub with only the primary key.
+     * @return The cached entity, or null if it is not cached or expired.
+     */
+    public synchronized Entity get(Entity entity) {
+        Key key = keyOf(entity);
+        if (key == null) {
+            return null;
+        }
+        Cached<Entity> cached = entities.get(key);
+        if (cached == null || !isFresh(cached)) {
+            if (cached != null) {
+                entities.remove(key);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copyOf(cached.value());
+    }
+
+    /**
+     * Finds the cached version of the given entity, or returns the entity
+     * itself if it is not cached.
+     *
+     * @param entity The entity to look up.
+     * @return The cached entity, or the given entity.
+     */
+    public Entity getOrSelf(Entity entity) {
+        Entity cached = get(entity);
+        return cached == null ? entity : cached;
+    }
+
+    /**
+     * Puts a copy of the given entity in the cache. The links from the entity
+     * are dropped, since they may have changed.
+     *
+     * @param entity The entity to cache.
+     */
+    public synchronized void put(Entity entity) {
+        Key key = keyOf(entity);
+        if (key != null) {
+            entities.put(key, new Cached<>(copyOf(entity), System.nanoTime()));
+            links.remove(key);
+        }
+    }
+
+    public synchronized void putAll(Collection<Entity> loaded) {
+        for (Entity entity : loaded) {
+            put(entity);
+        }
+    }
+
+    /**
+     * Removes the given entity, and the links from it, for instance after it
+     * is deleted.
+     *
+     * @param entity The entity to remove.
+     */
+    public synchronized void remove(Entity entity) {
+        Key key = keyOf(entity);
+        if (key != null) {
+            entities.remove(key);
+            links.remove(key);
+        }
+    }
+
+    /**
+     * Gets the entity that the given navigation property of the source
+     * points to. If the link and the entity are cached, no request is made.
+     * Otherwise the entity is loaded through the source, and cached.
+     *
+     * @param source The entity to follow the link from.
+     * @param np The navigation property to follow.
+     * @return The linked entity, or null if there is none.
+     */
+    public Entity getLinked(Entity source, NavigationProperty<Entity> np) {
+        final Key sourceKey = keyOf(source);
+        if (sourceKey == null) {
+            return source.getProperty(np);
+        }
+        final String npName = np.getName();
+        synchronized (this) {
+            Map<String, Cached<Key>> sourceLinks = links.get(sourceKey);
+            Cached<Key> link = sourceLinks == null ? null : sourceLinks.get(npName);
+            if (link != null && isFresh(link)) {
+                if (link.value() == null) {
+                    hits.incrementAndGet();
+                    return null;
+                }
+                Cached<Entity> target = entities.get(link.value());
+                if (target != null && isFresh(target)) {
+                    hits.incrementAndGet();
+                    return copyOf(target.value());
+                }
+            }
+            misses.incrementAndGet();
+        }
+        Entity linked = source.getProperty(np);
+        synchronized (this) {
+            Key targetKey = keyOf(linked);
+            links.computeIfAbsent(sourceKey, k -> new HashMap<>()).put(npName, new Cached<>(targetKey, System.nanoTime()));
+            if (targetKey != null) {
+                entities.put(targetKey, new Cached<>(copyOf(linked), System.nanoTime()));
+            }
+        }
+        return linked;
+    }
+
+    /**
+     * Creates a copy of the given entity with its entity properties. The
+     * navigation properties are not copied, they are loaded when needed.
+     */
+    private static Entity copyOf(Entity entity) {
+        Entity copy = entity.withOnlyPk();
+        if (entity.hasService()) {
+            copy.setService(entity.getService());
+        }
+        for (EntityPropertyMain<?> ep : entity.getType().getEntityProperties()) {
+            copyProperty(entity, copy, ep);
+        }
+        return copy;
+    }
+
+    private static <T> void copyProperty(Entity from, Entity to, EntityPropertyMain<T> ep) {
+        T value = from.getProperty(ep);
+        if (value != null) {
+            to.setProperty(ep, value);
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entities.clear();
+        links.clear();
+        LOGGER.debug("Cache cleared.");
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The fraction of lookups that were served from the cache.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public synchronized int size() {
+        return entities.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entities cached, %d hits, %d misses (%.0f%% hit rate), %d evicted",
+                size(), getHits(), getMisses(), 100 * getHitRate(), getEvictions());
+    }
+}
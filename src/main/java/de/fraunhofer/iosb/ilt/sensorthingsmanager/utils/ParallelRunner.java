@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2024 Fraunhofer Institut IOSB, Fraunhoferstr. 1, D 76131
+ * Karlsruhe, Germany.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.sensorthingsmanager.utils;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on virtual threads, with at most maxParallel tasks running at the
+ * same time. It counts the work that is done and failed, and reports the
+ * progress, throughput and remaining time to a listener.
+ *
+ * Tasks can be given all at once with {@link #runAll(Collection)}, or be
+ * submitted one by one, for instance while paging through a collection, using
+ * {@link #open()}, {@link #submit(Runnable)}, {@link #awaitAll()} and
+ * {@link #close()}.
+ *
+ * @author scf
+ */
+public class ParallelRunner {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelRunner.class);
+
+    /**
+     * Receives progress updates.
+     */
+    @FunctionalInterface
+    public static interface ProgressListener {
+
+        /**
+         * @param progress The fraction of the work done, from 0 to 1.
+         * @param message A human readable status.
+         */
+        public void progress(double progress, String message);
+    }
+
+    private final String name;
+    private final String unit;
+    private int maxParallel;
+    private ProgressListener progressListener;
+
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long total;
+    private volatile long startNanos;
+    private volatile boolean cancelled;
+    private volatile ExecutorService executor;
+    private volatile Semaphore window;
+    private volatile int windowSize;
+
+    /**
+     * @param name The name of the work, used for thread names and logging.
+     * @param unit The unit of the work, like "intervals", used in the status.
+     * @param maxParallel The maximum number of tasks running at the same time.
+     */
+    public ParallelRunner(String name, String unit, int maxParallel) {
+        this.name = name;
+        this.unit = unit;
+        setMaxParallel(maxParallel);
+    }
+
+    /**
+     * Resets the counters and starts the clock.
+     *
+     * @param total The total amount of work, or -1 if not known yet.
+     */
+    public void start(long total) {
+        cancelled = false;
+        done.set(0);
+        failed.set(0);
+        this.total = total;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Runs the given tasks. Blocks until all tasks are done, or the run is
+     * cancelled.
+     *
+     * @param tasks The tasks to run.
+     */
+    public void runAll(Collection<? extends Runnable> tasks) {
+        open();
+        try {
+            for (Runnable task : tasks) {
+                if (!submit(task)) {
+                    break;
+                }
+            }
+            awaitAll();
+        } catch (InterruptedException ex) {
+            LOGGER.info("{} interrupted.", name);
+            cancel();
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Creates the executor, before tasks are submitted.
+     */
+    public void open() {
+        windowSize = maxParallel;
+        window = new Semaphore(windowSize);
+        executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+
+    /**
+     * Waits until fewer than maxParallel tasks are running, and submits the
+     * given task.
+     *
+     * @param task The task to run.
+     * @return false if the run is cancelled, and the task was not submitted.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean submit(Runnable task) throws InterruptedException {
+        final Semaphore myWindow = window;
+        myWindow.acquire();
+        final ExecutorService exec = executor;
+        if (cancelled || exec == null) {
+            myWindow.release();
+            return false;
+        }
+        try {
+            exec.submit(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.error("{}: task failed.", name, ex);
+                } finally {
+                    myWindow.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            myWindow.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until all submitted tasks are done, reporting the progress every
+     * second.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitAll() throws InterruptedException {
+        final Semaphore myWindow = window;
+        final int size = windowSize;
+        while (!myWindow.tryAcquire(size, 1, TimeUnit.SECONDS)) {
+            reportProgress();
+        }
+        myWindow.release(size);
+    }
+
+    /**
+     * Shuts down the executor, interrupting tasks that still run.
+     */
+    public void close() {
+        ExecutorService exec = executor;
+        executor = null;
+        if (exec != null) {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops the run. Running tasks are interrupted, tasks that have not
+     * started are skipped.
+     */
+    public void cancel() {
+        cancelled = true;
+        ExecutorService exec = executor;
+        if (exec != null) {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * Stops submitting tasks. Running tasks are not interrupted.
+     */
+    public void stop() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Counts work that is done, and reports the progress.
+     *
+     * @param amount The amount of work done.
+     */
+    public void taskDone(long amount) {
+        done.addAndGet(amount);
+        reportProgress();
+    }
+
+    /**
+     * Counts a task that failed, and reports the progress.
+     *
+     * @param amount The amount of work the failed task covered.
+     */
+    public void taskFailed(long amount) {
+        failed.incrementAndGet();
+        done.addAndGet(amount);
+        reportProgress();
+    }
+
+    public long getDone() {
+        return done.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param total The total amount of work, once it is known.
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * @return The amount of work done per second since the start.
+     */
+    public double getRate() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? done.get() / seconds : 0;
+    }
+
+    /**
+     * @return The fraction of the work done, from 0 to 1, or 0 if the total
+     * is not known.
+     */
+    public double getProgress() {
+        long myTotal = total;
+        if (myTotal < 0) {
+            return 0;
+        }
+        return myTotal == 0 ? 1 : Math.min(1, 1.0 * done.get() / myTotal);
+    }
+
+    private void reportProgress() {
+        if (progressListener != null) {
+            progressListener.progress(getProgress(), getStatus());
+        }
+    }
+
+    /**
+     * @return A human readable description of the progress, failures,
+     * throughput and remaining time.
+     */
+    public String getStatus() {
+        long myDone = done.get();
+        long myTotal = total;
+        double rate = getRate();
+        String eta = "?";
+        if (rate > 0 && myTotal >= 0) {
+            eta = formatDuration(Duration.ofSeconds((long) (Math.max(0, myTotal - myDone) / rate)));
+        }
+        return String.format("%d%s %s, %d failed, %.1f %s/s, ETA %s",
+                myDone, myTotal >= 0 ? " / " + myTotal : "", unit, failed.get(), rate, unit, eta);
+    }
+
+    private static String formatDuration(Duration duration) {
+        return String.format("%d:%02d:%02d", duration.toHours(), duration.toMinutesPart(), duration.toSecondsPart());
+    }
+
+    public int getMaxParallel() {
+        return maxParallel;
+    }
+
+    /**
+     * @param maxParallel The maximum number of tasks running at the same time.
+     */
+    public void setMaxParallel(int maxParallel) {
+        if (maxParallel < 1) {
+            throw new IllegalArgumentException("maxParallel must be at least 1, got " + maxParallel);
+        }
+        this.maxParallel = maxParallel;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+}
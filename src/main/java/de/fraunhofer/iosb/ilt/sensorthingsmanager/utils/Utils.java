@@ -20,10 +20,9 @@ package de.fraunhofer.iosb.ilt.sensorthingsmanager.utils;
 import de.fraunhofer.iosb.ilt.frostclient.dao.BaseDao;
 import de.fraunhofer.iosb.ilt.frostclient.exception.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.frostclient.exception.StatusCodeException;
-import de.fraunhofer.iosb.ilt.frostclient.model.Entity;
-import de.fraunhofer.iosb.ilt.frostclient.model.EntitySet;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.List;
 import javafx.scene.control.Alert;
 import javafx.scene.control.TextArea;
 import org.slf4j.Logger;
@@ -79,22 +78,23 @@ public class Utils {
         alert.showAndWait();
     }
 
-    public static void deleteAll(BaseDao doa) throws ServiceFailureException {
-        boolean more = true;
-        int count = 0;
-        while (more) {
-            EntitySet entities = doa.query().count(true).list();
-            if (entities.getCount() > 0) {
-                LOGGER.info("{} to go.", entities.getCount());
-            } else {
-                more = false;
-            }
-            for (Entity entity : entities) {
-                doa.delete(entity);
-                count++;
-            }
+    /**
+     * Deletes all entities of the given dao, using a {@link BulkDeleter}.
+     * Failing deletes are logged, and do not stop the other deletes.
+     *
+     * @param doa The dao to delete all entities of.
+     * @return The deletes that failed.
+     * @throws ServiceFailureException If fetching the ids fails.
+     */
+    public static List<BulkDeleter.Failure> deleteAll(BaseDao doa) throws ServiceFailureException {
+        BulkDeleter deleter = new BulkDeleter();
+        deleter.setDeletedListener(entity -> EntityCache.forService(entity.getService()).remove(entity));
+        List<BulkDeleter.Failure> failures = deleter.deleteAll(doa::query, "");
+        for (BulkDeleter.Failure failure : failures) {
+            LOGGER.warn("Failed to delete {}", failure);
         }
-        LOGGER.info("Deleted {} using {}.", count, doa.getClass().getName());
+        LOGGER.info("{} using {}.", deleter.getStatus(), doa.getClass().getName());
+        return failures;
     }
 
 }